@@ -1,6 +1,22 @@
 package com.blogspot.michaelsebero.movinglightsource;
 
 import com.blogspot.michaelsebero.movinglightsource.blocks.BlockMovingLightSource;
+import com.blogspot.michaelsebero.movinglightsource.lighting.ChunkLightIndex;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightAuditor;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightChurnTracker;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightEngineMonitor;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightJournal;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightLoadController;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightMetrics;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightPos;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightReconciler;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightSaveFilter;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightTargetBatch;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightTrace;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightTracker;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightTunables;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightWorkQueue;
+import com.blogspot.michaelsebero.movinglightsource.lighting.VirtualLightEngine;
 import com.blogspot.michaelsebero.movinglightsource.registries.BlockRegistry;
 import com.blogspot.michaelsebero.movinglightsource.tileentities.TileEntityMovingLightSource;
 
@@ -11,7 +27,7 @@ import net.minecraft.entity.item.EntityItem;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.init.Blocks;
 import net.minecraft.item.Item;
-import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.math.AxisAlignedBB;
 import net.minecraft.util.math.BlockPos;
@@ -20,37 +36,41 @@ import net.minecraft.util.text.Style;
 import net.minecraft.util.text.TextComponentString;
 import net.minecraft.util.text.event.ClickEvent;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.event.AttachCapabilitiesEvent;
 import net.minecraftforge.event.RegistryEvent;
+import net.minecraftforge.event.entity.EntityJoinWorldEvent;
 import net.minecraftforge.event.entity.living.LivingEvent.LivingUpdateEvent;
 import net.minecraftforge.event.entity.player.AttackEntityEvent;
+import net.minecraftforge.event.world.ChunkDataEvent;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.client.event.ConfigChangedEvent.OnConfigChangedEvent;
+import net.minecraftforge.fml.common.FMLCommonHandler;
 import net.minecraftforge.fml.common.eventhandler.EventPriority;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.PlayerTickEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ServerTickEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.WorldTickEvent;
 
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 public class EventHandler 
 {
-    // Cache to track last light block placement per entity item
-    private static final Map<Integer, BlockPos> lastItemLightBlockPos = new HashMap<>();
-    private static final Map<Integer, Block> lastItemLightBlockType = new HashMap<>();
+    // Light block placements and ownership per dropped item and projectile are kept in LightTracker
     
-    // Track which EntityItem "owns" each light block position
-    private static final Map<BlockPos, Integer> itemLightBlockOwnership = new HashMap<>();
+    // Per-tick emitter snapshots, reused across ticks and worlds on the server thread
+    private static final LightTargetBatch itemTargets = new LightTargetBatch();
+    private static final LightTargetBatch projectileTargets = new LightTargetBatch();
     
-    // Cache for projectile lights (arrows, fireballs, etc.)
-    private static final Map<Integer, BlockPos> lastProjectileLightBlockPos = new HashMap<>();
-    private static final Map<BlockPos, Integer> projectileLightBlockOwnership = new HashMap<>();
+    // Scratch positions so checking entities whose light didn't move doesn't allocate,
+    // queuing a write still allocates its position and op. Server thread only
+    private static final BlockPos.MutableBlockPos LOOKUP_CURSOR = new BlockPos.MutableBlockPos();
+    private static final BlockPos.MutableBlockPos TARGET_CURSOR = new BlockPos.MutableBlockPos();
     
-    // Throttle for dropped items and projectiles
-    private static final int ITEM_LIGHT_UPDATE_INTERVAL = 2;
-    private static final int PROJECTILE_LIGHT_UPDATE_INTERVAL = 1; // Update every tick for fast movement
+    // When the current server tick started, to dump the light traces after a slow one
+    private static long serverTickStart = System.nanoTime();
     
     @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
     public void onEvent(RegistryEvent.NewRegistry event)
@@ -66,6 +86,23 @@ public class EventHandler
         // Only process on server side
         if (entity.world.isRemote) return;
         
+        entity.world.profiler.startSection(MainMod.MODID);
+        entity.world.profiler.startSection("living");
+        long start = System.nanoTime();
+        handleLivingUpdate(entity);
+        LightMetrics.get(entity.world).addHandlerTime(LightMetrics.Handler.LIVING_UPDATE, System.nanoTime() - start);
+        entity.world.profiler.endSection();
+        entity.world.profiler.endSection();
+    }
+    
+    /**
+     * Place lights for burning entities and mobs holding light sources
+     */
+    private void handleLivingUpdate(EntityLivingBase entity)
+    {
+        // Only process the slice of entities whose phase falls on this tick
+        if (!LightLoadController.isInPhase(entity.world.getTotalWorldTime(), entity.getEntityId(), LightLoadController.getLivingInterval())) return;
+        
         // Check if entity is burning and should emit light
         if (entity.isBurning() && MainMod.allowBurningEntitiesToGiveOffLight)
         {
@@ -90,152 +127,415 @@ public class EventHandler
     @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
     public void onEvent(WorldTickEvent event)
     {
-        // Only process on server side at end of tick
-        if (event.phase != TickEvent.Phase.END || event.world.isRemote) return;
+        if (event.world.isRemote) return;
+        
+        event.world.profiler.startSection(MainMod.MODID);
+        long start = System.nanoTime();
         
-        // Create a copy of the entity list to avoid ConcurrentModificationException
-        List<Entity> entityListCopy;
-        try
+        // Relight jobs finished by the workers are written before anything else touches the world
+        if (event.phase == TickEvent.Phase.START)
         {
-            entityListCopy = new java.util.ArrayList<>(event.world.loadedEntityList);
+            event.world.profiler.startSection("commit");
+            VirtualLightEngine.get(event.world).commitRelightJobs();
+            event.world.profiler.endSection();
         }
-        catch (Exception e)
+        else
         {
-            // If we can't copy the list, skip this tick
-            return;
+            tickLights(event.world);
         }
         
+        LightMetrics metrics = LightMetrics.get(event.world);
+        metrics.addHandlerTime(LightMetrics.Handler.WORLD_TICK, System.nanoTime() - start);
+        if (event.phase == TickEvent.Phase.END)
+        {
+            metrics.endTick();
+        }
+        metrics.tick();
+        event.world.profiler.endSection();
+    }
+    
+    /**
+     * End of the world tick: light dropped items and burning projectiles, then apply the queued work.
+     * Each stage has its own profiler section under the mod's, and its time goes into that stage's latency histogram
+     */
+    private void tickLights(World world)
+    {
+        LightMetrics metrics = LightMetrics.get(world);
+        long stageStart;
+        
+        // Indexed loops instead of a copy, nothing adds or removes entities until the batches are handled
+        List<Entity> entities = world.loadedEntityList;
+        
+        long worldTime = world.getTotalWorldTime();
+        
         // Handle EntityItem lights if enabled
-        if (MainMod.allowEntityItemsToGiveOffLight && 
-            event.world.getTotalWorldTime() % ITEM_LIGHT_UPDATE_INTERVAL == 0)
+        if (MainMod.allowEntityItemsToGiveOffLight)
         {
-            Map<Integer, Boolean> seenItems = new HashMap<>();
+            world.profiler.startSection("items");
+            world.profiler.startSection("scan");
+            stageStart = System.nanoTime();
+            int interval = LightLoadController.getItemInterval();
+            LightTracker tracker = LightTracker.getItems(world);
             
-            for (Entity entity : entityListCopy)
+            for (int i = 0; i < entities.size(); i++)
             {
-                if (entity instanceof EntityItem)
+                Entity entity = entities.get(i);
+                if (entity instanceof EntityItem && LightLoadController.isInPhase(worldTime, entity.getEntityId(), interval))
                 {
                     EntityItem entityItem = (EntityItem) entity;
-                    seenItems.put(entityItem.getEntityId(), true);
-                    handleEntityItemLight(entityItem);
+                    tracker.markSeen(entityItem.getEntityId(), worldTime);
+                    if (!entityItem.isDead)
+                    {
+                        // Use dynamic light detection - works for ALL mods!
+                        itemTargets.add(entityItem, BlockMovingLightSource.getItemLightLevel(entityItem.getItem()));
+                    }
                 }
             }
             
-            cleanupOrphanedItemLights(event.world, seenItems);
+            stageStart = endStage(metrics, LightMetrics.Stage.SCAN, stageStart);
+            world.profiler.endStartSection("target");
+            computeTargets(itemTargets);
+            stageStart = endStage(metrics, LightMetrics.Stage.TARGET, stageStart);
+            world.profiler.endStartSection("enqueue");
+            for (int i = 0; i < itemTargets.size(); i++)
+            {
+                handleEntityItemLight(itemTargets, i);
+            }
+            itemTargets.clear();
+            
+            endStage(metrics, LightMetrics.Stage.ENQUEUE, stageStart);
+            world.profiler.endStartSection("cleanup");
+            cleanupOrphanedItemLights(world, tracker, worldTime, interval);
+            world.profiler.endSection();
+            world.profiler.endSection();
         }
         
         // Handle burning projectile lights if enabled
-        if (MainMod.allowBurningEntitiesToGiveOffLight && 
-            event.world.getTotalWorldTime() % PROJECTILE_LIGHT_UPDATE_INTERVAL == 0)
+        if (MainMod.allowBurningEntitiesToGiveOffLight)
         {
-            Map<Integer, Boolean> seenProjectiles = new HashMap<>();
+            world.profiler.startSection("projectiles");
+            world.profiler.startSection("scan");
+            stageStart = System.nanoTime();
+            int interval = LightLoadController.getProjectileInterval();
+            LightTracker tracker = LightTracker.getProjectiles(world);
             
-            for (Entity entity : entityListCopy)
+            for (int i = 0; i < entities.size(); i++)
             {
+                Entity entity = entities.get(i);
+                
                 // Check if it's a projectile (not living, not item) and burning
                 if (!(entity instanceof EntityLivingBase) && 
                     !(entity instanceof EntityItem) && 
-                    entity.isBurning())
+                    entity.isBurning() && 
+                    LightLoadController.isInPhase(worldTime, entity.getEntityId(), interval))
                 {
-                    seenProjectiles.put(entity.getEntityId(), true);
-                    handleBurningProjectileLight(entity);
+                    tracker.markSeen(entity.getEntityId(), worldTime);
+                    projectileTargets.add(entity, entity.isDead ? 0 : 15);
                 }
             }
             
-            cleanupOrphanedProjectileLights(event.world, seenProjectiles);
+            stageStart = endStage(metrics, LightMetrics.Stage.SCAN, stageStart);
+            world.profiler.endStartSection("target");
+            computeTargets(projectileTargets);
+            stageStart = endStage(metrics, LightMetrics.Stage.TARGET, stageStart);
+            world.profiler.endStartSection("enqueue");
+            for (int i = 0; i < projectileTargets.size(); i++)
+            {
+                handleBurningProjectileLight(projectileTargets, i);
+            }
+            projectileTargets.clear();
+            
+            endStage(metrics, LightMetrics.Stage.ENQUEUE, stageStart);
+            world.profiler.endStartSection("cleanup");
+            cleanupOrphanedProjectileLights(world, tracker, worldTime, interval);
+            world.profiler.endSection();
+            world.profiler.endSection();
+        }
+        
+        // A running audit queues its removals with the rest of the tick's work
+        LightAuditor auditor = LightAuditor.get(world);
+        if (auditor != null)
+        {
+            world.profiler.startSection("audit");
+            auditor.tick();
+            world.profiler.endSection();
+        }
+        
+        // Apply queued light work last so this tick's requests are coalesced first
+        world.profiler.startSection("write");
+        stageStart = System.nanoTime();
+        LightWorkQueue.get(world).drain(LightLoadController.getBudgetMicros());
+        stageStart = endStage(metrics, LightMetrics.Stage.WRITE, stageStart);
+        
+        // Expire virtual lights whose entity stopped refreshing them and sync clients
+        world.profiler.endStartSection("virtual");
+        VirtualLightEngine.get(world).tick();
+        endStage(metrics, LightMetrics.Stage.VIRTUAL, stageStart);
+        world.profiler.endSection();
+    }
+    
+    /**
+     * Add the time since a stage started to its metrics
+     * @return the time the stage ended, which is when the next one starts
+     */
+    private static long endStage(LightMetrics metrics, LightMetrics.Stage stage, long stageStart)
+    {
+        long now = System.nanoTime();
+        metrics.addStageTime(stage, now - stageStart);
+        return now;
+    }
+    
+    /**
+     * Apply tunables changed since the last tick, then let the load controller
+     * adjust intervals and budgets from recent tick times. A slow tick dumps the light traces
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(ServerTickEvent event)
+    {
+        if (event.phase == TickEvent.Phase.START)
+        {
+            serverTickStart = System.nanoTime();
+            return;
+        }
+        
+        LightTrace.onServerTick(System.nanoTime() - serverTickStart);
+        LightTunables.applyStaged();
+        LightLoadController.update(FMLCommonHandler.instance().getMinecraftServerInstance());
+    }
+    
+    /**
+     * Settle the saved lights of this chunk and replay light removals that were waiting for it
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(ChunkEvent.Load event)
+    {
+        if (event.getWorld().isRemote) return;
+        
+        long start = System.nanoTime();
+        LightReconciler reconciler = LightReconciler.get(event.getWorld());
+        if (reconciler != null)
+        {
+            reconciler.onChunkLoad(event.getChunk());
+        }
+        LightWorkQueue.get(event.getWorld()).onChunkLoad(event.getChunk());
+        ChunkLightIndex index = ChunkLightIndex.get(event.getChunk());
+        int[] savedVirtualLights = index == null ? null : index.takeSavedVirtualLights();
+        if (savedVirtualLights != null)
+        {
+            VirtualLightEngine.get(event.getWorld()).onChunkLoad(event.getChunk(), savedVirtualLights);
+        }
+        LightMetrics.get(event.getWorld()).addHandlerTime(LightMetrics.Handler.CHUNK_LOAD, System.nanoTime() - start);
+    }
+    
+    /**
+     * Settle everything lit in a chunk that is unloading, the entities unload with it
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(ChunkEvent.Unload event)
+    {
+        World world = event.getWorld();
+        if (world.isRemote) return;
+        
+        long start = System.nanoTime();
+        Chunk chunk = event.getChunk();
+        LightTracker.getItems(world).dropChunk(chunk.x, chunk.z);
+        LightTracker.getProjectiles(world).dropChunk(chunk.x, chunk.z);
+        LightWorkQueue.get(world).onChunkUnload(chunk);
+        if (MainMod.useVirtualLightEngine)
+        {
+            VirtualLightEngine.get(world).onChunkUnload(chunk);
+        }
+        LightMetrics.get(world).addHandlerTime(LightMetrics.Handler.CHUNK_UNLOAD, System.nanoTime() - start);
+    }
+    
+    /**
+     * Keep the virtual light a chunk was saved with until the chunk is added to the world,
+     * this may run on the chunk IO thread
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(ChunkDataEvent.Load event)
+    {
+        if (event.getWorld().isRemote) return;
+        
+        int[] savedVirtualLights = VirtualLightEngine.readSavedLights(event.getData().getCompoundTag("Level"));
+        ChunkLightIndex index = ChunkLightIndex.get(event.getChunk());
+        if (savedVirtualLights != null && index != null)
+        {
+            index.setSavedVirtualLights(savedVirtualLights);
+        }
+    }
+    
+    /**
+     * Give every chunk an index of the light blocks in it
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(AttachCapabilitiesEvent<Chunk> event)
+    {
+        event.addCapability(ChunkLightIndex.KEY, new ChunkLightIndex.Provider());
+    }
+    
+    /**
+     * Keep the transient light blocks out of the region files, and list the virtual light
+     * saved in the chunk's block light so it is removed when the chunk loads again
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(ChunkDataEvent.Save event)
+    {
+        if (event.getWorld().isRemote) return;
+        
+        long start = System.nanoTime();
+        NBTTagCompound level = event.getData().getCompoundTag("Level");
+        if (MainMod.useVirtualLightEngine)
+        {
+            VirtualLightEngine.get(event.getWorld()).onChunkSave(event.getChunk(), level);
         }
+        if (MainMod.stripLightsFromSaves)
+        {
+            LightSaveFilter.strip(event.getData());
+        }
+        LightMetrics.get(event.getWorld()).addHandlerTime(LightMetrics.Handler.CHUNK_SAVE, System.nanoTime() - start);
+    }
+    
+    /**
+     * Set up the saved light state before any chunks load, so the lights are settled as they do
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(WorldEvent.Load event)
+    {
+        World world = event.getWorld();
+        if (world.isRemote) return;
+        
+        LightReconciler.start(world, WorldData.get(world).takeTrackedLights(world.provider.getDimension()));
+        LightEngineMonitor.register(world);
+        
+        if (MainMod.useLightJournal)
+        {
+            LightJournal.open(world);
+        }
+    }
+    
+    /**
+     * Hand entities coming back after a restart the lights they owned when the world was saved
+     */
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(EntityJoinWorldEvent event)
+    {
+        if (event.isCanceled() || event.getWorld().isRemote) return;
+        
+        LightReconciler reconciler = LightReconciler.get(event.getWorld());
+        if (reconciler != null)
+        {
+            reconciler.onEntityJoin(event.getEntity());
+        }
+    }
+    
+    @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
+    public void onEvent(WorldEvent.Unload event)
+    {
+        // Client worlds have a virtual light engine as well, kept apart from the server side's
+        VirtualLightEngine.remove(event.getWorld());
+        
+        if (event.getWorld().isRemote) return;
+        
+        WorldData.get(event.getWorld()).storeTrackedLights(event.getWorld());
+        LightReconciler.remove(event.getWorld());
+        LightAuditor.remove(event.getWorld());
+        LightEngineMonitor.unregister(event.getWorld());
+        LightMetrics.remove(event.getWorld());
+        LightChurnTracker.remove(event.getWorld());
+        LightTrace.remove(event.getWorld());
+        LightJournal.close(event.getWorld());
+        LightWorkQueue.remove(event.getWorld());
+        LightTracker.remove(event.getWorld());
+    }
+    
+    /**
+     * Work out where a batch of emitters should place their light blocks
+     * The virtual light engine lights the entity's own cell, so there is nothing to compute
+     */
+    private static void computeTargets(LightTargetBatch batch)
+    {
+        if (!MainMod.useVirtualLightEngine)
+        {
+            batch.computeTargets(MainMod.parallelLightTargetThreshold);
+        }
+    }
+    
+    /**
+     * Set a virtual light for an entity, used instead of light blocks when the virtual light engine is on
+     * The light lives for a little over two update intervals unless refreshed
+     */
+    private static void setVirtualLight(Entity entity, long pos, Block lightBlock, int updateInterval)
+    {
+        int level = lightBlock.getLightValue(lightBlock.getDefaultState());
+        VirtualLightEngine.get(entity.world).setEmitter(entity.getEntityId(), pos, level, updateInterval * 2 + 1);
     }
     
     /**
      * Clean up light blocks for items that no longer exist
+     * Only the tracked items in the current phase slot are checked
      */
-    private void cleanupOrphanedItemLights(World world, Map<Integer, Boolean> seenItems)
+    private void cleanupOrphanedItemLights(World world, LightTracker tracker, long worldTime, int interval)
     {
-        Iterator<Map.Entry<Integer, BlockPos>> iterator = lastItemLightBlockPos.entrySet().iterator();
+        int staleCount = tracker.sweep(worldTime, interval);
         
-        while (iterator.hasNext())
+        for (int i = 0; i < staleCount; i++)
         {
-            Map.Entry<Integer, BlockPos> entry = iterator.next();
-            int entityId = entry.getKey();
+            // We didn't see this entity ID this tick, it's gone
+            int entityId = tracker.getStale(i);
+            long pos = tracker.getPos(entityId);
             
-            // If we didn't see this entity ID this tick, it's gone
-            if (!seenItems.containsKey(entityId))
+            if (isLightOrPending(world, pos))
             {
-                BlockPos pos = entry.getValue();
-                if (pos != null)
+                // Remove the light block if it exists and we own it
+                if (tracker.getOwner(pos) == entityId)
                 {
-                    // Remove the light block if it exists and we own it
-                    Block block = world.getBlockState(pos).getBlock();
-                    if (block instanceof BlockMovingLightSource)
-                    {
-                        Integer owner = itemLightBlockOwnership.get(pos);
-                        if (owner != null && owner == entityId)
-                        {
-                            // Check if there's a tile entity - if so, mark it as from an item
-                            TileEntity te = world.getTileEntity(pos);
-                            if (te instanceof TileEntityMovingLightSource)
-                            {
-                                ((TileEntityMovingLightSource) te).markAsItemLight();
-                            }
-                            world.setBlockToAir(pos);
-                            itemLightBlockOwnership.remove(pos);
-                        }
-                    }
+                    // Tile entity gets marked as from an item when the removal is applied
+                    LightWorkQueue.get(world).enqueueRemove(pos, true, LightTrace.Reason.ORPHAN_SWEEP);
+                    tracker.removeOwner(pos);
+                    LightMetrics.get(world).increment(LightMetrics.Counter.ORPHANS_SWEPT);
                 }
-                
-                // Remove from caches
-                iterator.remove();
-                lastItemLightBlockType.remove(entityId);
             }
+            
+            tracker.untrack(entityId);
         }
     }
     
     /**
      * Clean up light blocks for projectiles that no longer exist
+     * Only the tracked projectiles in the current phase slot are checked
      */
-    private void cleanupOrphanedProjectileLights(World world, Map<Integer, Boolean> seenProjectiles)
+    private void cleanupOrphanedProjectileLights(World world, LightTracker tracker, long worldTime, int interval)
     {
-        Iterator<Map.Entry<Integer, BlockPos>> iterator = lastProjectileLightBlockPos.entrySet().iterator();
+        int staleCount = tracker.sweep(worldTime, interval);
         
-        while (iterator.hasNext())
+        for (int i = 0; i < staleCount; i++)
         {
-            Map.Entry<Integer, BlockPos> entry = iterator.next();
-            int entityId = entry.getKey();
+            int entityId = tracker.getStale(i);
+            long pos = tracker.getPos(entityId);
             
-            if (!seenProjectiles.containsKey(entityId))
+            if (isLightOrPending(world, pos))
             {
-                BlockPos pos = entry.getValue();
-                if (pos != null)
+                if (tracker.getOwner(pos) == entityId)
                 {
-                    Block block = world.getBlockState(pos).getBlock();
-                    if (block instanceof BlockMovingLightSource)
-                    {
-                        Integer owner = projectileLightBlockOwnership.get(pos);
-                        if (owner != null && owner == entityId)
-                        {
-                            world.setBlockToAir(pos);
-                            projectileLightBlockOwnership.remove(pos);
-                        }
-                    }
+                    LightWorkQueue.get(world).enqueueRemove(pos, false, LightTrace.Reason.ORPHAN_SWEEP);
+                    tracker.removeOwner(pos);
+                    LightMetrics.get(world).increment(LightMetrics.Counter.ORPHANS_SWEPT);
                 }
-                
-                iterator.remove();
             }
+            
+            tracker.untrack(entityId);
         }
     }
     
     /**
-     * Handle lighting for a single EntityItem
+     * Handle lighting for a single EntityItem of the tick's batch
      * NOW USES DYNAMIC DETECTION FOR ALL MODS!
      */
-    private void handleEntityItemLight(EntityItem entityItem)
+    private void handleEntityItemLight(LightTargetBatch targets, int index)
     {
-        if (entityItem == null || entityItem.isDead) return;
-        
-        ItemStack stack = entityItem.getItem();
-        
-        // Use dynamic light detection - works for ALL mods!
-        int lightLevel = BlockMovingLightSource.getItemLightLevel(stack);
+        EntityItem entityItem = (EntityItem) targets.getEntity(index);
+        int lightLevel = targets.getLevel(index);
         
         if (lightLevel > 0)
         {
@@ -243,7 +543,7 @@ public class EventHandler
             Block lightBlock = BlockMovingLightSource.getLightBlockForLevel(lightLevel);
             if (lightBlock != null && lightBlock != Blocks.AIR)
             {
-                placeItemLight(entityItem, lightBlock);
+                placeItemLight(entityItem, lightBlock, targets, index);
             }
         }
         else
@@ -256,78 +556,65 @@ public class EventHandler
     /**
      * Handle lighting for burning projectiles (arrows, fireballs, etc.)
      */
-    private void handleBurningProjectileLight(Entity projectile)
+    private void handleBurningProjectileLight(LightTargetBatch targets, int index)
     {
-        if (projectile == null || projectile.isDead || !projectile.isBurning()) 
+        Entity projectile = targets.getEntity(index);
+        
+        if (targets.getLevel(index) <= 0) 
         {
             removeProjectileLight(projectile);
             return;
         }
         
-        placeProjectileLight(projectile, BlockRegistry.MOVING_LIGHT_SOURCE_15);
+        placeProjectileLight(projectile, BlockRegistry.MOVING_LIGHT_SOURCE_15, targets, index);
     }
     
     /**
      * Place light block for burning projectile
      */
-    private void placeProjectileLight(Entity projectile, Block lightBlock)
+    private void placeProjectileLight(Entity projectile, Block lightBlock, LightTargetBatch targets, int index)
     {
         int entityId = projectile.getEntityId();
         World world = projectile.world;
         
-        // Determine projectile position
-        int blockX = MathHelper.floor(projectile.posX);
-        int blockY = MathHelper.floor(projectile.posY);
-        int blockZ = MathHelper.floor(projectile.posZ);
-        
-        // Try positions: at projectile location and one block up
-        BlockPos[] positionsToTry = {
-            new BlockPos(blockX, blockY, blockZ),
-            new BlockPos(blockX, blockY + 1, blockZ)
-        };
-        
-        BlockPos lastPos = lastProjectileLightBlockPos.get(entityId);
-        BlockPos targetPos = null;
-        
-        // Find a valid position to place the light
-        for (BlockPos pos : positionsToTry)
+        if (MainMod.useVirtualLightEngine)
         {
-            Block blockAtLocation = world.getBlockState(pos).getBlock();
-            
-            if (blockAtLocation == Blocks.AIR || blockAtLocation instanceof BlockMovingLightSource)
-            {
-                targetPos = pos;
-                break;
-            }
+            setVirtualLight(projectile, targets.getEntityPos(index), lightBlock, LightLoadController.getProjectileInterval());
+            return;
         }
         
-        // If no valid position found, keep trying
-        if (targetPos == null)
+        // The batch tried the projectile location and one block up, if neither is free keep trying
+        if (!targets.hasTarget(index))
         {
             return;
         }
         
+        LightTracker tracker = LightTracker.getProjectiles(world);
+        long targetPos = targets.getTargetPos(index);
+        
         // Remove old light block if projectile moved to a different position
-        if (lastPos != null && !lastPos.equals(targetPos))
+        if (tracker.isTracked(entityId) && tracker.getPos(entityId) != targetPos)
         {
-            removeProjectileLightAtPos(world, lastPos, entityId);
+            removeProjectileLightAtPos(world, tracker, tracker.getPos(entityId), entityId);
         }
         
         // Check if light already exists at target position
-        Block blockAtLocation = world.getBlockState(targetPos).getBlock();
+        Block blockAtLocation = targets.getTargetBlock(index);
         
         if (blockAtLocation == Blocks.AIR)
         {
-            // Empty space - place light block without tile entity
-            world.setBlockState(targetPos, lightBlock.getDefaultState(), 3);
-            lastProjectileLightBlockPos.put(entityId, targetPos);
-            projectileLightBlockOwnership.put(targetPos, entityId);
+            // Empty space - queue light block placement
+            if (LightWorkQueue.get(world).enqueuePlace(targetPos, lightBlock, projectile, LightWorkQueue.PRIORITY_ENTITY))
+            {
+                tracker.track(entityId, targetPos, lightBlock, world.getTotalWorldTime());
+                tracker.setOwner(targetPos, entityId);
+            }
         }
         else if (blockAtLocation instanceof BlockMovingLightSource)
         {
             // Already a light block - just update cache to maintain ownership
-            lastProjectileLightBlockPos.put(entityId, targetPos);
-            projectileLightBlockOwnership.put(targetPos, entityId);
+            tracker.track(entityId, targetPos, lightBlock, world.getTotalWorldTime());
+            tracker.setOwner(targetPos, entityId);
         }
     }
     
@@ -339,28 +626,34 @@ public class EventHandler
         if (projectile == null) return;
         
         int entityId = projectile.getEntityId();
-        BlockPos lastPos = lastProjectileLightBlockPos.get(entityId);
         
-        if (lastPos != null)
+        if (MainMod.useVirtualLightEngine)
         {
-            removeProjectileLightAtPos(projectile.world, lastPos, entityId);
-            lastProjectileLightBlockPos.remove(entityId);
+            VirtualLightEngine.get(projectile.world).removeEmitter(entityId);
+            return;
+        }
+        
+        LightTracker tracker = LightTracker.getProjectiles(projectile.world);
+        
+        if (tracker.isTracked(entityId))
+        {
+            removeProjectileLightAtPos(projectile.world, tracker, tracker.getPos(entityId), entityId);
+            tracker.untrack(entityId);
         }
     }
     
     /**
      * Remove projectile light block at specific position
      */
-    private void removeProjectileLightAtPos(World world, BlockPos pos, int entityId)
+    private void removeProjectileLightAtPos(World world, LightTracker tracker, long pos, int entityId)
     {
-        Block block = world.getBlockState(pos).getBlock();
-        if (block instanceof BlockMovingLightSource)
+        if (isLightOrPending(world, pos))
         {
-            Integer owner = projectileLightBlockOwnership.get(pos);
-            if (owner == null || owner == entityId)
+            int owner = tracker.getOwner(pos);
+            if (owner == LightTracker.NO_OWNER || owner == entityId)
             {
-                world.setBlockToAir(pos);
-                projectileLightBlockOwnership.remove(pos);
+                LightWorkQueue.get(world).enqueueRemove(pos, false, LightTrace.Reason.OWNER_LEFT);
+                tracker.removeOwner(pos);
             }
         }
     }
@@ -368,50 +661,34 @@ public class EventHandler
     /**
      * Place light block for EntityItem
      */
-    private void placeItemLight(EntityItem entityItem, Block lightBlock)
+    private void placeItemLight(EntityItem entityItem, Block lightBlock, LightTargetBatch targets, int index)
     {
         int entityId = entityItem.getEntityId();
         World world = entityItem.world;
         
-        // Determine item position
-        int blockX = MathHelper.floor(entityItem.posX);
-        int blockY = MathHelper.floor(entityItem.posY);
-        int blockZ = MathHelper.floor(entityItem.posZ);
-        
-        // Try placing at item position first, then one block up if needed
-        BlockPos[] positionsToTry = {
-            new BlockPos(blockX, blockY, blockZ),
-            new BlockPos(blockX, blockY + 1, blockZ)
-        };
-        
-        BlockPos lastPos = lastItemLightBlockPos.get(entityId);
-        Block lastBlock = lastItemLightBlockType.get(entityId);
-        
-        BlockPos targetPos = null;
-        
-        // Find a valid position to place the light
-        for (BlockPos pos : positionsToTry)
+        if (MainMod.useVirtualLightEngine)
         {
-            Block blockAtLocation = world.getBlockState(pos).getBlock();
-            
-            if (blockAtLocation == Blocks.AIR || blockAtLocation instanceof BlockMovingLightSource)
-            {
-                targetPos = pos;
-                break;
-            }
+            setVirtualLight(entityItem, targets.getEntityPos(index), lightBlock, LightLoadController.getItemInterval());
+            return;
         }
         
-        // If no valid position found, keep trying
-        if (targetPos == null)
+        // The batch tried the item position first, then one block up, if neither is free keep trying
+        if (!targets.hasTarget(index))
         {
             return;
         }
         
+        LightTracker tracker = LightTracker.getItems(world);
+        boolean tracked = tracker.isTracked(entityId);
+        long lastPos = tracker.getPos(entityId);
+        Block lastBlock = tracker.getBlock(entityId);
+        long targetPos = targets.getTargetPos(index);
+        
         // Optimization: Only update if position or light level changed
-        if (targetPos.equals(lastPos) && lightBlock == lastBlock)
+        if (tracked && targetPos == lastPos && lightBlock == lastBlock)
         {
             // Position hasn't changed, but make sure tile entity knows about the item
-            TileEntity te = world.getTileEntity(targetPos);
+            TileEntity te = world.getTileEntity(lookupCursor(targetPos));
             if (te instanceof TileEntityMovingLightSource)
             {
                 ((TileEntityMovingLightSource) te).setTrackedItem(entityItem);
@@ -420,53 +697,47 @@ public class EventHandler
         }
         
         // Remove old light block if item moved
-        if (lastPos != null && !lastPos.equals(targetPos))
+        if (tracked && lastPos != targetPos)
         {
-            removeItemLightAtPos(world, lastPos, entityId);
+            removeItemLightAtPos(world, tracker, lastPos, entityId);
         }
         
         // Place or update light block at target position
-        Block blockAtLocation = world.getBlockState(targetPos).getBlock();
+        Block blockAtLocation = targets.getTargetBlock(index);
         
         if (blockAtLocation == Blocks.AIR)
         {
-            // Empty space - place light block
-            world.setBlockState(targetPos, lightBlock.getDefaultState());
-            
-            // Set the tile entity to track this item
-            TileEntity te = world.getTileEntity(targetPos);
-            if (te instanceof TileEntityMovingLightSource)
+            // Empty space - queue light block, the tile entity is set to track this item once placed
+            if (LightWorkQueue.get(world).enqueuePlace(targetPos, lightBlock, entityItem, LightWorkQueue.PRIORITY_ENTITY))
             {
-                ((TileEntityMovingLightSource) te).setTrackedItem(entityItem);
+                tracker.track(entityId, targetPos, lightBlock, world.getTotalWorldTime());
+                tracker.setOwner(targetPos, entityId);
             }
-            
-            updateItemCache(entityId, targetPos, lightBlock);
-            itemLightBlockOwnership.put(targetPos, entityId);
         }
         else if (blockAtLocation instanceof BlockMovingLightSource)
         {
             // Already a light block
-            Integer owner = itemLightBlockOwnership.get(targetPos);
+            int owner = tracker.getOwner(targetPos);
             float currentLight = blockAtLocation.getLightValue(blockAtLocation.getDefaultState());
             float desiredLight = lightBlock.getLightValue(lightBlock.getDefaultState());
             
             // Update if we own it or there's no owner
-            if (owner == null || owner == entityId)
+            if (owner == LightTracker.NO_OWNER || owner == entityId)
             {
                 if (Math.abs(currentLight - desiredLight) > 0.001f)
                 {
-                    world.setBlockState(targetPos, lightBlock.getDefaultState());
+                    LightWorkQueue.get(world).enqueuePlace(targetPos, lightBlock, entityItem, LightWorkQueue.PRIORITY_ENTITY);
                 }
                 
                 // Make sure tile entity tracks this item
-                TileEntity te = world.getTileEntity(targetPos);
+                TileEntity te = world.getTileEntity(lookupCursor(targetPos));
                 if (te instanceof TileEntityMovingLightSource)
                 {
                     ((TileEntityMovingLightSource) te).setTrackedItem(entityItem);
                 }
                 
-                updateItemCache(entityId, targetPos, lightBlock);
-                itemLightBlockOwnership.put(targetPos, entityId);
+                tracker.track(entityId, targetPos, lightBlock, world.getTotalWorldTime());
+                tracker.setOwner(targetPos, entityId);
             }
         }
     }
@@ -477,37 +748,63 @@ public class EventHandler
     private void removeItemLight(EntityItem entityItem)
     {
         int entityId = entityItem.getEntityId();
-        BlockPos lastPos = lastItemLightBlockPos.get(entityId);
         
-        if (lastPos != null)
+        if (MainMod.useVirtualLightEngine)
         {
-            removeItemLightAtPos(entityItem.world, lastPos, entityId);
-            clearItemCache(entityId);
+            VirtualLightEngine.get(entityItem.world).removeEmitter(entityId);
+            return;
+        }
+        
+        LightTracker tracker = LightTracker.getItems(entityItem.world);
+        
+        if (tracker.isTracked(entityId))
+        {
+            removeItemLightAtPos(entityItem.world, tracker, tracker.getPos(entityId), entityId);
+            clearItemCache(tracker, entityId);
         }
     }
     
     /**
      * Remove item light block at specific position
      */
-    private void removeItemLightAtPos(World world, BlockPos pos, int entityId)
+    private void removeItemLightAtPos(World world, LightTracker tracker, long pos, int entityId)
     {
-        Block block = world.getBlockState(pos).getBlock();
-        if (block instanceof BlockMovingLightSource)
+        if (isLightOrPending(world, pos))
         {
-            Integer owner = itemLightBlockOwnership.get(pos);
-            if (owner == null || owner == entityId)
+            int owner = tracker.getOwner(pos);
+            if (owner == LightTracker.NO_OWNER || owner == entityId)
             {
-                // Mark tile entity as item light before removing
-                TileEntity te = world.getTileEntity(pos);
-                if (te instanceof TileEntityMovingLightSource)
-                {
-                    ((TileEntityMovingLightSource) te).markAsItemLight();
-                }
-                world.setBlockToAir(pos);
-                itemLightBlockOwnership.remove(pos);
+                // Tile entity is marked as item light before removing
+                LightWorkQueue.get(world).enqueueRemove(pos, true, LightTrace.Reason.OWNER_LEFT);
+                tracker.removeOwner(pos);
             }
         }
     }
+    
+    /**
+     * Whether there is a light block at the position or one is still queued there
+     */
+    private boolean isLightOrPending(World world, long pos)
+    {
+        BlockPos cursor = lookupCursor(pos);
+        
+        // Looking would load the chunk, the queue holds the removal and checks once the chunk loads
+        if (!world.isBlockLoaded(cursor))
+        {
+            return true;
+        }
+        
+        return world.getBlockState(cursor).getBlock() instanceof BlockMovingLightSource || 
+               LightWorkQueue.get(world).isPending(cursor);
+    }
+    
+    /**
+     * Shared position for lookups that don't keep the position, server thread only
+     */
+    private static BlockPos lookupCursor(long pos)
+    {
+        return LOOKUP_CURSOR.setPos(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos));
+    }
 
     @SuppressWarnings("deprecation")
     @SubscribeEvent(priority=EventPriority.NORMAL, receiveCanceled=true)
@@ -516,7 +813,13 @@ public class EventHandler
         // Handle server-side light placement
         if (event.phase == TickEvent.Phase.START && !event.player.world.isRemote)
         {
+            event.player.world.profiler.startSection(MainMod.MODID);
+            event.player.world.profiler.startSection("player");
+            long start = System.nanoTime();
             handlePlayerLightPlacement(event.player);
+            LightMetrics.get(event.player.world).addHandlerTime(LightMetrics.Handler.PLAYER_TICK, System.nanoTime() - start);
+            event.player.world.profiler.endSection();
+            event.player.world.profiler.endSection();
         }
     }
     
@@ -530,20 +833,33 @@ public class EventHandler
             return;
         }
         
-        // Determine player position (foot level)
+        // Determine player position (foot level), the light goes in the block above
         int blockX = MathHelper.floor(player.posX);
         int blockY = MathHelper.floor(player.posY - 0.2D - player.getYOffset());
         int blockZ = MathHelper.floor(player.posZ);
-        BlockPos targetPos = new BlockPos(blockX, blockY, blockZ).up();
+        BlockPos targetPos = TARGET_CURSOR.setPos(blockX, blockY + 1, blockZ);
         
         // Determine which light block should be placed
         Block desiredLightBlock = BlockMovingLightSource.lightBlockToPlace(player);
+        
+        if (MainMod.useVirtualLightEngine)
+        {
+            setVirtualLight(player, LightPos.pack(blockX, blockY + 1, blockZ), desiredLightBlock, 1);
+            return;
+        }
+        
+        // Never load a chunk just to light it
+        if (!player.world.isBlockLoaded(targetPos))
+        {
+            return;
+        }
+        
         Block blockAtLocation = player.world.getBlockState(targetPos).getBlock();
         
         if (blockAtLocation == Blocks.AIR)
         {
             // Empty space - place light block
-            player.world.setBlockState(targetPos, desiredLightBlock.getDefaultState());
+            LightWorkQueue.get(player.world).enqueuePlace(targetPos, desiredLightBlock, player, LightWorkQueue.PRIORITY_PLAYER);
         }
         else if (blockAtLocation instanceof BlockMovingLightSource)
         {
@@ -553,7 +869,7 @@ public class EventHandler
             
             if (Math.abs(currentLight - desiredLight) > 0.001f)
             {
-                player.world.setBlockState(targetPos, desiredLightBlock.getDefaultState());
+                LightWorkQueue.get(player.world).enqueuePlace(targetPos, desiredLightBlock, player, LightWorkQueue.PRIORITY_PLAYER);
             }
         }
     }
@@ -565,17 +881,28 @@ public class EventHandler
     {
         if (entity == null || lightBlock == null) return;
         
-        // Determine entity position
+        // Determine entity position, the light goes in the block above
         int blockX = MathHelper.floor(entity.posX);
         int blockY = MathHelper.floor(entity.posY - 0.2D);
         int blockZ = MathHelper.floor(entity.posZ);
-        BlockPos targetPos = new BlockPos(blockX, blockY, blockZ).up();
+        BlockPos targetPos = TARGET_CURSOR.setPos(blockX, blockY + 1, blockZ);
+        
+        if (MainMod.useVirtualLightEngine)
+        {
+            setVirtualLight(entity, LightPos.pack(blockX, blockY + 1, blockZ), lightBlock, LightLoadController.getLivingInterval());
+            return;
+        }
+        
+        if (!entity.world.isBlockLoaded(targetPos))
+        {
+            return;
+        }
         
         Block blockAtLocation = entity.world.getBlockState(targetPos).getBlock();
         
         if (blockAtLocation == Blocks.AIR)
         {
-            entity.world.setBlockState(targetPos, lightBlock.getDefaultState());
+            LightWorkQueue.get(entity.world).enqueuePlace(targetPos, lightBlock, entity, LightWorkQueue.PRIORITY_ENTITY);
         }
         else if (blockAtLocation instanceof BlockMovingLightSource)
         {
@@ -584,35 +911,21 @@ public class EventHandler
             
             if (Math.abs(currentLight - desiredLight) > 0.001f)
             {
-                entity.world.setBlockState(targetPos, lightBlock.getDefaultState());
+                LightWorkQueue.get(entity.world).enqueuePlace(targetPos, lightBlock, entity, LightWorkQueue.PRIORITY_ENTITY);
             }
         }
     }
     
-    /**
-     * Update item light block cache
-     */
-    private void updateItemCache(int entityId, BlockPos pos, Block block)
-    {
-        lastItemLightBlockPos.put(entityId, pos);
-        lastItemLightBlockType.put(entityId, block);
-    }
-    
     /**
      * Clear cache for item
      */
-    private void clearItemCache(int entityId)
+    private void clearItemCache(LightTracker tracker, int entityId)
     {
-        BlockPos oldPos = lastItemLightBlockPos.remove(entityId);
-        lastItemLightBlockType.remove(entityId);
+        long oldPos = tracker.getPos(entityId);
         
-        if (oldPos != null)
+        if (tracker.untrack(entityId) && tracker.getOwner(oldPos) == entityId)
         {
-            Integer owner = itemLightBlockOwnership.get(oldPos);
-            if (owner != null && owner == entityId)
-            {
-                itemLightBlockOwnership.remove(oldPos);
-            }
+            tracker.removeOwner(oldPos);
         }
     }
     
@@ -642,11 +955,8 @@ public class EventHandler
             MainMod.proxy.syncConfig();
             
             // Clear caches when config changes
-            lastItemLightBlockPos.clear();
-            lastItemLightBlockType.clear();
-            itemLightBlockOwnership.clear();
-            lastProjectileLightBlockPos.clear();
-            projectileLightBlockOwnership.clear();
+            LightTracker.clearAll();
+            LightWorkQueue.clearAll();
             BlockMovingLightSource.clearCache();
         }
     }
@@ -75,6 +75,35 @@ public class MainMod
     public static boolean allowTorchesToBurnEntities = true;
     public static boolean allowEntityItemsToGiveOffLight = true;
     
+    // light update intervals in ticks, per emitter category
+    public static int itemLightUpdateInterval = 2;
+    public static int projectileLightUpdateInterval = 1; // every tick for fast movement
+    public static int livingLightUpdateInterval = 1;
+    
+    // write light straight into block light arrays instead of placing light blocks
+    public static boolean useVirtualLightEngine = false;
+    public static boolean asyncVirtualRelight = false;
+    public static int parallelLightTargetThreshold = 256;
+    public static boolean skipEmptySectionLights = true;
+    public static boolean stripLightsFromSaves = true;
+    public static boolean useLightJournal = true;
+    public static boolean flightRecorderEvents = true;
+    
+    // ring buffer of recent light writes per world, dumped on command or after a slow tick
+    public static int lightTraceSize = 4096;
+    public static int lightTraceDumpMillis = 0;
+    
+    // time budget and capacity of the per-world light work queue
+    public static int lightWorkBudgetMicros = 2000;
+    public static int lightWorkQueueCapacity = 4096;
+    
+    // bounds for backing off light work when the server is lagging
+    public static boolean adaptiveLightThrottling = true;
+    public static int adaptiveHighMspt = 40;
+    public static int adaptiveLowMspt = 30;
+    public static int adaptiveMaxIntervalMultiplier = 4;
+    public static int adaptiveMinBudgetMicros = 250;
+    
     // instantiate creative tabs
 	// public static final CustomCreativeTab CREATIVE_TAB = new CustomCreativeTab();
 
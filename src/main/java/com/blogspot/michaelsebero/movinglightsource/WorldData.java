@@ -1,14 +1,29 @@
 package com.blogspot.michaelsebero.movinglightsource;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import com.blogspot.michaelsebero.movinglightsource.lighting.TrackedLightSnapshot;
+
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
 import net.minecraft.world.storage.WorldSavedData;
+import net.minecraftforge.common.DimensionManager;
 
 public class WorldData extends WorldSavedData 
 {
 
 	private static final String IDENTIFIER = MainMod.MODID;
 	
+	// Tracked light snapshots by dimension, for dimensions that aren't loaded. Only kept while light
+	// blocks are saved with their chunks, they are what the reconciler hands back to returning owners
+	private final Map<Integer, TrackedLightSnapshot> trackedLights = new HashMap<>();
+	
+	// Snapshots of the loaded dimensions as last written, and as captured when asked whether to write
+	private final Map<Integer, TrackedLightSnapshot> writtenLights = new HashMap<>();
+	private final Map<Integer, TrackedLightSnapshot> capturedLights = new HashMap<>();
+	
 //	private boolean hasCastleSpawned = false;
 //	private boolean familyCowHasGivenLead = false;
 	
@@ -29,6 +44,13 @@ public class WorldData extends WorldSavedData
 		// DEBUG
 		System.out.println("WorldData readFromNBT");
 		
+		trackedLights.clear();
+		NBTTagCompound lights = nbt.getCompoundTag("trackedLights");
+		for (String key : lights.getKeySet())
+		{
+			trackedLights.put(Integer.parseInt(key), TrackedLightSnapshot.readFromNBT(lights.getCompoundTag(key)));
+		}
+		
 //		hasCastleSpawned = nbt.getBoolean("hasCastleSpawned");
 //		familyCowHasGivenLead = nbt.getBoolean("familyCowHasGivenLead");
 	}
@@ -38,6 +60,37 @@ public class WorldData extends WorldSavedData
 	{
 		// DEBUG
 		System.out.println("MagicBeansWorldData writeToNBT");
+		
+		// Stripped lights leave the reconciler nothing to do, nothing is captured or written
+		NBTTagCompound lights = new NBTTagCompound();
+		if (MainMod.stripLightsFromSaves)
+		{
+			trackedLights.clear();
+			writtenLights.clear();
+			capturedLights.clear();
+			nbt.setTag("trackedLights", lights);
+			return nbt;
+		}
+		
+		// Loaded dimensions are snapshotted as they are now, the others keep what they were saved with
+		for (Map.Entry<Integer, TrackedLightSnapshot> entry : trackedLights.entrySet())
+		{
+			lights.setTag(String.valueOf(entry.getKey()), entry.getValue().writeToNBT(new NBTTagCompound()));
+		}
+		writtenLights.clear();
+		for (WorldServer world : DimensionManager.getWorlds())
+		{
+			int dimension = world.provider.getDimension();
+			TrackedLightSnapshot snapshot = capturedLights.get(dimension);
+			if (snapshot == null)
+			{
+				snapshot = TrackedLightSnapshot.capture(world);
+			}
+			writtenLights.put(dimension, snapshot);
+			lights.setTag(String.valueOf(dimension), snapshot.writeToNBT(new NBTTagCompound()));
+		}
+		capturedLights.clear();
+		nbt.setTag("trackedLights", lights);
 		return nbt;
 		
 //		nbt.setBoolean("hasCastleSpawned", hasCastleSpawned);
@@ -77,6 +130,67 @@ public class WorldData extends WorldSavedData
 //			// new PacketWorldData(this).sendToAll(); shouldn't need to send packet as this field is only used on server side
 //		}
 //	}
+	
+	/**
+	 * The light trackers aren't watched, so their snapshots are captured when the world saves
+	 * and the data is only written if one differs from what was last written
+	 */
+	@Override
+	public boolean isDirty()
+	{
+		boolean changed = super.isDirty();
+		capturedLights.clear();
+		if (MainMod.stripLightsFromSaves)
+		{
+			// Snapshots left from a save with lights in it are dropped on the next write
+			return changed || !trackedLights.isEmpty() || !writtenLights.isEmpty();
+		}
+		
+		for (WorldServer world : DimensionManager.getWorlds())
+		{
+			int dimension = world.provider.getDimension();
+			TrackedLightSnapshot snapshot = TrackedLightSnapshot.capture(world);
+			capturedLights.put(dimension, snapshot);
+			if (!snapshot.sameAs(writtenLights.get(dimension)))
+			{
+				changed = true;
+			}
+		}
+		if (writtenLights.size() != capturedLights.size())
+		{
+			changed = true;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Take the tracked light snapshot of a dimension that is loading, null if it has none
+	 */
+	public TrackedLightSnapshot takeTrackedLights(int dimension)
+	{
+		TrackedLightSnapshot snapshot = trackedLights.remove(dimension);
+		if (snapshot != null)
+		{
+			markDirty();
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Keep the tracked lights of a dimension that is unloading until it loads again
+	 */
+	public void storeTrackedLights(World world)
+	{
+		if (MainMod.stripLightsFromSaves)
+		{
+			return;
+		}
+		
+		int dimension = world.provider.getDimension();
+		trackedLights.put(dimension, TrackedLightSnapshot.capture(world));
+		writtenLights.remove(dimension);
+		markDirty();
+	}
 		
 	public static WorldData get(World world) 
 	{
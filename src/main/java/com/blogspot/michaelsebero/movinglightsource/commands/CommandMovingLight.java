@@ -0,0 +1,222 @@
+package com.blogspot.michaelsebero.movinglightsource.commands;
+
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightAuditor;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightChurnTracker;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightMetrics;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightTrace;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.entity.Entity;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.ITextComponent;
+import net.minecraft.util.text.Style;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraft.util.text.TextFormatting;
+import net.minecraft.util.text.event.ClickEvent;
+import net.minecraft.util.text.event.HoverEvent;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.common.DimensionManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Admin command for inspecting and cleaning up moving lights
+ * /movinglight audit [dimension]
+ * /movinglight stats [reset] [dimension]
+ * /movinglight top [dimension]
+ * /movinglight trace [dimension]
+ */
+public class CommandMovingLight extends CommandBase
+{
+    // Entries listed per kind by the top command
+    private static final int TOP_ENTRIES = 5;
+
+    private static final String USAGE = "/movinglight <audit|stats [reset]|top|trace> [dimension]";
+
+    @Override
+    public String getName()
+    {
+        return "movinglight";
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender)
+    {
+        return USAGE;
+    }
+
+    @Override
+    public int getRequiredPermissionLevel()
+    {
+        return 2;
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException
+    {
+        if (args.length < 1)
+        {
+            throw new WrongUsageException(USAGE);
+        }
+
+        if ("audit".equals(args[0]))
+        {
+            WorldServer world = getWorld(sender, args, 1);
+            if (LightAuditor.start(world, sender))
+            {
+                sender.sendMessage(new TextComponentString("Auditing the loaded chunks of dimension " + world.provider.getDimension() + " for orphaned lights"));
+            }
+            else
+            {
+                sender.sendMessage(new TextComponentString("An audit of dimension " + world.provider.getDimension() + " is already running"));
+            }
+            return;
+        }
+
+        if ("stats".equals(args[0]) && args.length > 1 && "reset".equals(args[1]))
+        {
+            WorldServer world = getWorld(sender, args, 2);
+            LightMetrics.get(world).resetLatencies();
+            sender.sendMessage(new TextComponentString("Reset the light latency histograms of dimension " + world.provider.getDimension()));
+            return;
+        }
+
+        if ("stats".equals(args[0]))
+        {
+            WorldServer world = getWorld(sender, args, 1);
+            for (String line : LightMetrics.get(world).report())
+            {
+                sender.sendMessage(new TextComponentString(line));
+            }
+            return;
+        }
+
+        if ("top".equals(args[0]))
+        {
+            WorldServer world = getWorld(sender, args, 1);
+            sendTop(sender, world);
+            return;
+        }
+
+        if ("trace".equals(args[0]))
+        {
+            WorldServer world = getWorld(sender, args, 1);
+            LightTrace trace = LightTrace.get(world);
+            if (trace == null)
+            {
+                throw new CommandException("The light trace is turned off in the config");
+            }
+            try
+            {
+                File path = trace.dump("dumped by " + sender.getName());
+                sender.sendMessage(new TextComponentString("Dumped the light trace of dimension " + world.provider.getDimension() + " to " + path));
+            }
+            catch (IOException e)
+            {
+                throw new CommandException("Could not dump the light trace: " + e);
+            }
+            return;
+        }
+
+        throw new WrongUsageException(USAGE);
+    }
+
+    /**
+     * List the entities, entity types and chunks with the most light writes, each with a link to teleport there
+     * Teleport links are only given for the sender's own dimension, /tp can't change dimension
+     */
+    private static void sendTop(ICommandSender sender, WorldServer world)
+    {
+        LightChurnTracker churn = LightChurnTracker.get(world);
+        boolean linked = sender.getEntityWorld().provider.getDimension() == world.provider.getDimension();
+        sender.sendMessage(new TextComponentString("Light writes in dimension " + world.provider.getDimension() + " over the last 30 to 60 seconds"));
+
+        sender.sendMessage(new TextComponentString("By entity:"));
+        for (LightChurnTracker.Entry entry : churn.getTop(LightChurnTracker.Kind.ENTITY, TOP_ENTRIES))
+        {
+            Entity entity = world.getEntityByID((int) entry.getKey());
+            String name = entity == null ? "gone" : entity.getName();
+            BlockPos pos = entity == null ? entry.getPosition() : entity.getPosition();
+            sender.sendMessage(getEntryLine("#" + entry.getKey() + " " + name, entry, pos, linked));
+        }
+
+        sender.sendMessage(new TextComponentString("By entity type:"));
+        for (LightChurnTracker.Entry entry : churn.getTop(LightChurnTracker.Kind.TYPE, TOP_ENTRIES))
+        {
+            sender.sendMessage(getEntryLine(churn.getTypeName(entry.getKey()), entry, entry.getPosition(), linked));
+        }
+
+        sender.sendMessage(new TextComponentString("By chunk:"));
+        for (LightChurnTracker.Entry entry : churn.getTop(LightChurnTracker.Kind.CHUNK, TOP_ENTRIES))
+        {
+            int chunkX = (int) entry.getKey();
+            int chunkZ = (int) (entry.getKey() >> 32);
+            BlockPos pos = new BlockPos((chunkX << 4) + 8, entry.getPosition().getY(), (chunkZ << 4) + 8);
+            sender.sendMessage(getEntryLine("chunk " + chunkX + ", " + chunkZ, entry, pos, linked));
+        }
+    }
+
+    /**
+     * A line with the entry's write count and coordinates
+     * @param linked whether clicking the coordinates teleports the sender there
+     */
+    private static ITextComponent getEntryLine(String name, LightChurnTracker.Entry entry, BlockPos pos, boolean linked)
+    {
+        String count = entry.getError() > 0 ? entry.getCount() + " writes (at most " + entry.getError() + " over)" : entry.getCount() + " writes";
+        ITextComponent line = new TextComponentString("  " + name + ": " + count + " ");
+
+        String coordinates = pos.getX() + " " + pos.getY() + " " + pos.getZ();
+        ITextComponent link = new TextComponentString("[" + coordinates + "]");
+        if (!linked)
+        {
+            return line.appendSibling(link);
+        }
+        link.setStyle(new Style()
+            .setColor(TextFormatting.AQUA)
+            .setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/tp @s " + coordinates))
+            .setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new TextComponentString("Click to teleport"))));
+        return line.appendSibling(link);
+    }
+
+    /**
+     * World named by the dimension argument at the index, or the sender's world if there is none
+     */
+    private static WorldServer getWorld(ICommandSender sender, String[] args, int index) throws CommandException
+    {
+        if (args.length <= index)
+        {
+            return (WorldServer) sender.getEntityWorld();
+        }
+
+        int dimension = parseInt(args[index]);
+        WorldServer world = DimensionManager.getWorld(dimension);
+        if (world == null)
+        {
+            throw new CommandException("Dimension " + dimension + " isn't loaded");
+        }
+        return world;
+    }
+
+    @Override
+    public List<String> getTabCompletions(MinecraftServer server, ICommandSender sender, String[] args, @Nullable BlockPos targetPos)
+    {
+        if (args.length == 1)
+        {
+            return getListOfStringsMatchingLastWord(args, "audit", "stats", "top", "trace");
+        }
+        if (args.length == 2 && "stats".equals(args[0]))
+        {
+            return getListOfStringsMatchingLastWord(args, "reset");
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,178 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.util.EnumFacing;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.common.capabilities.Capability;
+import net.minecraftforge.common.capabilities.CapabilityInject;
+import net.minecraftforge.common.capabilities.CapabilityManager;
+import net.minecraftforge.common.capabilities.ICapabilitySerializable;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Chunk capability listing the moving light blocks in the chunk, saved with it
+ * as one int per light packed y << 8 | z << 4 | x. Lights still in a chunk
+ * when it was saved are stale by the time it loads again, and the index lets
+ * them be queued for removal right away instead of scanning the chunk or
+ * waiting for their tile entities to time out
+ */
+public class ChunkLightIndex
+{
+    @CapabilityInject(ChunkLightIndex.class)
+    public static Capability<ChunkLightIndex> CAPABILITY = null;
+
+    public static final ResourceLocation KEY = new ResourceLocation(MainMod.MODID, "light_index");
+
+    private final IntOpenHashSet lights = new IntOpenHashSet();
+
+    // Virtual light the chunk was saved with, handed from the chunk IO thread to the load on the server thread
+    private volatile int[] savedVirtualLights;
+
+    /**
+     * Called during pre-init
+     */
+    public static void register()
+    {
+        CapabilityManager.INSTANCE.register(ChunkLightIndex.class, new Storage(), new Callable<ChunkLightIndex>()
+        {
+            @Override
+            public ChunkLightIndex call()
+            {
+                return new ChunkLightIndex();
+            }
+        });
+    }
+
+    /**
+     * Index of a chunk, null if the capability isn't attached
+     */
+    public static ChunkLightIndex get(Chunk chunk)
+    {
+        return CAPABILITY == null ? null : chunk.getCapability(CAPABILITY, null);
+    }
+
+    public void add(BlockPos pos)
+    {
+        lights.add(pack(pos));
+    }
+
+    public void remove(BlockPos pos)
+    {
+        lights.remove(pack(pos));
+    }
+
+    public boolean isEmpty()
+    {
+        return lights.isEmpty();
+    }
+
+    /**
+     * Add the world positions of the indexed lights to the list and empty the index
+     */
+    public void drainTo(Chunk chunk, List<BlockPos> positions)
+    {
+        int baseX = chunk.x << 4;
+        int baseZ = chunk.z << 4;
+
+        IntIterator iterator = lights.iterator();
+        while (iterator.hasNext())
+        {
+            int packed = iterator.nextInt();
+            positions.add(new BlockPos(baseX + (packed & 15), packed >> 8, baseZ + (packed >> 4 & 15)));
+        }
+        lights.clear();
+    }
+
+    public void setSavedVirtualLights(int[] data)
+    {
+        savedVirtualLights = data;
+    }
+
+    /**
+     * Virtual light read with the chunk's save data, null once taken
+     */
+    public int[] takeSavedVirtualLights()
+    {
+        int[] data = savedVirtualLights;
+        savedVirtualLights = null;
+        return data;
+    }
+
+    private static int pack(BlockPos pos)
+    {
+        return pos.getY() << 8 | (pos.getZ() & 15) << 4 | pos.getX() & 15;
+    }
+
+    public NBTTagIntArray serializeNBT()
+    {
+        return new NBTTagIntArray(lights.toIntArray());
+    }
+
+    public void deserializeNBT(NBTTagIntArray nbt)
+    {
+        lights.clear();
+        for (int packed : nbt.getIntArray())
+        {
+            lights.add(packed);
+        }
+    }
+
+    /**
+     * Attached to every chunk through AttachCapabilitiesEvent
+     */
+    public static class Provider implements ICapabilitySerializable<NBTTagIntArray>
+    {
+        private final ChunkLightIndex index = new ChunkLightIndex();
+
+        @Override
+        public boolean hasCapability(Capability<?> capability, EnumFacing facing)
+        {
+            return capability == CAPABILITY;
+        }
+
+        @Override
+        public <T> T getCapability(Capability<T> capability, EnumFacing facing)
+        {
+            return capability == CAPABILITY ? CAPABILITY.cast(index) : null;
+        }
+
+        @Override
+        public NBTTagIntArray serializeNBT()
+        {
+            return index.serializeNBT();
+        }
+
+        @Override
+        public void deserializeNBT(NBTTagIntArray nbt)
+        {
+            index.deserializeNBT(nbt);
+        }
+    }
+
+    private static class Storage implements Capability.IStorage<ChunkLightIndex>
+    {
+        @Override
+        public NBTBase writeNBT(Capability<ChunkLightIndex> capability, ChunkLightIndex instance, EnumFacing side)
+        {
+            return instance.serializeNBT();
+        }
+
+        @Override
+        public void readNBT(Capability<ChunkLightIndex> capability, ChunkLightIndex instance, EnumFacing side, NBTBase nbt)
+        {
+            if (nbt instanceof NBTTagIntArray)
+            {
+                instance.deserializeNBT((NBTTagIntArray) nbt);
+            }
+        }
+    }
+}
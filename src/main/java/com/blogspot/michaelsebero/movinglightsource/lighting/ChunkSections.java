@@ -0,0 +1,163 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.blocks.BlockMovingLightSource;
+
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.util.BitArray;
+import net.minecraft.util.IntIdentityHashBiMap;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.BlockStateContainer;
+import net.minecraft.world.chunk.BlockStatePaletteHashMap;
+import net.minecraft.world.chunk.BlockStatePaletteLinear;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.IBlockStatePalette;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Checks against a world's chunk section arrays that never load a chunk or create a section
+ */
+public final class ChunkSections
+{
+    // Palette fields are private, they are found by type so the lookup works with and without obfuscation
+    private static final Field CONTAINER_PALETTE = findField(BlockStateContainer.class, IBlockStatePalette.class);
+    private static final Field CONTAINER_STORAGE = findField(BlockStateContainer.class, BitArray.class);
+    private static final Field LINEAR_STATES = findField(BlockStatePaletteLinear.class, IBlockState[].class);
+    private static final Field HASH_MAP_STATES = findField(BlockStatePaletteHashMap.class, IntIdentityHashBiMap.class);
+
+    // Light falls off by one per block, nothing this far from a light is lit by it
+    private static final int MAX_LIGHT = 15;
+
+    private ChunkSections()
+    {
+    }
+
+    /**
+     * Whether the 16 cubed section holding the position was never created
+     * Writing a block or block light there makes vanilla allocate the section, which
+     * then stays in memory and is saved with the chunk even once it is empty again.
+     * False when the chunk isn't loaded or y is outside the world
+     */
+    public static boolean isMissing(World world, int x, int y, int z)
+    {
+        if (y < 0 || y >= 256)
+        {
+            return false;
+        }
+
+        Chunk chunk = world.getChunkProvider().getLoadedChunk(x >> 4, z >> 4);
+        return chunk != null && chunk.getBlockStorageArray()[y >> 4] == Chunk.NULL_BLOCK_STORAGE;
+    }
+
+    /**
+     * Whether a light block at the position would only light open sky: its section was
+     * never created, and neither was the one below or the position is further above the
+     * ground than light reaches. A light just above the top of a section, e.g. on ground
+     * at y 63, still lights the ground and isn't open sky
+     */
+    public static boolean isOpenSky(World world, int x, int y, int z)
+    {
+        if (!isMissing(world, x, y, z))
+        {
+            return false;
+        }
+        if (y < 16 || isMissing(world, x, y - 16, z))
+        {
+            return true;
+        }
+
+        Chunk chunk = world.getChunkProvider().getLoadedChunk(x >> 4, z >> 4);
+        return y >= chunk.getHeightValue(x & 15, z & 15) + MAX_LIGHT;
+    }
+
+    /**
+     * Whether a section's palette has a moving light block state in it
+     * Sections with a small palette are answered from the palette alone. Sections using
+     * the global palette, or if the palette can't be read, always may contain one
+     */
+    public static boolean mayContainLights(ExtendedBlockStorage storage)
+    {
+        if (storage == Chunk.NULL_BLOCK_STORAGE || storage.isEmpty())
+        {
+            return false;
+        }
+
+        try
+        {
+            Object palette = CONTAINER_PALETTE == null ? null : CONTAINER_PALETTE.get(storage.getData());
+            if (palette instanceof BlockStatePaletteLinear && LINEAR_STATES != null)
+            {
+                // Unused entries past the palette size are null
+                for (IBlockState state : (IBlockState[]) LINEAR_STATES.get(palette))
+                {
+                    if (state != null && state.getBlock() instanceof BlockMovingLightSource)
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (palette instanceof BlockStatePaletteHashMap && HASH_MAP_STATES != null)
+            {
+                for (Object state : (IntIdentityHashBiMap<?>) HASH_MAP_STATES.get(palette))
+                {
+                    if (state != null && ((IBlockState) state).getBlock() instanceof BlockMovingLightSource)
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            // Fall through to the full scan
+        }
+        return true;
+    }
+
+    /**
+     * Palette of a section's block states, null if it can't be read
+     */
+    public static IBlockStatePalette getPalette(BlockStateContainer container)
+    {
+        try
+        {
+            return CONTAINER_PALETTE == null ? null : (IBlockStatePalette) CONTAINER_PALETTE.get(container);
+        }
+        catch (IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Packed palette indices of a section's block states, null if they can't be read
+     */
+    public static BitArray getStorage(BlockStateContainer container)
+    {
+        try
+        {
+            return CONTAINER_STORAGE == null ? null : (BitArray) CONTAINER_STORAGE.get(container);
+        }
+        catch (IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+
+    private static Field findField(Class<?> owner, Class<?> type)
+    {
+        for (Field field : owner.getDeclaredFields())
+        {
+            if (field.getType() == type && !Modifier.isStatic(field.getModifiers()))
+            {
+                field.setAccessible(true);
+                return field;
+            }
+        }
+        return null;
+    }
+}
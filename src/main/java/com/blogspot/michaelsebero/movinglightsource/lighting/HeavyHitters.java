@@ -0,0 +1,152 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+/**
+ * Space-saving sketch of the most frequent keys in a stream, in fixed memory.
+ * When the sketch is full an unseen key replaces the least counted one and
+ * inherits its count as the error, so a count overstates the true one by at
+ * most its error and every key more frequent than the smallest count is kept.
+ * The last position seen with each key is kept to point at where it happened.
+ *
+ * Slots are kept in a min-heap on their counts, so finding the least counted
+ * key is the heap's root and a count going up is a sift down, O(log capacity)
+ */
+public class HeavyHitters
+{
+    private final long[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final long[] positions;
+    private final Long2IntOpenHashMap slots;
+
+    // Slots ordered by count with the least counted first, and where each slot sits in it
+    private final int[] heap;
+    private final int[] heapIndex;
+    private int size = 0;
+
+    public HeavyHitters(int capacity)
+    {
+        keys = new long[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        positions = new long[capacity];
+        heap = new int[capacity];
+        heapIndex = new int[capacity];
+        slots = new Long2IntOpenHashMap(capacity * 2);
+        slots.defaultReturnValue(-1);
+    }
+
+    /**
+     * Count one occurrence of the key
+     * @param position packed position it happened at
+     */
+    public void add(long key, long position)
+    {
+        int slot = slots.get(key);
+        if (slot < 0)
+        {
+            if (size < keys.length)
+            {
+                slot = size++;
+                counts[slot] = 0;
+                errors[slot] = 0;
+                heap[slot] = slot;
+                heapIndex[slot] = slot;
+                siftUp(slot);
+            }
+            else
+            {
+                // Take over the least counted key, whose count becomes the error
+                slot = heap[0];
+                slots.remove(keys[slot]);
+                errors[slot] = counts[slot];
+            }
+            keys[slot] = key;
+            slots.put(key, slot);
+        }
+        counts[slot]++;
+        positions[slot] = position;
+        siftDown(heapIndex[slot]);
+    }
+
+    /**
+     * Move a slot towards the root past slots with higher counts
+     */
+    private void siftUp(int index)
+    {
+        int slot = heap[index];
+        while (index > 0)
+        {
+            int parent = (index - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[slot])
+            {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(slot, index);
+    }
+
+    /**
+     * Move a slot whose count went up below any child with a lower count
+     */
+    private void siftDown(int index)
+    {
+        int slot = heap[index];
+        int half = size >>> 1;
+        while (index < half)
+        {
+            int child = 2 * index + 1;
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]])
+            {
+                child++;
+            }
+            if (counts[slot] <= counts[heap[child]])
+            {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(slot, index);
+    }
+
+    private void place(int slot, int index)
+    {
+        heap[index] = slot;
+        heapIndex[slot] = index;
+    }
+
+    public void clear()
+    {
+        slots.clear();
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long getKey(int index)
+    {
+        return keys[index];
+    }
+
+    public long getCount(int index)
+    {
+        return counts[index];
+    }
+
+    public long getError(int index)
+    {
+        return errors[index];
+    }
+
+    public long getPosition(int index)
+    {
+        return positions[index];
+    }
+}
@@ -0,0 +1,19 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+/**
+ * Block light storage the light propagator reads and writes, positions are packed with {@link LightPos}
+ */
+public interface ILightAccess
+{
+    // whether the position can be read and written
+    boolean contains(long pos);
+
+    int getLight(long pos);
+
+    void setLight(long pos, int level);
+
+    int getOpacity(long pos);
+
+    // light emitted at the position by its block or by a virtual light emitter
+    int getSourceLevel(long pos);
+}
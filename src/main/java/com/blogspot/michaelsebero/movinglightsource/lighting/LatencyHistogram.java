@@ -0,0 +1,96 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import java.util.Arrays;
+
+/**
+ * Fixed bucket histogram of durations in nanoseconds. Each power of two is
+ * split into four buckets, so a percentile is within 25% of the true value
+ * and recording is a shift and an array increment. Server thread only
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+    private long max = 0;
+
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        counts[getBucket(nanos)]++;
+        total++;
+        if (nanos > max)
+        {
+            max = nanos;
+        }
+    }
+
+    public void reset()
+    {
+        Arrays.fill(counts, 0L);
+        total = 0;
+        max = 0;
+    }
+
+    public long getCount()
+    {
+        return total;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Upper bound of the bucket holding the percentile, never above the max
+     * @param fraction percentile as a fraction, e.g. 0.99
+     */
+    public long getPercentile(double fraction)
+    {
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1L, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(getUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int getBucket(long nanos)
+    {
+        if (nanos < SUB_BUCKETS)
+        {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long getUpperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,187 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.blocks.BlockMovingLightSource;
+import com.blogspot.michaelsebero.movinglightsource.tileentities.TileEntityMovingLightSource;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.item.EntityItem;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Looks through a world's loaded chunks for light blocks that nothing owns and
+ * removes them. The chunks loaded when the audit starts are visited a few per
+ * tick within a time budget. Sections whose palette has no light block state
+ * are skipped without reading their blocks.
+ *
+ * A light counts as owned if a tracker owns its position, work is still
+ * queued for it, or its tile entity follows an entity that is still alive
+ */
+public class LightAuditor
+{
+    // Time the audit may take each tick
+    private static final long BUDGET_MICROS = 1000L;
+
+    private static final Map<Integer, LightAuditor> AUDITORS = new HashMap<>();
+
+    private final World world;
+    private final ICommandSender sender;
+    private final LongArrayList chunks = new LongArrayList();
+    private final BlockPos.MutableBlockPos cursor = new BlockPos.MutableBlockPos();
+    private final long startNanos = System.nanoTime();
+
+    private int next = 0;
+    private int ticks = 0;
+    private int chunksAudited = 0;
+    private int sectionsScanned = 0;
+    private int sectionsSkipped = 0;
+    private int lightsFound = 0;
+    private int orphansRemoved = 0;
+
+    private LightAuditor(WorldServer world, ICommandSender sender)
+    {
+        this.world = world;
+        this.sender = sender;
+
+        for (Chunk chunk : world.getChunkProvider().getLoadedChunks())
+        {
+            chunks.add(ChunkPos.asLong(chunk.x, chunk.z));
+        }
+    }
+
+    /**
+     * Start auditing a world's loaded chunks, the result is sent to the sender when done
+     * @return false if an audit of the world is already running
+     */
+    public static boolean start(WorldServer world, ICommandSender sender)
+    {
+        int dimension = world.provider.getDimension();
+        if (AUDITORS.containsKey(dimension))
+        {
+            return false;
+        }
+        AUDITORS.put(dimension, new LightAuditor(world, sender));
+        return true;
+    }
+
+    /**
+     * Running audit of a world, null if there is none
+     */
+    public static LightAuditor get(World world)
+    {
+        return AUDITORS.get(world.provider.getDimension());
+    }
+
+    public static void remove(World world)
+    {
+        AUDITORS.remove(world.provider.getDimension());
+    }
+
+    /**
+     * Audit chunks until the budget is spent, at least one chunk per tick
+     */
+    public void tick()
+    {
+        long deadline = System.nanoTime() + BUDGET_MICROS * 1000L;
+        ticks++;
+
+        while (next < chunks.size())
+        {
+            long key = chunks.getLong(next++);
+            Chunk chunk = world.getChunkProvider().getLoadedChunk((int) key, (int) (key >> 32));
+            if (chunk != null)
+            {
+                auditChunk(chunk);
+                chunksAudited++;
+            }
+
+            if (System.nanoTime() >= deadline)
+            {
+                return;
+            }
+        }
+
+        finish();
+    }
+
+    private void auditChunk(Chunk chunk)
+    {
+        ExtendedBlockStorage[] sections = chunk.getBlockStorageArray();
+        for (int i = 0; i < sections.length; i++)
+        {
+            ExtendedBlockStorage storage = sections[i];
+            if (storage == Chunk.NULL_BLOCK_STORAGE || storage.isEmpty())
+            {
+                continue;
+            }
+            if (!ChunkSections.mayContainLights(storage))
+            {
+                sectionsSkipped++;
+                continue;
+            }
+
+            sectionsScanned++;
+            for (int y = 0; y < 16; y++)
+            {
+                for (int z = 0; z < 16; z++)
+                {
+                    for (int x = 0; x < 16; x++)
+                    {
+                        if (storage.get(x, y, z).getBlock() instanceof BlockMovingLightSource)
+                        {
+                            lightsFound++;
+                            cursor.setPos(chunk.x << 4 | x, storage.getYLocation() + y, chunk.z << 4 | z);
+                            if (isOrphan(chunk, cursor))
+                            {
+                                LightWorkQueue.get(world).enqueueRemove(cursor.toImmutable(), false, LightTrace.Reason.AUDIT);
+                                orphansRemoved++;
+                                LightMetrics.get(world).increment(LightMetrics.Counter.ORPHANS_SWEPT);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isOrphan(Chunk chunk, BlockPos pos)
+    {
+        long packed = pos.toLong();
+        if (LightTracker.getItems(world).getOwner(packed) != LightTracker.NO_OWNER ||
+            LightTracker.getProjectiles(world).getOwner(packed) != LightTracker.NO_OWNER ||
+            LightWorkQueue.get(world).isPending(pos))
+        {
+            return false;
+        }
+
+        TileEntity te = chunk.getTileEntity(pos, Chunk.EnumCreateEntityType.CHECK);
+        if (te instanceof TileEntityMovingLightSource)
+        {
+            EntityLivingBase living = ((TileEntityMovingLightSource) te).getEntityLiving();
+            EntityItem item = ((TileEntityMovingLightSource) te).getTrackedItem();
+            return (living == null || living.isDead) && (item == null || item.isDead);
+        }
+        return true;
+    }
+
+    private void finish()
+    {
+        remove(world);
+
+        long millis = (System.nanoTime() - startNanos) / 1000000L;
+        sender.sendMessage(new TextComponentString("Light audit of dimension " + world.provider.getDimension() + ": "
+            + chunksAudited + " chunks, " + sectionsScanned + " sections scanned, " + sectionsSkipped + " skipped by palette, "
+            + lightsFound + " light blocks, " + orphansRemoved + " orphans removed, " + millis + " ms over " + ticks + " ticks"));
+    }
+}
@@ -0,0 +1,232 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which entities, entity types and chunks cause the most light block writes
+ * in a world. Each is counted in a {@link HeavyHitters} sketch over windows of
+ * thirty seconds, and the current window is read together with the one before
+ * it, so the results cover the last thirty to sixty seconds. Server thread only
+ */
+public class LightChurnTracker
+{
+    public enum Kind
+    {
+        ENTITY,
+        TYPE,
+        CHUNK
+    }
+
+    private static final int CAPACITY = 64;
+    private static final long WINDOW_TICKS = 600L;
+
+    private static final Map<Integer, LightChurnTracker> TRACKERS = new HashMap<>();
+
+    private final World world;
+    private HeavyHitters[] current = createSketches();
+    private HeavyHitters[] previous = createSketches();
+    private long windowStart;
+
+    // Entity classes are counted by index and named when read
+    private final Reference2IntOpenHashMap<Class<? extends Entity>> typeIds = new Reference2IntOpenHashMap<>();
+    private final List<Class<? extends Entity>> types = new ArrayList<>();
+
+    private LightChurnTracker(World world)
+    {
+        this.world = world;
+        windowStart = world.getTotalWorldTime();
+        typeIds.defaultReturnValue(-1);
+    }
+
+    /**
+     * Get the tracker for a world, creating it if needed
+     */
+    public static LightChurnTracker get(World world)
+    {
+        int dimension = world.provider.getDimension();
+        LightChurnTracker tracker = TRACKERS.get(dimension);
+        if (tracker == null)
+        {
+            tracker = new LightChurnTracker(world);
+            TRACKERS.put(dimension, tracker);
+        }
+        return tracker;
+    }
+
+    public static void remove(World world)
+    {
+        TRACKERS.remove(world.provider.getDimension());
+    }
+
+    private static HeavyHitters[] createSketches()
+    {
+        HeavyHitters[] sketches = new HeavyHitters[Kind.values().length];
+        for (int i = 0; i < sketches.length; i++)
+        {
+            sketches[i] = new HeavyHitters(CAPACITY);
+        }
+        return sketches;
+    }
+
+    /**
+     * Count a light block write
+     * @param owner entity the light follows, only the chunk is counted if null
+     */
+    public void record(Entity owner, BlockPos pos)
+    {
+        rotate();
+
+        long packed = pos.toLong();
+        current[Kind.CHUNK.ordinal()].add(ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4), packed);
+        if (owner != null)
+        {
+            current[Kind.ENTITY.ordinal()].add(owner.getEntityId(), packed);
+            current[Kind.TYPE.ordinal()].add(getTypeId(owner.getClass()), packed);
+        }
+    }
+
+    private int getTypeId(Class<? extends Entity> type)
+    {
+        int id = typeIds.getInt(type);
+        if (id < 0)
+        {
+            id = types.size();
+            types.add(type);
+            typeIds.put(type, id);
+        }
+        return id;
+    }
+
+    /**
+     * Start a new window once the current one is over, dropping both if no writes came for a whole window
+     */
+    private void rotate()
+    {
+        long now = world.getTotalWorldTime();
+        if (now - windowStart < WINDOW_TICKS)
+        {
+            return;
+        }
+
+        HeavyHitters[] oldest = previous;
+        previous = current;
+        current = oldest;
+        for (HeavyHitters sketch : current)
+        {
+            sketch.clear();
+        }
+        if (now - windowStart >= WINDOW_TICKS * 2)
+        {
+            for (HeavyHitters sketch : previous)
+            {
+                sketch.clear();
+            }
+        }
+        windowStart = now;
+    }
+
+    /**
+     * The keys with the most writes over the last one to two windows, most first
+     */
+    public List<Entry> getTop(Kind kind, int limit)
+    {
+        rotate();
+
+        Long2ObjectMap<Entry> merged = new Long2ObjectOpenHashMap<>();
+        addEntries(merged, previous[kind.ordinal()]);
+        addEntries(merged, current[kind.ordinal()]);
+
+        List<Entry> entries = new ArrayList<>(merged.values());
+        Collections.sort(entries);
+        return entries.size() > limit ? entries.subList(0, limit) : entries;
+    }
+
+    private static void addEntries(Long2ObjectMap<Entry> merged, HeavyHitters sketch)
+    {
+        for (int i = 0; i < sketch.size(); i++)
+        {
+            Entry entry = merged.get(sketch.getKey(i));
+            if (entry == null)
+            {
+                entry = new Entry(sketch.getKey(i));
+                merged.put(entry.key, entry);
+            }
+            entry.count += sketch.getCount(i);
+            entry.error += sketch.getError(i);
+            entry.position = BlockPos.fromLong(sketch.getPosition(i));
+        }
+    }
+
+    /**
+     * Registry name of a counted entity type, or its class name for types without one such as players
+     */
+    public String getTypeName(long typeId)
+    {
+        Class<? extends Entity> type = types.get((int) typeId);
+        ResourceLocation key = EntityList.getKey(type);
+        return key == null ? type.getSimpleName() : key.toString();
+    }
+
+    /**
+     * A key's writes, which overstate the true count by at most the error.
+     * Entries sort with the most writes first
+     */
+    public static class Entry implements Comparable<Entry>
+    {
+        private final long key;
+        private long count;
+        private long error;
+        private BlockPos position;
+
+        private Entry(long key)
+        {
+            this.key = key;
+        }
+
+        /**
+         * Entity id, type id or packed chunk position depending on the kind
+         */
+        public long getKey()
+        {
+            return key;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getError()
+        {
+            return error;
+        }
+
+        /**
+         * Where the last counted write happened
+         */
+        public BlockPos getPosition()
+        {
+            return position;
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            return Long.compare(other.count, count);
+        }
+    }
+}
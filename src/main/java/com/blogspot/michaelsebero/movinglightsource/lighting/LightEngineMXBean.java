@@ -0,0 +1,76 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import java.util.Map;
+
+/**
+ * JMX view of one world's light engine, for JConsole or VisualVM
+ * Metrics are read only. The tunables are shared by every world and setting one
+ * takes effect at the end of the next server tick
+ */
+public interface LightEngineMXBean
+{
+    int getDimension();
+
+    int getTrackedItems();
+
+    int getTrackedProjectiles();
+
+    int getVirtualEmitters();
+
+    int getActiveLightBlocks();
+
+    int getQueueDepth();
+
+    double getWritesPerSecond();
+
+    /**
+     * Relights run by the mod, on top of the one vanilla runs around each write
+     */
+    double getRelightsPerSecond();
+
+    long getOrphansSwept();
+
+    /**
+     * Total nanoseconds spent in each event handler
+     */
+    Map<String, Long> getHandlerNanos();
+
+    /**
+     * Nanoseconds per world tick spent in each stage at the 50th percentile, as of the last window
+     */
+    Map<String, Long> getStageLatencyP50Nanos();
+
+    Map<String, Long> getStageLatencyP99Nanos();
+
+    Map<String, Long> getStageLatencyP999Nanos();
+
+    Map<String, Long> getStageLatencyMaxNanos();
+
+    int getItemUpdateInterval();
+
+    void setItemUpdateInterval(int ticks);
+
+    int getProjectileUpdateInterval();
+
+    void setProjectileUpdateInterval(int ticks);
+
+    int getLivingUpdateInterval();
+
+    void setLivingUpdateInterval(int ticks);
+
+    int getWorkBudgetMicros();
+
+    void setWorkBudgetMicros(int micros);
+
+    int getMinWorkBudgetMicros();
+
+    void setMinWorkBudgetMicros(int micros);
+
+    int getQueueCapacity();
+
+    void setQueueCapacity(int capacity);
+
+    int getParallelTargetThreshold();
+
+    void setParallelTargetThreshold(int emitters);
+}
@@ -0,0 +1,262 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightTunables.Tunable;
+
+import net.minecraft.world.World;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers a {@link LightEngineMXBean} per server world with the platform MBean server
+ * The bean only reads what the metrics published at the end of their last window,
+ * so JMX threads never touch the engine itself
+ */
+public class LightEngineMonitor implements LightEngineMXBean
+{
+    private final int dimension;
+    private final LightMetrics metrics;
+
+    private LightEngineMonitor(World world)
+    {
+        dimension = world.provider.getDimension();
+        metrics = LightMetrics.get(world);
+    }
+
+    /**
+     * Register the bean of a world that is loading
+     */
+    public static void register(World world)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getName(world);
+            if (server.isRegistered(name))
+            {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new LightEngineMonitor(world), name);
+        }
+        catch (JMException e)
+        {
+            System.out.println("Could not register the light engine MBean: " + e);
+        }
+    }
+
+    /**
+     * Unregister the bean of a world that is unloading
+     */
+    public static void unregister(World world)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getName(world);
+            if (server.isRegistered(name))
+            {
+                server.unregisterMBean(name);
+            }
+        }
+        catch (JMException e)
+        {
+            System.out.println("Could not unregister the light engine MBean: " + e);
+        }
+    }
+
+    private static ObjectName getName(World world) throws JMException
+    {
+        return new ObjectName(MainMod.class.getPackage().getName() + ":type=LightEngine,dimension=" + world.provider.getDimension());
+    }
+
+    @Override
+    public int getDimension()
+    {
+        return dimension;
+    }
+
+    @Override
+    public int getTrackedItems()
+    {
+        return metrics.getTrackedItems();
+    }
+
+    @Override
+    public int getTrackedProjectiles()
+    {
+        return metrics.getTrackedProjectiles();
+    }
+
+    @Override
+    public int getVirtualEmitters()
+    {
+        return metrics.getVirtualEmitters();
+    }
+
+    @Override
+    public int getActiveLightBlocks()
+    {
+        return metrics.getLightTileEntities();
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return metrics.getQueueDepth();
+    }
+
+    @Override
+    public double getWritesPerSecond()
+    {
+        return metrics.getRate(LightMetrics.Counter.PLACED)
+            + metrics.getRate(LightMetrics.Counter.REMOVED)
+            + metrics.getRate(LightMetrics.Counter.LEVEL_CHANGED);
+    }
+
+    @Override
+    public double getRelightsPerSecond()
+    {
+        return metrics.getRate(LightMetrics.Counter.RELIGHTS);
+    }
+
+    @Override
+    public long getOrphansSwept()
+    {
+        return metrics.getPublishedCount(LightMetrics.Counter.ORPHANS_SWEPT);
+    }
+
+    @Override
+    public Map<String, Long> getHandlerNanos()
+    {
+        Map<String, Long> nanos = new LinkedHashMap<>();
+        for (LightMetrics.Handler handler : LightMetrics.Handler.values())
+        {
+            nanos.put(handler.getLabel(), metrics.getPublishedHandlerNanos(handler));
+        }
+        return nanos;
+    }
+
+    @Override
+    public Map<String, Long> getStageLatencyP50Nanos()
+    {
+        return getStagePercentiles(0);
+    }
+
+    @Override
+    public Map<String, Long> getStageLatencyP99Nanos()
+    {
+        return getStagePercentiles(1);
+    }
+
+    @Override
+    public Map<String, Long> getStageLatencyP999Nanos()
+    {
+        return getStagePercentiles(2);
+    }
+
+    @Override
+    public Map<String, Long> getStageLatencyMaxNanos()
+    {
+        return getStagePercentiles(3);
+    }
+
+    private Map<String, Long> getStagePercentiles(int index)
+    {
+        Map<String, Long> nanos = new LinkedHashMap<>();
+        for (LightMetrics.Stage stage : LightMetrics.Stage.values())
+        {
+            nanos.put(stage.getLabel(), metrics.getPublishedStagePercentiles(stage)[index]);
+        }
+        return nanos;
+    }
+
+    @Override
+    public int getItemUpdateInterval()
+    {
+        return LightTunables.get(Tunable.ITEM_INTERVAL);
+    }
+
+    @Override
+    public void setItemUpdateInterval(int ticks)
+    {
+        LightTunables.stage(Tunable.ITEM_INTERVAL, ticks);
+    }
+
+    @Override
+    public int getProjectileUpdateInterval()
+    {
+        return LightTunables.get(Tunable.PROJECTILE_INTERVAL);
+    }
+
+    @Override
+    public void setProjectileUpdateInterval(int ticks)
+    {
+        LightTunables.stage(Tunable.PROJECTILE_INTERVAL, ticks);
+    }
+
+    @Override
+    public int getLivingUpdateInterval()
+    {
+        return LightTunables.get(Tunable.LIVING_INTERVAL);
+    }
+
+    @Override
+    public void setLivingUpdateInterval(int ticks)
+    {
+        LightTunables.stage(Tunable.LIVING_INTERVAL, ticks);
+    }
+
+    @Override
+    public int getWorkBudgetMicros()
+    {
+        return LightTunables.get(Tunable.WORK_BUDGET_MICROS);
+    }
+
+    @Override
+    public void setWorkBudgetMicros(int micros)
+    {
+        LightTunables.stage(Tunable.WORK_BUDGET_MICROS, micros);
+    }
+
+    @Override
+    public int getMinWorkBudgetMicros()
+    {
+        return LightTunables.get(Tunable.MIN_WORK_BUDGET_MICROS);
+    }
+
+    @Override
+    public void setMinWorkBudgetMicros(int micros)
+    {
+        LightTunables.stage(Tunable.MIN_WORK_BUDGET_MICROS, micros);
+    }
+
+    @Override
+    public int getQueueCapacity()
+    {
+        return LightTunables.get(Tunable.QUEUE_CAPACITY);
+    }
+
+    @Override
+    public void setQueueCapacity(int capacity)
+    {
+        LightTunables.stage(Tunable.QUEUE_CAPACITY, capacity);
+    }
+
+    @Override
+    public int getParallelTargetThreshold()
+    {
+        return LightTunables.get(Tunable.PARALLEL_TARGET_THRESHOLD);
+    }
+
+    @Override
+    public void setParallelTargetThreshold(int emitters)
+    {
+        LightTunables.stage(Tunable.PARALLEL_TARGET_THRESHOLD, emitters);
+    }
+}
@@ -0,0 +1,337 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for light writes and per-tick handler times, so
+ * a recording of a lag spike shows which entities and chunks caused relights
+ * instead of a bare EventHandler frame.
+ *
+ * The mod targets Java 8, so jdk.jfr is only reached through reflection and
+ * the event types are built at runtime with EventFactory. Where JFR is missing
+ * every call is a no-op, and where it is present an event is only created
+ * while a recording has its type enabled. Server thread only
+ */
+public final class LightFlightRecorder
+{
+    public enum Action
+    {
+        PLACE("LightPlace", "Light Place", "A moving light block was placed"),
+        REMOVE("LightRemove", "Light Remove", "A moving light block was removed"),
+        LEVEL_CHANGE("LightLevelChange", "Light Level Change", "A moving light block changed its light level");
+
+        private final String name;
+        private final String label;
+        private final String description;
+
+        Action(String name, String label, String description)
+        {
+            this.name = name;
+            this.label = label;
+            this.description = description;
+        }
+    }
+
+    private static final String CATEGORY = "Moving Light Source";
+
+    // Field order of the write events, Event.set takes the index
+    private static final int FIELD_DIMENSION = 0;
+    private static final int FIELD_X = 1;
+    private static final int FIELD_Y = 2;
+    private static final int FIELD_Z = 3;
+    private static final int FIELD_CHUNK_X = 4;
+    private static final int FIELD_CHUNK_Z = 5;
+    private static final int FIELD_OLD_LEVEL = 6;
+    private static final int FIELD_NEW_LEVEL = 7;
+    private static final int FIELD_OWNER_TYPE = 8;
+    private static final int FIELD_OWNER_ID = 9;
+    private static final int FIELD_LATENCY = 10;
+
+    private static boolean initialized = false;
+    private static boolean available = false;
+
+    private static Method createFactory;
+    private static Method newEvent;
+    private static Method isEnabled;
+    private static Method begin;
+    private static Method end;
+    private static Method commit;
+    private static Method set;
+    private static Constructor<?> newAnnotation;
+    private static Constructor<?> newField;
+    private static Class<?> nameAnnotation;
+    private static Class<?> labelAnnotation;
+    private static Class<?> descriptionAnnotation;
+    private static Class<?> categoryAnnotation;
+    private static Class<?> stackTraceAnnotation;
+    private static Class<?> timespanAnnotation;
+
+    private static final EventType[] WRITE_TYPES = new EventType[Action.values().length];
+    private static EventType tickSummaryType;
+
+    private LightFlightRecorder()
+    {
+    }
+
+    /**
+     * Start timing a light write
+     * @return the event to pass to {@link #commitWrite}, null when no recording wants it
+     */
+    public static Object beginWrite(Action action)
+    {
+        if (!isAvailable() || !WRITE_TYPES[action.ordinal()].isEnabled())
+        {
+            return null;
+        }
+
+        try
+        {
+            Object event = newEvent.invoke(WRITE_TYPES[action.ordinal()].factory);
+            begin.invoke(event);
+            return event;
+        }
+        catch (ReflectiveOperationException e)
+        {
+            disable(e);
+            return null;
+        }
+    }
+
+    /**
+     * Finish and commit an event from {@link #beginWrite}
+     * @param owner entity the light follows, null if unknown as for removals
+     * @param latencyNanos time the write waited in the queue, 0 if it wasn't queued
+     */
+    public static void commitWrite(Object event, World world, BlockPos pos, int oldLevel, int newLevel, Entity owner, long latencyNanos)
+    {
+        try
+        {
+            end.invoke(event);
+            set.invoke(event, FIELD_DIMENSION, world.provider.getDimension());
+            set.invoke(event, FIELD_X, pos.getX());
+            set.invoke(event, FIELD_Y, pos.getY());
+            set.invoke(event, FIELD_Z, pos.getZ());
+            set.invoke(event, FIELD_CHUNK_X, pos.getX() >> 4);
+            set.invoke(event, FIELD_CHUNK_Z, pos.getZ() >> 4);
+            set.invoke(event, FIELD_OLD_LEVEL, oldLevel);
+            set.invoke(event, FIELD_NEW_LEVEL, newLevel);
+            set.invoke(event, FIELD_OWNER_TYPE, getOwnerType(owner));
+            set.invoke(event, FIELD_OWNER_ID, owner == null ? -1 : owner.getEntityId());
+            set.invoke(event, FIELD_LATENCY, latencyNanos);
+            commit.invoke(event);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            disable(e);
+        }
+    }
+
+    /**
+     * Commit one summary event with the time and calls of each handler during a world tick
+     */
+    public static void commitTickSummary(World world, long[] handlerNanos, long[] handlerCalls)
+    {
+        if (!isAvailable() || !tickSummaryType.isEnabled())
+        {
+            return;
+        }
+
+        try
+        {
+            Object event = newEvent.invoke(tickSummaryType.factory);
+            set.invoke(event, 0, world.provider.getDimension());
+            for (int i = 0; i < handlerNanos.length; i++)
+            {
+                set.invoke(event, 1 + i * 2, handlerNanos[i]);
+                set.invoke(event, 2 + i * 2, handlerCalls[i]);
+            }
+            commit.invoke(event);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            disable(e);
+        }
+    }
+
+    /**
+     * Type of the owner as its registry name, or its class for entities without one such as players
+     */
+    private static String getOwnerType(Entity owner)
+    {
+        if (owner == null)
+        {
+            return "none";
+        }
+        ResourceLocation key = EntityList.getKey(owner);
+        return key == null ? owner.getClass().getSimpleName() : key.toString();
+    }
+
+    private static boolean isAvailable()
+    {
+        if (!MainMod.flightRecorderEvents)
+        {
+            return false;
+        }
+        if (!initialized)
+        {
+            initialized = true;
+            init();
+        }
+        return available;
+    }
+
+    private static void init()
+    {
+        try
+        {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> fieldClass = Class.forName("jdk.jfr.ValueDescriptor");
+
+            createFactory = factoryClass.getMethod("create", List.class, List.class);
+            newEvent = factoryClass.getMethod("newEvent");
+            isEnabled = eventClass.getMethod("isEnabled");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            newAnnotation = annotationClass.getConstructor(Class.class, Object.class);
+            newField = fieldClass.getConstructor(Class.class, String.class, List.class);
+            nameAnnotation = Class.forName("jdk.jfr.Name");
+            labelAnnotation = Class.forName("jdk.jfr.Label");
+            descriptionAnnotation = Class.forName("jdk.jfr.Description");
+            categoryAnnotation = Class.forName("jdk.jfr.Category");
+            stackTraceAnnotation = Class.forName("jdk.jfr.StackTrace");
+            timespanAnnotation = Class.forName("jdk.jfr.Timespan");
+
+            for (Action action : Action.values())
+            {
+                WRITE_TYPES[action.ordinal()] = new EventType(action.name, action.label, action.description, getWriteFields());
+            }
+            tickSummaryType = new EventType("LightTickSummary", "Light Tick Summary", "Time spent in each light engine handler during one world tick", getTickSummaryFields());
+
+            available = true;
+            System.out.println("Flight recorder light events registered");
+        }
+        catch (ClassNotFoundException e)
+        {
+            System.out.println("Flight recorder not available, light events disabled");
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            System.out.println("Could not register flight recorder light events: " + e);
+        }
+    }
+
+    private static void disable(Exception e)
+    {
+        available = false;
+        System.out.println("Flight recorder light events disabled: " + e);
+    }
+
+    private static List<Object> getWriteFields() throws ReflectiveOperationException
+    {
+        List<Object> fields = new ArrayList<>();
+        fields.add(field(int.class, "dimension", "Dimension"));
+        fields.add(field(int.class, "x", "X"));
+        fields.add(field(int.class, "y", "Y"));
+        fields.add(field(int.class, "z", "Z"));
+        fields.add(field(int.class, "chunkX", "Chunk X"));
+        fields.add(field(int.class, "chunkZ", "Chunk Z"));
+        fields.add(field(int.class, "oldLevel", "Old Level"));
+        fields.add(field(int.class, "newLevel", "New Level"));
+        fields.add(field(String.class, "ownerType", "Owner Type"));
+        fields.add(field(int.class, "ownerId", "Owner Entity Id"));
+        fields.add(timespanField("queueLatency", "Queue Latency"));
+        return fields;
+    }
+
+    private static List<Object> getTickSummaryFields() throws ReflectiveOperationException
+    {
+        List<Object> fields = new ArrayList<>();
+        fields.add(field(int.class, "dimension", "Dimension"));
+        for (LightMetrics.Handler handler : LightMetrics.Handler.values())
+        {
+            String name = toCamelCase(handler.name());
+            fields.add(timespanField(name + "Time", handler.getLabel() + " time"));
+            fields.add(field(long.class, name + "Calls", handler.getLabel() + " calls"));
+        }
+        return fields;
+    }
+
+    private static String toCamelCase(String constant)
+    {
+        StringBuilder name = new StringBuilder();
+        for (String word : constant.toLowerCase().split("_"))
+        {
+            name.append(name.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        }
+        return name.toString();
+    }
+
+    private static Object field(Class<?> type, String name, String label) throws ReflectiveOperationException
+    {
+        return newField.newInstance(type, name, Collections.singletonList(annotation(labelAnnotation, label)));
+    }
+
+    private static Object timespanField(String name, String label) throws ReflectiveOperationException
+    {
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(annotation(labelAnnotation, label));
+        annotations.add(annotation(timespanAnnotation, "NANOSECONDS"));
+        return newField.newInstance(long.class, name, annotations);
+    }
+
+    private static Object annotation(Class<?> type, Object value) throws ReflectiveOperationException
+    {
+        return newAnnotation.newInstance(type, value);
+    }
+
+    /**
+     * An event type built by EventFactory, with one instance kept to ask whether recordings want it
+     */
+    private static class EventType
+    {
+        private final Object factory;
+        private final Object probe;
+
+        private EventType(String name, String label, String description, List<Object> fields) throws ReflectiveOperationException
+        {
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation(nameAnnotation, MainMod.class.getPackage().getName() + "." + name));
+            annotations.add(annotation(labelAnnotation, label));
+            annotations.add(annotation(descriptionAnnotation, description));
+            annotations.add(annotation(categoryAnnotation, new String[] {CATEGORY}));
+            annotations.add(annotation(stackTraceAnnotation, Boolean.FALSE));
+
+            factory = createFactory.invoke(null, annotations, fields);
+            probe = newEvent.invoke(factory);
+        }
+
+        private boolean isEnabled()
+        {
+            try
+            {
+                return (Boolean) isEnabled.invoke(probe);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                disable(e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only record of the light blocks placed and removed in a world, kept in
+ * a memory-mapped file so writing an entry is a few stores into the page cache
+ * instead of a syscall. If the server dies, the lights it left behind are
+ * exactly the ones placed and not removed, and replaying the journal on the
+ * next start queues them for removal without scanning the world.
+ *
+ * The file holds two regions. Entries are appended to the active one, and when
+ * it fills up the lights still standing are written to the other one, which
+ * then becomes active. The header's state is one aligned long holding the
+ * region size, the active region and its length, so an entry only counts once
+ * it is complete.
+ *
+ * A checkpoint leaves at least as much room as the live lights take, growing
+ * the file when it has to, so checkpoints stay rare however many lights stand
+ */
+public class LightJournal
+{
+    private static final int MAGIC = 0x4D4C534A;
+    private static final int VERSION = 1;
+
+    // Magic, version, then the state long
+    private static final int STATE_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+
+    // Type byte and packed position
+    private static final int ENTRY_SIZE = 9;
+
+    // Entries per region as a power of two, stored in the state relative to the
+    // smallest so files written before regions could grow read as the smallest
+    private static final int MIN_REGION_SHIFT = 16;
+    private static final int MAX_REGION_SHIFT = 24;
+    private static final int SHIFT_OFFSET = 40;
+
+    private static final long OVERFLOW_REPORT_NANOS = 60000000000L;
+
+    private static final byte PLACE = 1;
+    private static final byte REMOVE = 2;
+
+    private static final Map<Integer, LightJournal> JOURNALS = new HashMap<>();
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+
+    // Lights placed and not yet removed
+    private final LongOpenHashSet live = new LongOpenHashSet();
+
+    private int regionShift = MIN_REGION_SHIFT;
+    private int region = 0;
+    private int length = 0;
+
+    // Changes left out of the journal since the last report
+    private int overflowed = 0;
+    private long lastOverflowReport = System.nanoTime() - OVERFLOW_REPORT_NANOS;
+
+    private LightJournal(File path) throws IOException
+    {
+        file = new RandomAccessFile(path, "rw");
+        long existingSize = file.length();
+        boolean existing = existingSize >= fileSize(MIN_REGION_SHIFT) && existingSize <= fileSize(MAX_REGION_SHIFT);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, existing ? existingSize : fileSize(MIN_REGION_SHIFT));
+
+        if (existing && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION)
+        {
+            long state = buffer.getLong(STATE_OFFSET);
+            int shift = MIN_REGION_SHIFT + (int) (state >>> SHIFT_OFFSET);
+            if (shift <= MAX_REGION_SHIFT && fileSize(shift) <= existingSize)
+            {
+                regionShift = shift;
+                replay(state);
+            }
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        checkpoint();
+    }
+
+    /**
+     * Open the journal of a world that is loading and queue the removal of the lights it lists
+     */
+    public static void open(World world)
+    {
+        int dimension = world.provider.getDimension();
+        File directory = new File(world.getSaveHandler().getWorldDirectory(), "data");
+        File path = new File(directory, MainMod.MODID + "_journal_" + dimension + ".dat");
+
+        try
+        {
+            directory.mkdirs();
+            LightJournal journal = new LightJournal(path);
+            JOURNALS.put(dimension, journal);
+
+            if (!journal.live.isEmpty())
+            {
+                System.out.println("Removing " + journal.live.size() + " moving lights left in dimension " + dimension);
+            }
+
+            // Held by the queue until their chunks load, and kept in the journal until removed
+            LightWorkQueue queue = LightWorkQueue.get(world);
+            LongIterator iterator = journal.live.iterator();
+            while (iterator.hasNext())
+            {
+                queue.enqueueRemove(iterator.nextLong(), false, LightTrace.Reason.JOURNAL);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not open the light journal " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Journal of a world, null if it has none open
+     */
+    public static LightJournal get(World world)
+    {
+        return JOURNALS.get(world.provider.getDimension());
+    }
+
+    /**
+     * Close the journal of a world that is unloading
+     */
+    public static void close(World world)
+    {
+        LightJournal journal = JOURNALS.remove(world.provider.getDimension());
+        if (journal != null)
+        {
+            try
+            {
+                journal.buffer.force();
+                journal.file.close();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Could not close the light journal: " + e);
+            }
+            unmap(journal.buffer);
+        }
+    }
+
+    /**
+     * Record a light block being placed or removed
+     */
+    public void record(BlockPos pos, boolean placed)
+    {
+        long packed = pos.toLong();
+        boolean changed = placed ? live.add(packed) : live.remove(packed);
+        if (!changed)
+        {
+            return;
+        }
+
+        if (length + ENTRY_SIZE > regionSize())
+        {
+            // The live set already has this change. At the largest size a checkpoint
+            // that wouldn't leave as much room as it writes is skipped, the change is lost instead
+            if (regionShift < MAX_REGION_SHIFT || live.size() <= (1 << MAX_REGION_SHIFT) / 2)
+            {
+                checkpoint();
+            }
+            else
+            {
+                overflow(1);
+            }
+            return;
+        }
+
+        append(regionStart(region), placed ? PLACE : REMOVE, packed);
+        buffer.putLong(STATE_OFFSET, state());
+    }
+
+    public int getLiveCount()
+    {
+        return live.size();
+    }
+
+    /**
+     * Rebuild the live set from the active region, and carry on from its state
+     * so the startup checkpoint writes to the other region and never over the only copy
+     */
+    private void replay(long state)
+    {
+        region = (int) (state >>> 32) & 1;
+        int start = regionStart(region);
+        int end = Math.min((int) state, regionSize());
+        length = end - end % ENTRY_SIZE;
+
+        for (int offset = 0; offset + ENTRY_SIZE <= end; offset += ENTRY_SIZE)
+        {
+            byte type = buffer.get(start + offset);
+            long pos = buffer.getLong(start + offset + 1);
+            if (type == PLACE)
+            {
+                live.add(pos);
+            }
+            else if (type == REMOVE)
+            {
+                live.remove(pos);
+            }
+        }
+    }
+
+    /**
+     * Write the live lights to the inactive region and switch to it. Regions
+     * that would be more than half full are doubled until they aren't
+     */
+    private void checkpoint()
+    {
+        int shift = regionShift;
+        while (shift < MAX_REGION_SHIFT && (1L << shift) < 2L * live.size())
+        {
+            shift++;
+        }
+
+        int next = region ^ 1;
+        if (shift != regionShift && grow(shift))
+        {
+            // The second of the larger regions starts past both of the old ones,
+            // so the active region stays intact until the state switches to it
+            next = 1;
+        }
+
+        int start = regionStart(next);
+        int end = regionSize();
+        length = 0;
+
+        LongIterator iterator = live.iterator();
+        while (iterator.hasNext() && length + ENTRY_SIZE <= end)
+        {
+            append(start, PLACE, iterator.nextLong());
+        }
+        if (iterator.hasNext())
+        {
+            overflow(live.size() - length / ENTRY_SIZE);
+        }
+
+        region = next;
+        buffer.putLong(STATE_OFFSET, state());
+    }
+
+    /**
+     * Remap the file with larger regions, the state keeps the old size until the next checkpoint writes it
+     * @return whether the file grew, if not the regions keep their size
+     */
+    private boolean grow(int shift)
+    {
+        MappedByteBuffer grown;
+        try
+        {
+            grown = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(shift));
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not grow the light journal: " + e);
+            return false;
+        }
+
+        MappedByteBuffer old = buffer;
+        buffer = grown;
+        regionShift = shift;
+        unmap(old);
+        return true;
+    }
+
+    /**
+     * Count changes the journal has no room for, and report them at most once a minute
+     */
+    private void overflow(int changes)
+    {
+        overflowed += changes;
+        long now = System.nanoTime();
+        if (now - lastOverflowReport >= OVERFLOW_REPORT_NANOS)
+        {
+            System.out.println("Light journal is full with " + live.size() + " lights, " + overflowed
+                + " changes weren't journaled and those lights won't be removed after a crash");
+            overflowed = 0;
+            lastOverflowReport = now;
+        }
+    }
+
+    private void append(int start, byte type, long pos)
+    {
+        buffer.put(start + length, type);
+        buffer.putLong(start + length + 1, pos);
+        length += ENTRY_SIZE;
+    }
+
+    /**
+     * Release the mapping now instead of whenever the buffer is collected, so
+     * the file isn't held open across a world reload. The cleaner is internal
+     * API and moved in Java 9, so both places are tried through reflection
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            // Fall through to the Java 8 cleaner
+        }
+
+        try
+        {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+            {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            System.out.println("Could not unmap the light journal, it is released when collected: " + e);
+        }
+    }
+
+    private int regionSize()
+    {
+        return (1 << regionShift) * ENTRY_SIZE;
+    }
+
+    private int regionStart(int region)
+    {
+        return HEADER_SIZE + region * regionSize();
+    }
+
+    private long state()
+    {
+        return (long) (regionShift - MIN_REGION_SHIFT) << SHIFT_OFFSET | (long) region << 32 | length;
+    }
+
+    private static long fileSize(int shift)
+    {
+        return HEADER_SIZE + 2L * (1 << shift) * ENTRY_SIZE;
+    }
+}
@@ -0,0 +1,125 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * Feedback controller that backs the light engine off as the server approaches
+ * its tick deadline. Update intervals are widened and the work budget is shrunk
+ * while MSPT is high, and both return to their configured values when idle
+ */
+public class LightLoadController
+{
+    // Re-evaluate once a second
+    private static final int SAMPLE_INTERVAL = 20;
+
+    // Weight of the newest sample in the smoothed MSPT
+    private static final double SMOOTHING = 0.3D;
+
+    // Step sizes: back off quickly under load, recover gradually
+    private static final double BACKOFF_FACTOR = 1.5D;
+    private static final double RECOVERY_STEP = 0.25D;
+
+    private static double smoothedMspt = 0.0D;
+    private static double scale = 1.0D;
+    private static int tickCounter = 0;
+
+    /**
+     * Called once per server tick
+     */
+    public static void update(MinecraftServer server)
+    {
+        if (++tickCounter < SAMPLE_INTERVAL)
+        {
+            return;
+        }
+        tickCounter = 0;
+
+        if (server == null || !MainMod.adaptiveLightThrottling)
+        {
+            scale = 1.0D;
+            return;
+        }
+
+        double mspt = averageTickMillis(server.tickTimeArray);
+        smoothedMspt = smoothedMspt == 0.0D ? mspt : smoothedMspt + SMOOTHING * (mspt - smoothedMspt);
+
+        if (smoothedMspt >= MainMod.adaptiveHighMspt)
+        {
+            scale = Math.min(MainMod.adaptiveMaxIntervalMultiplier, scale * BACKOFF_FACTOR);
+        }
+        else if (smoothedMspt <= MainMod.adaptiveLowMspt)
+        {
+            scale = Math.max(1.0D, scale - RECOVERY_STEP);
+        }
+    }
+
+    private static double averageTickMillis(long[] tickTimes)
+    {
+        long total = 0L;
+        for (long tickTime : tickTimes)
+        {
+            total += tickTime;
+        }
+        return total / (double) tickTimes.length * 1.0E-6D;
+    }
+
+    /**
+     * Widen a configured update interval by the current load scale
+     */
+    public static int scaleInterval(int baseInterval)
+    {
+        return Math.max(1, (int) Math.ceil(Math.max(1, baseInterval) * scale));
+    }
+
+    public static int getItemInterval()
+    {
+        return scaleInterval(MainMod.itemLightUpdateInterval);
+    }
+
+    public static int getProjectileInterval()
+    {
+        return scaleInterval(MainMod.projectileLightUpdateInterval);
+    }
+
+    public static int getLivingInterval()
+    {
+        return scaleInterval(MainMod.livingLightUpdateInterval);
+    }
+
+    /**
+     * Each emitter is assigned a phase slot (its entity ID modulo the interval)
+     * and is only processed on ticks that fall in that slot, so the population
+     * of a category is spread evenly across the interval instead of all
+     * updating on the same tick
+     */
+    public static boolean isInPhase(long worldTime, int entityId, int interval)
+    {
+        if (interval <= 1)
+        {
+            return true;
+        }
+
+        return Math.floorMod(entityId, interval) == worldTime % interval;
+    }
+
+    /**
+     * Light work budget shrunk by the current load scale, never below the configured floor
+     */
+    public static int getBudgetMicros()
+    {
+        int budget = (int) (MainMod.lightWorkBudgetMicros / scale);
+        return Math.max(Math.min(MainMod.adaptiveMinBudgetMicros, MainMod.lightWorkBudgetMicros), budget);
+    }
+
+    public static double getMspt()
+    {
+        return smoothedMspt;
+    }
+
+    public static double getScale()
+    {
+        return scale;
+    }
+}
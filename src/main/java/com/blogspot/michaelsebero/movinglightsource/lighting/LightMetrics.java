@@ -0,0 +1,450 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.tileentities.TileEntityMovingLightSource;
+
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counters and handler timings of the light engine in one world. Counts are
+ * running totals, and a rate per second is worked out over one second
+ * windows. Gauges such as tracked emitters and queue depth are sampled from
+ * the engine once per window.
+ *
+ * Each handler call is also recorded in a latency histogram for percentiles,
+ * which can be reset to compare one configuration against another. The world
+ * tick is recorded per stage instead, one sample per stage per tick, so a slow
+ * write drain isn't hidden behind a fast scan.
+ *
+ * Everything is updated on the server thread. The window results are
+ * published as new arrays, with copies of the running totals, so monitoring
+ * threads can read them
+ */
+public class LightMetrics
+{
+    public enum Counter
+    {
+        PLACED("light blocks placed"),
+        REMOVED("light blocks removed"),
+        LEVEL_CHANGED("light levels changed"),
+        // Relights the mod runs itself, vanilla's relight around each light block write isn't counted
+        RELIGHTS("relights"),
+        ORPHANS_SWEPT("orphans swept");
+
+        private final String label;
+
+        Counter(String label)
+        {
+            this.label = label;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    public enum Handler
+    {
+        // Its latency is recorded per stage
+        WORLD_TICK("world tick", false),
+        PLAYER_TICK("player tick", true),
+        LIVING_UPDATE("living update", true),
+        CHUNK_LOAD("chunk load", true),
+        CHUNK_UNLOAD("chunk unload", true),
+        CHUNK_SAVE("chunk save", true),
+        TILE_ENTITY_UPDATE("light tile entity update", true);
+
+        private final String label;
+        private final boolean latencyRecorded;
+
+        Handler(String label, boolean latencyRecorded)
+        {
+            this.label = label;
+            this.latencyRecorded = latencyRecorded;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+
+        public boolean isLatencyRecorded()
+        {
+            return latencyRecorded;
+        }
+    }
+
+    /**
+     * Stages of the world tick, named after their profiler sections. Items and
+     * projectiles both pass through scan, target and enqueue, their times are summed
+     */
+    public enum Stage
+    {
+        SCAN("scan"),
+        TARGET("target"),
+        ENQUEUE("enqueue"),
+        WRITE("write"),
+        VIRTUAL("virtual");
+
+        private final String label;
+
+        Stage(String label)
+        {
+            this.label = label;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    // Published stage percentiles, by stage then p50, p99, p999 and max
+    private static final double[] PUBLISHED_PERCENTILES = { 0.5D, 0.99D, 0.999D, 1.0D };
+
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    private static final Map<Integer, LightMetrics> METRICS = new HashMap<>();
+
+    private final World world;
+
+    private final long[] counts = new long[Counter.values().length];
+    private final long[] windowCounts = new long[Counter.values().length];
+    private volatile double[] rates = new double[Counter.values().length];
+    private volatile long[] publishedCounts = new long[Counter.values().length];
+
+    private final long[] handlerNanos = new long[Handler.values().length];
+    private final long[] handlerCalls = new long[Handler.values().length];
+    private final long[] windowHandlerNanos = new long[Handler.values().length];
+    private volatile double[] handlerShares = new double[Handler.values().length];
+    private volatile long[] publishedHandlerNanos = new long[Handler.values().length];
+
+    // Handler time since the end of the last world tick, for the flight recorder summary
+    private final long[] tickHandlerNanos = new long[Handler.values().length];
+    private final long[] tickHandlerCalls = new long[Handler.values().length];
+
+    private final LatencyHistogram[] handlerLatencies = new LatencyHistogram[Handler.values().length];
+
+    // Stage time of the running world tick, recorded once the tick ends
+    private final LatencyHistogram[] stageLatencies = new LatencyHistogram[Stage.values().length];
+    private final long[] tickStageNanos = new long[Stage.values().length];
+    private final boolean[] tickStageRan = new boolean[Stage.values().length];
+    private volatile long[][] stagePercentiles = new long[Stage.values().length][PUBLISHED_PERCENTILES.length];
+
+    private long windowStart = System.nanoTime();
+
+    // Gauges sampled at the end of each window
+    private volatile int trackedItems;
+    private volatile int trackedProjectiles;
+    private volatile int virtualEmitters;
+    private volatile int lightTileEntities;
+    private volatile int queueDepth;
+
+    private LightMetrics(World world)
+    {
+        this.world = world;
+        for (int i = 0; i < handlerLatencies.length; i++)
+        {
+            handlerLatencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < stageLatencies.length; i++)
+        {
+            stageLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Get the metrics for a world, creating them if needed
+     */
+    public static LightMetrics get(World world)
+    {
+        int dimension = world.provider.getDimension();
+        LightMetrics metrics = METRICS.get(dimension);
+        if (metrics == null)
+        {
+            metrics = new LightMetrics(world);
+            METRICS.put(dimension, metrics);
+        }
+        return metrics;
+    }
+
+    public static void remove(World world)
+    {
+        METRICS.remove(world.provider.getDimension());
+    }
+
+    public void increment(Counter counter)
+    {
+        counts[counter.ordinal()]++;
+    }
+
+    public void add(Counter counter, int amount)
+    {
+        counts[counter.ordinal()] += amount;
+    }
+
+    public void addHandlerTime(Handler handler, long nanos)
+    {
+        handlerNanos[handler.ordinal()] += nanos;
+        handlerCalls[handler.ordinal()]++;
+        tickHandlerNanos[handler.ordinal()] += nanos;
+        tickHandlerCalls[handler.ordinal()]++;
+        if (handler.isLatencyRecorded())
+        {
+            handlerLatencies[handler.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Add time spent in a stage of the running world tick
+     */
+    public void addStageTime(Stage stage, long nanos)
+    {
+        tickStageNanos[stage.ordinal()] += nanos;
+        tickStageRan[stage.ordinal()] = true;
+    }
+
+    /**
+     * Summarise the handler time since the last world tick ended and record the
+     * tick's stage latencies, called at the end of every world tick
+     */
+    public void endTick()
+    {
+        LightFlightRecorder.commitTickSummary(world, tickHandlerNanos, tickHandlerCalls);
+        Arrays.fill(tickHandlerNanos, 0L);
+        Arrays.fill(tickHandlerCalls, 0L);
+
+        // Stages that didn't run, e.g. with item lights off, aren't recorded as zero
+        for (int i = 0; i < stageLatencies.length; i++)
+        {
+            if (tickStageRan[i])
+            {
+                stageLatencies[i].record(tickStageNanos[i]);
+            }
+        }
+        Arrays.fill(tickStageNanos, 0L);
+        Arrays.fill(tickStageRan, false);
+    }
+
+    /**
+     * Close the rate window once a second has passed, called every world tick
+     */
+    public void tick()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS)
+        {
+            return;
+        }
+
+        double seconds = elapsed / 1.0E9D;
+        double[] newRates = new double[counts.length];
+        for (int i = 0; i < counts.length; i++)
+        {
+            newRates[i] = (counts[i] - windowCounts[i]) / seconds;
+            windowCounts[i] = counts[i];
+        }
+        double[] newShares = new double[handlerNanos.length];
+        for (int i = 0; i < handlerNanos.length; i++)
+        {
+            newShares[i] = (handlerNanos[i] - windowHandlerNanos[i]) / (double) elapsed;
+            windowHandlerNanos[i] = handlerNanos[i];
+        }
+        long[][] newPercentiles = new long[stageLatencies.length][PUBLISHED_PERCENTILES.length];
+        for (int i = 0; i < stageLatencies.length; i++)
+        {
+            for (int j = 0; j < PUBLISHED_PERCENTILES.length; j++)
+            {
+                newPercentiles[i][j] = stageLatencies[i].getPercentile(PUBLISHED_PERCENTILES[j]);
+            }
+        }
+        rates = newRates;
+        publishedCounts = counts.clone();
+        handlerShares = newShares;
+        publishedHandlerNanos = handlerNanos.clone();
+        stagePercentiles = newPercentiles;
+        windowStart = now;
+
+        trackedItems = LightTracker.getItems(world).size();
+        trackedProjectiles = LightTracker.getProjectiles(world).size();
+        virtualEmitters = VirtualLightEngine.get(world).getEmitterCount();
+        lightTileEntities = countLightTileEntities();
+        queueDepth = LightWorkQueue.get(world).size();
+    }
+
+    public long getCount(Counter counter)
+    {
+        return counts[counter.ordinal()];
+    }
+
+    /**
+     * Running total as of the end of the last window, safe to read from any thread
+     */
+    public long getPublishedCount(Counter counter)
+    {
+        return publishedCounts[counter.ordinal()];
+    }
+
+    /**
+     * Per second over the last full window
+     */
+    public double getRate(Counter counter)
+    {
+        return rates[counter.ordinal()];
+    }
+
+    public long getHandlerNanos(Handler handler)
+    {
+        return handlerNanos[handler.ordinal()];
+    }
+
+    /**
+     * Handler total as of the end of the last window, safe to read from any thread
+     */
+    public long getPublishedHandlerNanos(Handler handler)
+    {
+        return publishedHandlerNanos[handler.ordinal()];
+    }
+
+    public long getHandlerCalls(Handler handler)
+    {
+        return handlerCalls[handler.ordinal()];
+    }
+
+    public LatencyHistogram getHandlerLatency(Handler handler)
+    {
+        return handlerLatencies[handler.ordinal()];
+    }
+
+    public LatencyHistogram getStageLatency(Stage stage)
+    {
+        return stageLatencies[stage.ordinal()];
+    }
+
+    /**
+     * Stage percentiles published at the end of the last window, safe to read from any thread
+     * @return nanoseconds at p50, p99, p999 and the max, in that order
+     */
+    public long[] getPublishedStagePercentiles(Stage stage)
+    {
+        return stagePercentiles[stage.ordinal()];
+    }
+
+    /**
+     * Clear the latency histograms, the counters and handler totals are kept
+     */
+    public void resetLatencies()
+    {
+        for (LatencyHistogram histogram : handlerLatencies)
+        {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : stageLatencies)
+        {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Fraction of wall time spent in the handler over the last full window
+     */
+    public double getHandlerShare(Handler handler)
+    {
+        return handlerShares[handler.ordinal()];
+    }
+
+    public int getTrackedItems()
+    {
+        return trackedItems;
+    }
+
+    public int getTrackedProjectiles()
+    {
+        return trackedProjectiles;
+    }
+
+    public int getVirtualEmitters()
+    {
+        return virtualEmitters;
+    }
+
+    /**
+     * Light tile entities loaded in the world at the end of the last window
+     */
+    public int getLightTileEntities()
+    {
+        return lightTileEntities;
+    }
+
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    private int countLightTileEntities()
+    {
+        int count = 0;
+        for (TileEntity te : world.loadedTileEntityList)
+        {
+            if (te instanceof TileEntityMovingLightSource)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Human readable report of the gauges, counters, handler timings and latency percentiles
+     */
+    public List<String> report()
+    {
+        List<String> lines = new ArrayList<>();
+        lines.add("Moving light stats for dimension " + world.provider.getDimension());
+        lines.add("Tracked items " + getTrackedItems() + ", projectiles " + getTrackedProjectiles() + ", virtual emitters " + getVirtualEmitters());
+        lines.add("Light tile entities " + getLightTileEntities() + ", queue depth " + getQueueDepth());
+
+        for (Counter counter : Counter.values())
+        {
+            lines.add(String.format("%s: %d total, %.1f/s", counter.getLabel(), getCount(counter), getRate(counter)));
+        }
+        for (Handler handler : Handler.values())
+        {
+            long calls = getHandlerCalls(handler);
+            double averageMicros = calls == 0 ? 0.0D : getHandlerNanos(handler) / (double) calls / 1000.0D;
+            lines.add(String.format("%s: %d calls, %.2f us avg, %.3f%% of time", handler.getLabel(), calls, averageMicros, getHandlerShare(handler) * 100.0D));
+        }
+        for (Handler handler : Handler.values())
+        {
+            LatencyHistogram latency = getHandlerLatency(handler);
+            if (latency.getCount() > 0)
+            {
+                lines.add(formatLatency(handler.getLabel() + " latency", latency, "calls"));
+            }
+        }
+        for (Stage stage : Stage.values())
+        {
+            LatencyHistogram latency = getStageLatency(stage);
+            if (latency.getCount() > 0)
+            {
+                lines.add(formatLatency("world tick " + stage.getLabel() + " latency", latency, "ticks"));
+            }
+        }
+        return lines;
+    }
+
+    private static String formatLatency(String label, LatencyHistogram latency, String unit)
+    {
+        return String.format("%s: p50 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us over %d %s", label,
+            latency.getPercentile(0.5D) / 1000.0D, latency.getPercentile(0.99D) / 1000.0D,
+            latency.getPercentile(0.999D) / 1000.0D, latency.getMax() / 1000.0D, latency.getCount(), unit);
+    }
+}
@@ -0,0 +1,393 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.Entity;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.Arrays;
+
+/**
+ * Pending ops of a light work queue, pooled in parallel arrays indexed by slot
+ * so queuing, coalescing and draining don't allocate once the arrays have grown
+ * to the queue's working size
+ *
+ * A queued slot is found by its packed position, is linked into its chunk's
+ * circular list, and has an entry in a heap of packed longs ordered by priority
+ * then sequence. Slots that are requeued or released leave their old heap entry
+ * behind, which is skipped when it comes up since it no longer matches the slot
+ */
+public class LightOpQueue
+{
+    public static final int NONE = -1;
+
+    // Heap entry layout, priority in the top bits so entries sort as plain longs
+    private static final int SLOT_BITS = 24;
+    private static final int SEQUENCE_BITS = 36;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int MAX_SLOTS = 1 << SLOT_BITS;
+
+    private static final long NOT_QUEUED = -1L;
+
+    // Per slot, reference fields are cleared on release so the pool doesn't keep entities alive
+    private long[] positions = new long[64];
+    private long[] chunkKeys = new long[64];
+    private IBlockState[] states = new IBlockState[64];
+    private IBlockState[] originals = new IBlockState[64];
+    private Entity[] owners = new Entity[64];
+    private boolean[] itemLights = new boolean[64];
+    private LightTrace.Reason[] reasons = new LightTrace.Reason[64];
+    private long[] queuedNanos = new long[64];
+    private long[] heapKeys = new long[64];
+
+    // Circular list of each chunk's slots, the head's previous slot is the tail
+    private int[] next = new int[64];
+    private int[] previous = new int[64];
+    private final Long2IntOpenHashMap chunkHeads;
+
+    private final Long2IntOpenHashMap slotsByPos;
+
+    private int[] free = new int[64];
+    private int freeCount = 0;
+    private int slotCount = 0;
+
+    private long[] heap = new long[64];
+    private int heapSize = 0;
+
+    // Heap entries polled this drain that wait for the next one
+    private long[] deferred = new long[16];
+    private int deferredCount = 0;
+
+    private long sequence = 0;
+
+    /**
+     * @param expectedSize ops usually queued at once, the maps never shrink below it
+     * so a queue that fills and empties every tick doesn't rehash every tick
+     */
+    public LightOpQueue(int expectedSize)
+    {
+        chunkHeads = new Long2IntOpenHashMap(Math.max(16, expectedSize / 4));
+        slotsByPos = new Long2IntOpenHashMap(expectedSize);
+        chunkHeads.defaultReturnValue(NONE);
+        slotsByPos.defaultReturnValue(NONE);
+    }
+
+    /**
+     * Slot queued for a packed position, {@link #NONE} if there is none
+     */
+    public int find(long pos)
+    {
+        return slotsByPos.get(pos);
+    }
+
+    /**
+     * Take a slot for a position that has none, it isn't polled until {@link #set} queues it
+     * @param original state of the position when it was first queued
+     * @return the slot, {@link #NONE} if every slot is taken
+     */
+    public int add(long pos, IBlockState original)
+    {
+        int slot;
+        if (freeCount > 0)
+        {
+            slot = free[--freeCount];
+        }
+        else if (slotCount < MAX_SLOTS)
+        {
+            if (slotCount == positions.length)
+            {
+                grow(Math.min(slotCount * 2, MAX_SLOTS));
+            }
+            slot = slotCount++;
+        }
+        else
+        {
+            return NONE;
+        }
+
+        long chunkKey = ChunkPos.asLong(LightPos.getX(pos) >> 4, LightPos.getZ(pos) >> 4);
+        positions[slot] = pos;
+        chunkKeys[slot] = chunkKey;
+        originals[slot] = original;
+        heapKeys[slot] = NOT_QUEUED;
+        slotsByPos.put(pos, slot);
+
+        int head = chunkHeads.get(chunkKey);
+        if (head == NONE)
+        {
+            next[slot] = slot;
+            previous[slot] = slot;
+            chunkHeads.put(chunkKey, slot);
+        }
+        else
+        {
+            int tail = previous[head];
+            next[tail] = slot;
+            previous[slot] = tail;
+            next[slot] = head;
+            previous[head] = slot;
+        }
+        return slot;
+    }
+
+    /**
+     * Give a slot its newest write and queue it behind everything already queued at its priority
+     * @param priority 0 to 7, lower is polled first
+     */
+    public void set(int slot, IBlockState state, Entity owner, boolean itemLight, int priority, LightTrace.Reason reason, long nanos)
+    {
+        states[slot] = state;
+        owners[slot] = owner;
+        itemLights[slot] = itemLight;
+        reasons[slot] = reason;
+        queuedNanos[slot] = nanos;
+
+        long key = (long) priority << (SEQUENCE_BITS + SLOT_BITS) | (sequence++ & SEQUENCE_MASK) << SLOT_BITS | slot;
+        heapKeys[slot] = key;
+        push(key);
+        compactIfSparse();
+    }
+
+    /**
+     * Drop a slot's work and return it to the pool
+     */
+    public void release(int slot)
+    {
+        long chunkKey = chunkKeys[slot];
+        if (next[slot] == slot)
+        {
+            chunkHeads.remove(chunkKey);
+        }
+        else
+        {
+            next[previous[slot]] = next[slot];
+            previous[next[slot]] = previous[slot];
+            if (chunkHeads.get(chunkKey) == slot)
+            {
+                chunkHeads.put(chunkKey, next[slot]);
+            }
+        }
+
+        slotsByPos.remove(positions[slot]);
+        heapKeys[slot] = NOT_QUEUED;
+        states[slot] = null;
+        originals[slot] = null;
+        owners[slot] = null;
+        reasons[slot] = null;
+
+        if (freeCount == free.length)
+        {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * Release every slot of a chunk
+     */
+    public void releaseChunk(long chunkKey)
+    {
+        int slot;
+        while ((slot = chunkHeads.get(chunkKey)) != NONE)
+        {
+            release(slot);
+        }
+    }
+
+    /**
+     * Oldest slot still queued in a chunk, {@link #NONE} if the chunk has none
+     */
+    public int firstInChunk(long chunkKey)
+    {
+        return chunkHeads.get(chunkKey);
+    }
+
+    /**
+     * Take the next queued slot off the heap, it stays queued until it is released or deferred
+     * @return the slot, {@link #NONE} if nothing is queued
+     */
+    public int poll()
+    {
+        while (heapSize > 0)
+        {
+            long key = pop();
+            int slot = (int) (key & SLOT_MASK);
+            if (heapKeys[slot] == key)
+            {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Hold a polled slot back until {@link #restoreDeferred()}
+     */
+    public void defer(int slot)
+    {
+        if (deferredCount == deferred.length)
+        {
+            deferred = Arrays.copyOf(deferred, deferredCount * 2);
+        }
+        deferred[deferredCount++] = heapKeys[slot];
+    }
+
+    /**
+     * Put the deferred slots back on the heap in their original order
+     */
+    public void restoreDeferred()
+    {
+        for (int i = 0; i < deferredCount; i++)
+        {
+            int slot = (int) (deferred[i] & SLOT_MASK);
+            if (heapKeys[slot] == deferred[i])
+            {
+                push(deferred[i]);
+            }
+        }
+        deferredCount = 0;
+    }
+
+    /**
+     * Number of positions with a slot
+     */
+    public int size()
+    {
+        return slotsByPos.size();
+    }
+
+    public long getPos(int slot)
+    {
+        return positions[slot];
+    }
+
+    public long getChunkKey(int slot)
+    {
+        return chunkKeys[slot];
+    }
+
+    public IBlockState getState(int slot)
+    {
+        return states[slot];
+    }
+
+    public IBlockState getOriginal(int slot)
+    {
+        return originals[slot];
+    }
+
+    public Entity getOwner(int slot)
+    {
+        return owners[slot];
+    }
+
+    public boolean isItemLight(int slot)
+    {
+        return itemLights[slot];
+    }
+
+    public LightTrace.Reason getReason(int slot)
+    {
+        return reasons[slot];
+    }
+
+    public long getQueuedNanos(int slot)
+    {
+        return queuedNanos[slot];
+    }
+
+    private void push(long key)
+    {
+        if (heapSize == heap.length)
+        {
+            heap = Arrays.copyOf(heap, heapSize * 2);
+        }
+
+        int i = heapSize++;
+        while (i > 0)
+        {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key)
+            {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    }
+
+    private long pop()
+    {
+        long top = heap[0];
+        long last = heap[--heapSize];
+        if (heapSize > 0)
+        {
+            siftDown(0, last);
+        }
+        return top;
+    }
+
+    private void siftDown(int i, long key)
+    {
+        int half = heapSize >>> 1;
+        while (i < half)
+        {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child])
+            {
+                child++;
+            }
+            if (key <= heap[child])
+            {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+    }
+
+    /**
+     * Drop the entries left behind by requeued and released slots once they outnumber the live ones
+     * Deferred entries are off the heap and stay where they are
+     */
+    private void compactIfSparse()
+    {
+        if (heapSize < 64 || heapSize < 4 * slotsByPos.size())
+        {
+            return;
+        }
+
+        int kept = 0;
+        for (int i = 0; i < heapSize; i++)
+        {
+            int slot = (int) (heap[i] & SLOT_MASK);
+            if (heapKeys[slot] == heap[i])
+            {
+                heap[kept++] = heap[i];
+            }
+        }
+        heapSize = kept;
+        for (int i = (heapSize >>> 1) - 1; i >= 0; i--)
+        {
+            siftDown(i, heap[i]);
+        }
+    }
+
+    private void grow(int size)
+    {
+        positions = Arrays.copyOf(positions, size);
+        chunkKeys = Arrays.copyOf(chunkKeys, size);
+        states = Arrays.copyOf(states, size);
+        originals = Arrays.copyOf(originals, size);
+        owners = Arrays.copyOf(owners, size);
+        itemLights = Arrays.copyOf(itemLights, size);
+        reasons = Arrays.copyOf(reasons, size);
+        queuedNanos = Arrays.copyOf(queuedNanos, size);
+        heapKeys = Arrays.copyOf(heapKeys, size);
+        next = Arrays.copyOf(next, size);
+        previous = Arrays.copyOf(previous, size);
+    }
+}
@@ -0,0 +1,41 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+/**
+ * Block positions packed into a long, using the same layout as
+ * BlockPos.toLong() so values can be passed to BlockPos.fromLong()
+ */
+public final class LightPos
+{
+    private static final int NUM_X_BITS = 26;
+    private static final int NUM_Z_BITS = 26;
+    private static final int NUM_Y_BITS = 12;
+    private static final int Y_SHIFT = NUM_Z_BITS;
+    private static final int X_SHIFT = Y_SHIFT + NUM_Y_BITS;
+    private static final long X_MASK = (1L << NUM_X_BITS) - 1L;
+    private static final long Y_MASK = (1L << NUM_Y_BITS) - 1L;
+    private static final long Z_MASK = (1L << NUM_Z_BITS) - 1L;
+
+    private LightPos()
+    {
+    }
+
+    public static long pack(int x, int y, int z)
+    {
+        return ((long) x & X_MASK) << X_SHIFT | ((long) y & Y_MASK) << Y_SHIFT | ((long) z & Z_MASK);
+    }
+
+    public static int getX(long pos)
+    {
+        return (int) (pos >> X_SHIFT);
+    }
+
+    public static int getY(long pos)
+    {
+        return (int) (pos << (64 - X_SHIFT) >> (64 - NUM_Y_BITS));
+    }
+
+    public static int getZ(long pos)
+    {
+        return (int) (pos << (64 - NUM_Z_BITS) >> (64 - NUM_Z_BITS));
+    }
+}
@@ -0,0 +1,188 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+/**
+ * Incremental block light flood fill used by the virtual light engine
+ * Adding a source spreads its light outward, removing one clears the cells it
+ * lit and re-spreads light from brighter cells and other sources at the edge
+ */
+public class LightPropagator
+{
+    private static final int[] OFFSET_X = { 1, -1, 0, 0, 0, 0 };
+    private static final int[] OFFSET_Y = { 0, 0, 1, -1, 0, 0 };
+    private static final int[] OFFSET_Z = { 0, 0, 0, 0, 1, -1 };
+
+    // FIFO queues reused between runs
+    private long[] addQueue = new long[1024];
+    private int addHead;
+    private int addTail;
+
+    private long[] removeQueue = new long[1024];
+    private int[] removeLevels = new int[1024];
+    private int removeHead;
+    private int removeTail;
+
+    /**
+     * Spread light from a source at the given level
+     */
+    public void addLight(ILightAccess access, long pos, int level)
+    {
+        if (!access.contains(pos) || access.getLight(pos) >= level)
+        {
+            return;
+        }
+
+        resetAdd();
+        access.setLight(pos, level);
+        pushAdd(pos);
+        propagate(access);
+    }
+
+    /**
+     * Clear the light a source at the given level contributed, the source must
+     * no longer be reported by {@link ILightAccess#getSourceLevel(long)}
+     */
+    public void removeLight(ILightAccess access, long pos, int level)
+    {
+        if (!access.contains(pos))
+        {
+            return;
+        }
+
+        resetAdd();
+        removeHead = 0;
+        removeTail = 0;
+
+        // A source cell lit brighter from elsewhere keeps its light, but the cells
+        // this source lit on the far side still have to be cleared
+        if (access.getLight(pos) > level)
+        {
+            pushAdd(pos);
+        }
+        else
+        {
+            access.setLight(pos, 0);
+        }
+        pushRemove(pos, level);
+
+        while (removeHead < removeTail)
+        {
+            long current = removeQueue[removeHead];
+            int currentLevel = removeLevels[removeHead];
+            removeHead++;
+
+            int x = LightPos.getX(current);
+            int y = LightPos.getY(current);
+            int z = LightPos.getZ(current);
+
+            for (int i = 0; i < 6; i++)
+            {
+                long neighbor = LightPos.pack(x + OFFSET_X[i], y + OFFSET_Y[i], z + OFFSET_Z[i]);
+                if (!access.contains(neighbor))
+                {
+                    continue;
+                }
+
+                int neighborLevel = access.getLight(neighbor);
+                if (neighborLevel == 0)
+                {
+                    continue;
+                }
+
+                if (neighborLevel < currentLevel)
+                {
+                    // Lit through this cell, clear it as well
+                    access.setLight(neighbor, 0);
+                    pushRemove(neighbor, neighborLevel);
+                }
+                else
+                {
+                    // Lit from elsewhere, spread it back in afterward
+                    pushAdd(neighbor);
+                }
+            }
+
+            // Cleared cells that are sources themselves relight at their own level
+            int sourceLevel = access.getSourceLevel(current);
+            if (sourceLevel > access.getLight(current))
+            {
+                access.setLight(current, sourceLevel);
+                pushAdd(current);
+            }
+        }
+
+        propagate(access);
+    }
+
+    private void propagate(ILightAccess access)
+    {
+        while (addHead < addTail)
+        {
+            long current = addQueue[addHead++];
+            int level = access.getLight(current);
+            if (level <= 1)
+            {
+                continue;
+            }
+
+            int x = LightPos.getX(current);
+            int y = LightPos.getY(current);
+            int z = LightPos.getZ(current);
+
+            for (int i = 0; i < 6; i++)
+            {
+                long neighbor = LightPos.pack(x + OFFSET_X[i], y + OFFSET_Y[i], z + OFFSET_Z[i]);
+                if (!access.contains(neighbor))
+                {
+                    continue;
+                }
+
+                int neighborLevel = level - Math.max(1, access.getOpacity(neighbor));
+                if (neighborLevel > access.getLight(neighbor))
+                {
+                    access.setLight(neighbor, neighborLevel);
+                    pushAdd(neighbor);
+                }
+            }
+        }
+    }
+
+    private void resetAdd()
+    {
+        addHead = 0;
+        addTail = 0;
+    }
+
+    private void pushAdd(long pos)
+    {
+        if (addTail == addQueue.length)
+        {
+            addQueue = grow(addQueue, addHead, addTail);
+            addTail -= addHead;
+            addHead = 0;
+        }
+        addQueue[addTail++] = pos;
+    }
+
+    private void pushRemove(long pos, int level)
+    {
+        if (removeTail == removeQueue.length)
+        {
+            int[] levels = new int[removeLevels.length * 2];
+            System.arraycopy(removeLevels, removeHead, levels, 0, removeTail - removeHead);
+            removeLevels = levels;
+            removeQueue = grow(removeQueue, removeHead, removeTail);
+            removeTail -= removeHead;
+            removeHead = 0;
+        }
+        removeQueue[removeTail] = pos;
+        removeLevels[removeTail] = level;
+        removeTail++;
+    }
+
+    private static long[] grow(long[] queue, int head, int tail)
+    {
+        long[] grown = new long[queue.length * 2];
+        System.arraycopy(queue, head, grown, 0, tail - head);
+        return grown;
+    }
+}
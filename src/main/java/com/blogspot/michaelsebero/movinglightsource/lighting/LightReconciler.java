@@ -0,0 +1,194 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+import com.blogspot.michaelsebero.movinglightsource.blocks.BlockMovingLightSource;
+import com.blogspot.michaelsebero.movinglightsource.tileentities.TileEntityMovingLightSource;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.item.EntityItem;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Matches the lights of a saved {@link TrackedLightSnapshot} against the
+ * entities that come back as their chunks load. A light whose owner returns is
+ * handed back to it in the tracker and left in place; the rest are removed as
+ * soon as their chunk has loaded, instead of waiting for an orphan sweep or
+ * the tile entity to notice.
+ *
+ * A chunk's entities join the world before its load event fires, so by then
+ * every light in the chunk is either claimed or known to be orphaned.
+ *
+ * When light blocks are stripped from saves there is nothing to hand back or
+ * remove, so no reconciler is started and returning owners simply place a new
+ * light on their next update
+ */
+public class LightReconciler
+{
+    private static final Map<Integer, LightReconciler> RECONCILERS = new HashMap<>();
+
+    private final World world;
+    private final TrackedLightSnapshot snapshot;
+
+    // Unsettled snapshot entries by owner and by the chunk their light is in
+    private final Map<UUID, Integer> byOwner = new HashMap<>();
+    private final Long2ObjectOpenHashMap<IntArrayList> byChunk = new Long2ObjectOpenHashMap<>();
+
+    private LightReconciler(World world, TrackedLightSnapshot snapshot)
+    {
+        this.world = world;
+        this.snapshot = snapshot;
+
+        for (int i = 0; i < snapshot.size(); i++)
+        {
+            byOwner.put(snapshot.getOwner(i), i);
+
+            long pos = snapshot.getPos(i);
+            long key = ChunkPos.asLong(LightPos.getX(pos) >> 4, LightPos.getZ(pos) >> 4);
+            IntArrayList entries = byChunk.get(key);
+            if (entries == null)
+            {
+                entries = new IntArrayList(4);
+                byChunk.put(key, entries);
+            }
+            entries.add(i);
+        }
+    }
+
+    /**
+     * Start reconciling a world that is loading, before any of its chunks load
+     */
+    public static void start(World world, TrackedLightSnapshot snapshot)
+    {
+        if (MainMod.stripLightsFromSaves)
+        {
+            return;
+        }
+
+        if (snapshot != null && snapshot.size() > 0)
+        {
+            RECONCILERS.put(world.provider.getDimension(), new LightReconciler(world, snapshot));
+        }
+    }
+
+    /**
+     * Reconciler of a world, null once every saved light is settled
+     */
+    public static LightReconciler get(World world)
+    {
+        return RECONCILERS.get(world.provider.getDimension());
+    }
+
+    public static void remove(World world)
+    {
+        RECONCILERS.remove(world.provider.getDimension());
+    }
+
+    /**
+     * Give an entity that came back the light it owned when the world was saved
+     */
+    public void onEntityJoin(Entity entity)
+    {
+        Integer entry = byOwner.remove(entity.getUniqueID());
+        if (entry == null)
+        {
+            return;
+        }
+
+        long pos = snapshot.getPos(entry);
+        Chunk chunk = world.getChunkProvider().getLoadedChunk(LightPos.getX(pos) >> 4, LightPos.getZ(pos) >> 4);
+        if (chunk == null)
+        {
+            return;
+        }
+
+        // A light that is gone or changed is left for the chunk load to settle
+        BlockPos blockPos = BlockPos.fromLong(pos);
+        Block block = chunk.getBlockState(blockPos).getBlock();
+        if (!(block instanceof BlockMovingLightSource) || block.getLightValue(block.getDefaultState()) != snapshot.getLevel(entry))
+        {
+            return;
+        }
+
+        settle(pos, entry);
+
+        LightTracker tracker = entity instanceof EntityItem ? LightTracker.getItems(world) : LightTracker.getProjectiles(world);
+        tracker.track(entity.getEntityId(), pos, block, world.getTotalWorldTime());
+        tracker.setOwner(pos, entity.getEntityId());
+        LightWorkQueue.get(world).keep(blockPos);
+
+        if (entity instanceof EntityItem)
+        {
+            TileEntity te = chunk.getTileEntity(blockPos, Chunk.EnumCreateEntityType.CHECK);
+            if (te instanceof TileEntityMovingLightSource)
+            {
+                ((TileEntityMovingLightSource) te).setTrackedItem((EntityItem) entity);
+            }
+        }
+
+        removeIfSettled();
+    }
+
+    /**
+     * Remove the saved lights of a chunk that just loaded whose owners didn't come back with it
+     */
+    public void onChunkLoad(Chunk chunk)
+    {
+        IntArrayList entries = byChunk.remove(ChunkPos.asLong(chunk.x, chunk.z));
+        if (entries == null)
+        {
+            return;
+        }
+
+        LightWorkQueue queue = LightWorkQueue.get(world);
+        for (int i = 0; i < entries.size(); i++)
+        {
+            int entry = entries.getInt(i);
+            byOwner.remove(snapshot.getOwner(entry));
+
+            // Another entry at the same position may have been claimed
+            long packed = snapshot.getPos(entry);
+            if (LightTracker.getItems(world).getOwner(packed) != LightTracker.NO_OWNER ||
+                LightTracker.getProjectiles(world).getOwner(packed) != LightTracker.NO_OWNER)
+            {
+                continue;
+            }
+
+            BlockPos pos = BlockPos.fromLong(packed);
+            if (chunk.getBlockState(pos).getBlock() instanceof BlockMovingLightSource)
+            {
+                queue.enqueueRemove(pos, false, LightTrace.Reason.RECONCILE);
+            }
+        }
+
+        removeIfSettled();
+    }
+
+    private void settle(long pos, int entry)
+    {
+        long key = ChunkPos.asLong(LightPos.getX(pos) >> 4, LightPos.getZ(pos) >> 4);
+        IntArrayList entries = byChunk.get(key);
+        if (entries != null && entries.rem(entry) && entries.isEmpty())
+        {
+            byChunk.remove(key);
+        }
+    }
+
+    private void removeIfSettled()
+    {
+        if (byChunk.isEmpty())
+        {
+            remove(world);
+        }
+    }
+}
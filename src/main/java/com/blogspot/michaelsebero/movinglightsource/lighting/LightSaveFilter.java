@@ -0,0 +1,122 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.registries.BlockRegistry;
+
+import net.minecraft.block.Block;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.common.util.Constants;
+
+/**
+ * Takes moving light blocks and their tile entities out of chunk NBT as it is
+ * saved. The lights only exist while their entity is around, so saving them
+ * costs region file space and leaves stuck lights after a crash or once the
+ * mod is removed. Live emitters put them back after the chunk loads.
+ *
+ * Every light block has a tile entity, so chunks whose tile entity list has
+ * none of ours are left alone without looking at their block sections
+ *
+ * The saved block light is left as it is. The chunk's light index is saved
+ * with the positions, and the work queue relights them once the chunk loads
+ */
+public final class LightSaveFilter
+{
+    private static final String TILE_ENTITY_PATH = "tileentitymovinglightsource";
+
+    // Chunk section block arrays are indexed y << 8 | z << 4 | x
+    private static final int SECTION_VOLUME = 4096;
+
+    private LightSaveFilter()
+    {
+    }
+
+    /**
+     * Strip the lights from a chunk's save data in place
+     * @param chunkData the root compound of the chunk, holding the "Level" tag
+     * @return number of light tile entities removed
+     */
+    public static int strip(NBTTagCompound chunkData)
+    {
+        NBTTagCompound level = chunkData.getCompoundTag("Level");
+        NBTTagList tileEntities = level.getTagList("TileEntities", Constants.NBT.TAG_COMPOUND);
+
+        int removed = 0;
+        for (int i = tileEntities.tagCount() - 1; i >= 0; i--)
+        {
+            ResourceLocation id = new ResourceLocation(tileEntities.getCompoundTagAt(i).getString("id"));
+            if (TILE_ENTITY_PATH.equals(id.getResourcePath()))
+            {
+                tileEntities.removeTag(i);
+                removed++;
+            }
+        }
+
+        if (removed == 0)
+        {
+            return 0;
+        }
+
+        boolean[] lightIds = getLightBlockIds();
+        NBTTagList sections = level.getTagList("Sections", Constants.NBT.TAG_COMPOUND);
+
+        for (int i = 0; i < sections.tagCount(); i++)
+        {
+            // The arrays are the tags' own, so changing them changes what is written
+            NBTTagCompound section = sections.getCompoundTagAt(i);
+            byte[] blocks = section.getByteArray("Blocks");
+            byte[] add = section.hasKey("Add", Constants.NBT.TAG_BYTE_ARRAY) ? section.getByteArray("Add") : null;
+            byte[] data = section.getByteArray("Data");
+
+            if (blocks.length < SECTION_VOLUME || data.length < SECTION_VOLUME / 2)
+            {
+                continue;
+            }
+
+            for (int index = 0; index < SECTION_VOLUME; index++)
+            {
+                int blockId = blocks[index] & 255;
+                if (add != null)
+                {
+                    blockId |= getNibble(add, index) << 8;
+                }
+
+                if (lightIds[blockId])
+                {
+                    blocks[index] = 0;
+                    if (add != null)
+                    {
+                        clearNibble(add, index);
+                    }
+                    clearNibble(data, index);
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Lookup of the numeric block IDs of the light blocks, which can change between worlds
+     */
+    private static boolean[] getLightBlockIds()
+    {
+        boolean[] lightIds = new boolean[4096];
+        for (Block block : BlockRegistry.RegistrationHandler.SET_BLOCKS)
+        {
+            lightIds[Block.getIdFromBlock(block) & 4095] = true;
+        }
+        return lightIds;
+    }
+
+    // Even indexes are the low nibble, like vanilla's NibbleArray
+    private static int getNibble(byte[] nibbles, int index)
+    {
+        return (nibbles[index >> 1] >> ((index & 1) << 2)) & 15;
+    }
+
+    private static void clearNibble(byte[] nibbles, int index)
+    {
+        nibbles[index >> 1] &= (byte) ~(15 << ((index & 1) << 2));
+    }
+}
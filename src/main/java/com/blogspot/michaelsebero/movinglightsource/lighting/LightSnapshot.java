@@ -0,0 +1,446 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.util.BitArray;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.BlockStateContainer;
+import net.minecraft.world.chunk.BlockStatePaletteRegistry;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.IBlockStatePalette;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copy of the block light, opacity and light sources in a box of the world,
+ * taken on the server thread so a relight can be computed on a worker thread.
+ * Only whole section arrays are copied on the server thread, the cells are
+ * filled in on the worker.
+ * The light values as they were at capture time are kept so the commit can
+ * tell whether the world changed underneath the computation
+ *
+ * Every section in the box also gets a checksum of its block light and block
+ * states at capture. The commit compares them against the world, so a block
+ * placed or broken next to the changed cells, or light written anywhere in
+ * the box, discards the result even where the changed cells still match
+ */
+public class LightSnapshot implements ILightAccess
+{
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+
+    private final byte[] original;
+    private final byte[] light;
+    private final byte[] opacity;
+    private final byte[] source;
+    private final boolean[] loaded;
+
+    // Raw section copies taken on the server thread, emptied once decoded
+    private final List<Section> sections = new ArrayList<>();
+
+    // Every section in the box as chunk x, section y and chunk z packed like a position, and its
+    // checksum at capture. Only used on the server thread
+    private final LongArrayList sectionKeys = new LongArrayList();
+    private final LongArrayList sectionChecksums = new LongArrayList();
+
+    private static final long UNLOADED = -1L;
+    private static final long MISSING = 0L;
+
+    private LightSnapshot(int minX, int minY, int minZ, int maxX, int maxY, int maxZ)
+    {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        sizeX = maxX - minX + 1;
+        sizeY = maxY - minY + 1;
+        sizeZ = maxZ - minZ + 1;
+
+        int volume = sizeX * sizeY * sizeZ;
+        original = new byte[volume];
+        light = new byte[volume];
+        opacity = new byte[volume];
+        source = new byte[volume];
+        loaded = new boolean[volume];
+    }
+
+    /**
+     * Copy a box of the world, inclusive bounds, y is clamped to the world height
+     * The server thread only copies the raw arrays of the sections in the box,
+     * which are decoded into cells by {@link #decode()} on the worker. Block
+     * opacity and emission use the state-only values so they can be worked out
+     * from the copied block states without going through the world
+     */
+    public static LightSnapshot capture(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ)
+    {
+        LightSnapshot snapshot = new LightSnapshot(minX, Math.max(0, minY), minZ, maxX, Math.min(255, maxY), maxZ);
+        int lowY = snapshot.minY;
+        int highY = snapshot.minY + snapshot.sizeY - 1;
+
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++)
+        {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++)
+            {
+                Chunk chunk = world.getChunkProvider().getLoadedChunk(chunkX, chunkZ);
+                for (int sectionY = lowY >> 4; sectionY <= highY >> 4; sectionY++)
+                {
+                    snapshot.sectionKeys.add(LightPos.pack(chunkX, sectionY, chunkZ));
+                    snapshot.sectionChecksums.add(checksum(chunk, sectionY));
+                }
+                if (chunk == null)
+                {
+                    continue;
+                }
+                ExtendedBlockStorage[] storages = chunk.getBlockStorageArray();
+
+                for (int sectionY = lowY >> 4; sectionY <= highY >> 4; sectionY++)
+                {
+                    ExtendedBlockStorage storage = storages[sectionY];
+
+                    // Left out like unloaded cells so the commit never allocates the section
+                    if (storage == Chunk.NULL_BLOCK_STORAGE && MainMod.skipEmptySectionLights)
+                    {
+                        continue;
+                    }
+
+                    snapshot.sections.add(new Section(chunkX, sectionY, chunkZ, storage));
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Whether every section in the box still has the block light and block states it had
+     * at capture, and every chunk is loaded or unloaded as it was. Called on the server thread
+     */
+    public boolean isUnchanged(World world)
+    {
+        for (int i = 0; i < sectionKeys.size(); i++)
+        {
+            long key = sectionKeys.getLong(i);
+            Chunk chunk = world.getChunkProvider().getLoadedChunk(LightPos.getX(key), LightPos.getZ(key));
+            if (checksum(chunk, LightPos.getY(key)) != sectionChecksums.getLong(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checksum of a section's block light nibbles and block state IDs, {@link #UNLOADED}
+     * without a chunk and {@link #MISSING} for a section that was never created.
+     * The section's identity is mixed in, so a section replaced by another counts as changed
+     */
+    private static long checksum(Chunk chunk, int sectionY)
+    {
+        if (chunk == null)
+        {
+            return UNLOADED;
+        }
+        ExtendedBlockStorage storage = chunk.getBlockStorageArray()[sectionY];
+        if (storage == Chunk.NULL_BLOCK_STORAGE)
+        {
+            return MISSING;
+        }
+
+        long hash = System.identityHashCode(storage);
+        byte[] blockLight = storage.getBlockLight().getData();
+        for (byte nibbles : blockLight)
+        {
+            hash = hash * 31L + nibbles;
+        }
+
+        // The ID array and the palette are replaced together when the palette grows
+        BlockStateContainer container = storage.getData();
+        IBlockStatePalette palette = ChunkSections.getPalette(container);
+        BitArray ids = ChunkSections.getStorage(container);
+        if (palette != null && ids != null)
+        {
+            hash = hash * 31L + System.identityHashCode(palette);
+            for (long word : ids.getBackingLongArray())
+            {
+                hash = hash * 31L + word;
+            }
+        }
+        else
+        {
+            for (int cell = 0; cell < 4096; cell++)
+            {
+                hash = hash * 31L + Block.BLOCK_STATE_IDS.get(container.get(cell & 15, cell >> 8, cell >> 4 & 15));
+            }
+        }
+
+        // Keep clear of the two markers
+        return hash == UNLOADED || hash == MISSING ? 1L : hash;
+    }
+
+    /**
+     * Fill the cells from the copied sections, called on the worker before the ops run
+     */
+    public void decode()
+    {
+        int maxX = minX + sizeX - 1;
+        int maxY = minY + sizeY - 1;
+        int maxZ = minZ + sizeZ - 1;
+
+        for (Section section : sections)
+        {
+            int fromX = Math.max(minX, section.chunkX << 4);
+            int toX = Math.min(maxX, (section.chunkX << 4) + 15);
+            int fromY = Math.max(minY, section.sectionY << 4);
+            int toY = Math.min(maxY, (section.sectionY << 4) + 15);
+            int fromZ = Math.max(minZ, section.chunkZ << 4);
+            int toZ = Math.min(maxZ, (section.chunkZ << 4) + 15);
+
+            for (int y = fromY; y <= toY; y++)
+            {
+                for (int x = fromX; x <= toX; x++)
+                {
+                    for (int z = fromZ; z <= toZ; z++)
+                    {
+                        int index = index(x, y, z);
+                        loaded[index] = true;
+
+                        // Missing sections have no block light and nothing in them
+                        if (section.light == null)
+                        {
+                            continue;
+                        }
+
+                        int cell = (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+                        byte level = (byte) (section.light[cell >> 1] >> ((cell & 1) << 2) & 15);
+                        original[index] = level;
+                        light[index] = level;
+
+                        IBlockState state = section.getState(cell);
+                        if (state != null)
+                        {
+                            opacity[index] = (byte) state.getLightOpacity();
+                            // Virtual emitters may already be recorded here
+                            source[index] = (byte) Math.max(source[index], state.getLightValue());
+                        }
+                    }
+                }
+            }
+        }
+        sections.clear();
+    }
+
+    /**
+     * Record a virtual emitter as a light source in the snapshot
+     */
+    public void addSource(long pos, int level)
+    {
+        if (inBounds(pos))
+        {
+            int index = index(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos));
+            source[index] = (byte) Math.max(source[index], level);
+        }
+    }
+
+    public boolean intersects(int otherMinX, int otherMinY, int otherMinZ, int otherMaxX, int otherMaxY, int otherMaxZ)
+    {
+        return otherMaxX >= minX && otherMinX < minX + sizeX &&
+               otherMaxY >= minY && otherMinY < minY + sizeY &&
+               otherMaxZ >= minZ && otherMinZ < minZ + sizeZ;
+    }
+
+    /**
+     * Number of cells whose light changed since capture
+     */
+    public int countChanges()
+    {
+        int changes = 0;
+        for (int i = 0; i < light.length; i++)
+        {
+            if (light[i] != original[i])
+            {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Write the changed cells into the given arrays, sized by {@link #countChanges()}
+     */
+    public void collectChanges(long[] positions, byte[] levels, byte[] originals)
+    {
+        int changes = 0;
+        for (int y = 0; y < sizeY; y++)
+        {
+            for (int x = 0; x < sizeX; x++)
+            {
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    int index = (y * sizeX + x) * sizeZ + z;
+                    if (light[index] != original[index])
+                    {
+                        positions[changes] = LightPos.pack(minX + x, minY + y, minZ + z);
+                        levels[changes] = light[index];
+                        originals[changes] = original[index];
+                        changes++;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean inBounds(long pos)
+    {
+        int x = LightPos.getX(pos) - minX;
+        int y = LightPos.getY(pos) - minY;
+        int z = LightPos.getZ(pos) - minZ;
+        return x >= 0 && x < sizeX && y >= 0 && y < sizeY && z >= 0 && z < sizeZ;
+    }
+
+    private int index(int x, int y, int z)
+    {
+        return ((y - minY) * sizeX + (x - minX)) * sizeZ + (z - minZ);
+    }
+
+    private int index(long pos)
+    {
+        return index(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos));
+    }
+
+    @Override
+    public boolean contains(long pos)
+    {
+        return inBounds(pos) && loaded[index(pos)];
+    }
+
+    @Override
+    public int getLight(long pos)
+    {
+        return light[index(pos)];
+    }
+
+    @Override
+    public void setLight(long pos, int level)
+    {
+        light[index(pos)] = (byte) level;
+    }
+
+    @Override
+    public int getOpacity(long pos)
+    {
+        return opacity[index(pos)];
+    }
+
+    @Override
+    public int getSourceLevel(long pos)
+    {
+        return source[index(pos)];
+    }
+
+    /**
+     * Copy of one 16 cubed section's block light nibbles and block states
+     * The states are kept as packed palette indices with a copy of a small palette,
+     * or with no palette when the section uses the global block state ids, which
+     * never change once the game has loaded
+     */
+    private static class Section
+    {
+        private final int chunkX;
+        private final int sectionY;
+        private final int chunkZ;
+
+        // Null for a missing section
+        private final byte[] light;
+
+        // Null for a section without blocks, indices into the palette when a palette is set
+        private final BitArray ids;
+        private final IBlockState[] palette;
+
+        // States of every cell, only when the section's arrays couldn't be read
+        private final IBlockState[] cells;
+
+        private Section(int chunkX, int sectionY, int chunkZ, ExtendedBlockStorage storage)
+        {
+            this.chunkX = chunkX;
+            this.sectionY = sectionY;
+            this.chunkZ = chunkZ;
+
+            if (storage == Chunk.NULL_BLOCK_STORAGE)
+            {
+                light = null;
+                ids = null;
+                palette = null;
+                cells = null;
+                return;
+            }
+            light = storage.getBlockLight().getData().clone();
+
+            if (storage.isEmpty())
+            {
+                ids = null;
+                palette = null;
+                cells = null;
+                return;
+            }
+
+            BlockStateContainer container = storage.getData();
+            IBlockStatePalette containerPalette = ChunkSections.getPalette(container);
+            BitArray storageIds = ChunkSections.getStorage(container);
+            if (containerPalette == null || storageIds == null)
+            {
+                ids = null;
+                palette = null;
+                cells = new IBlockState[4096];
+                for (int cell = 0; cell < 4096; cell++)
+                {
+                    cells[cell] = container.get(cell & 15, cell >> 8, cell >> 4 & 15);
+                }
+                return;
+            }
+
+            long[] longs = storageIds.getBackingLongArray();
+            int bits = longs.length * 64 / 4096;
+            ids = new BitArray(bits, 4096);
+            System.arraycopy(longs, 0, ids.getBackingLongArray(), 0, longs.length);
+            cells = null;
+
+            if (containerPalette instanceof BlockStatePaletteRegistry)
+            {
+                palette = null;
+            }
+            else
+            {
+                palette = new IBlockState[1 << bits];
+                for (int i = 0; i < palette.length; i++)
+                {
+                    palette[i] = containerPalette.getBlockState(i);
+                }
+            }
+        }
+
+        /**
+         * State of a cell by its index within the section, null if it holds no blocks
+         */
+        private IBlockState getState(int cell)
+        {
+            if (cells != null)
+            {
+                return cells[cell];
+            }
+            if (ids == null)
+            {
+                return null;
+            }
+            int id = ids.getAt(cell);
+            return palette == null ? Block.BLOCK_STATE_IDS.getByValue(id) : palette[id];
+        }
+    }
+}
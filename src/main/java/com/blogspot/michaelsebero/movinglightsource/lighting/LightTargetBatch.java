@@ -0,0 +1,271 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.blocks.BlockMovingLightSource;
+
+import net.minecraft.block.Block;
+import net.minecraft.entity.Entity;
+import net.minecraft.init.Blocks;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * One tick's dropped items or burning projectiles that may give off light,
+ * copied into primitive arrays on the server thread together with the cell
+ * each one should light. Large batches work out their target cells in parallel
+ * over shards sorted by chunk, small ones on the server thread, and the results
+ * are then read back in order so the writes are queued serially.
+ *
+ * Workers only read block states out of chunks resolved beforehand, and the
+ * server thread waits on the pool while they run, so nothing writes to those
+ * chunks underneath them
+ */
+public class LightTargetBatch
+{
+    // Emitters per fork join leaf
+    private static final int SHARD_SIZE = 64;
+
+    // The index takes the low bits of the sort keys, larger batches keep their natural order
+    private static final int INDEX_BITS = 20;
+    private static final int MAX_SORTED = 1 << INDEX_BITS;
+
+    private static final byte NO_TARGET = -1;
+
+    private int count = 0;
+    private Entity[] entities = new Entity[64];
+    private int[] xs = new int[64];
+    private int[] ys = new int[64];
+    private int[] zs = new int[64];
+    private byte[] levels = new byte[64];
+    private Chunk[] chunks = new Chunk[64];
+
+    // Cells above the entity cell picked as targets, and the block found there
+    private byte[] targetOffsets = new byte[64];
+    private Block[] targetBlocks = new Block[64];
+
+    private long[] sortKeys = new long[64];
+
+    /**
+     * Add an entity to the batch
+     * @param level light the entity gives off, zero to have its light removed
+     */
+    public void add(Entity entity, int level)
+    {
+        int x = MathHelper.floor(entity.posX);
+        int z = MathHelper.floor(entity.posZ);
+        World world = entity.world;
+
+        // Neighbouring emitters usually share a chunk
+        Chunk chunk = count > 0 ? chunks[count - 1] : null;
+        if (chunk == null || chunk.x != x >> 4 || chunk.z != z >> 4)
+        {
+            chunk = world.getChunkProvider().getLoadedChunk(x >> 4, z >> 4);
+        }
+
+        add(entity, x, MathHelper.floor(entity.posY), z, level, chunk);
+    }
+
+    /**
+     * Add an emitter at a block position
+     * @param chunk loaded chunk holding the position, null if it isn't loaded
+     */
+    public void add(Entity entity, int x, int y, int z, int level, Chunk chunk)
+    {
+        if (count == entities.length)
+        {
+            grow(count * 2);
+        }
+
+        entities[count] = entity;
+        xs[count] = x;
+        ys[count] = y;
+        zs[count] = z;
+        levels[count] = (byte) level;
+        chunks[count] = chunk;
+        targetOffsets[count] = NO_TARGET;
+        targetBlocks[count] = null;
+        count++;
+    }
+
+    /**
+     * Work out the target cell of every emitter in the batch
+     * @param parallelThreshold batch size from which the work is spread over the common fork join pool
+     */
+    public void computeTargets(int parallelThreshold)
+    {
+        if (count < parallelThreshold)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                computeTarget(i);
+            }
+            return;
+        }
+
+        sortByChunk();
+        ForkJoinPool.commonPool().invoke(new ShardTask(0, count));
+    }
+
+    /**
+     * First of the entity cell and the cell above that is air or already a light block
+     */
+    private void computeTarget(int i)
+    {
+        Chunk chunk = chunks[i];
+        if (chunk == null)
+        {
+            return;
+        }
+
+        for (int offset = 0; offset <= 1; offset++)
+        {
+            Block block = chunk.getBlockState(xs[i], ys[i] + offset, zs[i]).getBlock();
+            if (block == Blocks.AIR || block instanceof BlockMovingLightSource)
+            {
+                targetOffsets[i] = (byte) offset;
+                targetBlocks[i] = block;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Order the shards by chunk so each worker reads a few chunks instead of many
+     */
+    private void sortByChunk()
+    {
+        if (count >= MAX_SORTED)
+        {
+            return;
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            long chunkX = (xs[i] >> 4) & 0x3FFFFF;
+            long chunkZ = (zs[i] >> 4) & 0x3FFFFF;
+            sortKeys[i] = chunkX << (INDEX_BITS + 22) | chunkZ << INDEX_BITS | i;
+        }
+        Arrays.sort(sortKeys, 0, count);
+    }
+
+    private int sortedIndex(int slot)
+    {
+        return count < MAX_SORTED ? (int) (sortKeys[slot] & (MAX_SORTED - 1)) : slot;
+    }
+
+    private boolean sameChunk(int slotA, int slotB)
+    {
+        return count < MAX_SORTED && sortKeys[slotA] >>> INDEX_BITS == sortKeys[slotB] >>> INDEX_BITS;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public Entity getEntity(int i)
+    {
+        return entities[i];
+    }
+
+    public int getLevel(int i)
+    {
+        return levels[i];
+    }
+
+    /**
+     * Packed cell the entity is in, which is what the virtual light engine lights
+     */
+    public long getEntityPos(int i)
+    {
+        return LightPos.pack(xs[i], ys[i], zs[i]);
+    }
+
+    public boolean hasTarget(int i)
+    {
+        return targetOffsets[i] != NO_TARGET;
+    }
+
+    /**
+     * Packed cell the light block goes in
+     */
+    public long getTargetPos(int i)
+    {
+        return LightPos.pack(xs[i], ys[i] + targetOffsets[i], zs[i]);
+    }
+
+    /**
+     * Block at the target cell when the batch was computed, air or a light block
+     */
+    public Block getTargetBlock(int i)
+    {
+        return targetBlocks[i];
+    }
+
+    /**
+     * Drop the entity and chunk references so the batch can be reused next tick
+     */
+    public void clear()
+    {
+        Arrays.fill(entities, 0, count, null);
+        Arrays.fill(chunks, 0, count, null);
+        Arrays.fill(targetBlocks, 0, count, null);
+        count = 0;
+    }
+
+    private void grow(int size)
+    {
+        entities = Arrays.copyOf(entities, size);
+        xs = Arrays.copyOf(xs, size);
+        ys = Arrays.copyOf(ys, size);
+        zs = Arrays.copyOf(zs, size);
+        levels = Arrays.copyOf(levels, size);
+        chunks = Arrays.copyOf(chunks, size);
+        targetOffsets = Arrays.copyOf(targetOffsets, size);
+        targetBlocks = Arrays.copyOf(targetBlocks, size);
+        sortKeys = Arrays.copyOf(sortKeys, size);
+    }
+
+    /**
+     * Range of sorted slots, split in halves on chunk boundaries down to the shard size
+     */
+    private class ShardTask extends RecursiveAction
+    {
+        private final int from;
+        private final int to;
+
+        private ShardTask(int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > SHARD_SIZE)
+            {
+                int middle = (from + to) >>> 1;
+                while (middle < to && sameChunk(middle - 1, middle))
+                {
+                    middle++;
+                }
+
+                if (middle < to)
+                {
+                    invokeAll(new ShardTask(from, middle), new ShardTask(middle, to));
+                    return;
+                }
+            }
+
+            for (int slot = from; slot < to; slot++)
+            {
+                computeTarget(sortedIndex(slot));
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The last light block writes of a world in a fixed ring of primitive arrays,
+ * so recording one is a handful of array stores and never allocates. The ring
+ * is only read when it is dumped to a text file, by command or after a server
+ * tick slower than the configured threshold. Dumps after a slow tick are copied
+ * on the server thread and written by a background thread. Recording and
+ * copying are server thread only
+ */
+public class LightTrace
+{
+    public enum Reason
+    {
+        OWNER("owner placed or changed it"),
+        OWNER_LEFT("owner moved away or stopped glowing"),
+        ORPHAN_SWEEP("owner no longer seen"),
+        TILE_ENTITY("tile entity lost its owner"),
+        AUDIT("audit found it orphaned"),
+        RECONCILE("not claimed after a restart"),
+        JOURNAL("left behind by a crash"),
+        CHUNK_LOAD("saved with its chunk"),
+        CHUNK_UNLOAD("chunk unloaded");
+
+        private final String label;
+
+        Reason(String label)
+        {
+            this.label = label;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    // Slow ticks in a row only dump once a minute
+    private static final long AUTO_DUMP_COOLDOWN_NANOS = 60000000000L;
+
+    private static final Map<Integer, LightTrace> TRACES = new HashMap<>();
+
+    private static long lastAutoDump = 0;
+
+    private static ExecutorService writer;
+
+    private final World world;
+    private final long[] ticks;
+    private final int[] owners;
+    private final long[] positions;
+    private final byte[] actions;
+    private final byte[] oldLevels;
+    private final byte[] newLevels;
+    private final byte[] reasons;
+    private int next = 0;
+    private long recorded = 0;
+
+    private LightTrace(World world, int size)
+    {
+        this.world = world;
+        ticks = new long[size];
+        owners = new int[size];
+        positions = new long[size];
+        actions = new byte[size];
+        oldLevels = new byte[size];
+        newLevels = new byte[size];
+        reasons = new byte[size];
+    }
+
+    /**
+     * Get the trace of a world, creating it if needed
+     * @return null if tracing is turned off
+     */
+    public static LightTrace get(World world)
+    {
+        int dimension = world.provider.getDimension();
+        LightTrace trace = TRACES.get(dimension);
+        if (trace == null)
+        {
+            if (MainMod.lightTraceSize <= 0)
+            {
+                return null;
+            }
+            trace = new LightTrace(world, MainMod.lightTraceSize);
+            TRACES.put(dimension, trace);
+        }
+        return trace;
+    }
+
+    public static void remove(World world)
+    {
+        TRACES.remove(world.provider.getDimension());
+    }
+
+    /**
+     * Record a light block write, overwriting the oldest once the ring is full
+     * @param owner entity id the light follows, -1 if unknown
+     */
+    public void record(int owner, BlockPos pos, LightFlightRecorder.Action action, int oldLevel, int newLevel, Reason reason)
+    {
+        ticks[next] = world.getTotalWorldTime();
+        owners[next] = owner;
+        positions[next] = pos.toLong();
+        actions[next] = (byte) action.ordinal();
+        oldLevels[next] = (byte) oldLevel;
+        newLevels[next] = (byte) newLevel;
+        reasons[next] = (byte) reason.ordinal();
+
+        if (++next == ticks.length)
+        {
+            next = 0;
+        }
+        recorded++;
+    }
+
+    /**
+     * Write the ring to a text file in the world folder, oldest first
+     * @param cause why it was dumped, written in the header
+     * @return the file written
+     */
+    public File dump(String cause) throws IOException
+    {
+        return copy(cause).write();
+    }
+
+    /**
+     * Copy the ring in order, oldest first, so it can be written off the server thread
+     */
+    private Dump copy(String cause)
+    {
+        int count = (int) Math.min(recorded, ticks.length);
+        int first = recorded > ticks.length ? next : 0;
+        Dump dump = new Dump(count);
+        dump.directory = new File(world.getSaveHandler().getWorldDirectory(), MainMod.MODID + "_traces");
+        dump.dimension = world.provider.getDimension();
+        dump.worldTime = world.getTotalWorldTime();
+        dump.recorded = recorded;
+        dump.cause = cause;
+
+        // At most two runs, the end of the ring and then its start
+        int tail = Math.min(count, ticks.length - first);
+        copyRun(dump, first, 0, tail);
+        copyRun(dump, 0, tail, count - tail);
+        return dump;
+    }
+
+    private void copyRun(Dump dump, int from, int to, int length)
+    {
+        System.arraycopy(ticks, from, dump.ticks, to, length);
+        System.arraycopy(owners, from, dump.owners, to, length);
+        System.arraycopy(positions, from, dump.positions, to, length);
+        System.arraycopy(actions, from, dump.actions, to, length);
+        System.arraycopy(oldLevels, from, dump.oldLevels, to, length);
+        System.arraycopy(newLevels, from, dump.newLevels, to, length);
+        System.arraycopy(reasons, from, dump.reasons, to, length);
+    }
+
+    /**
+     * Dump every world's trace once a server tick takes longer than the configured threshold
+     * The rings are copied on the server thread and written by a background thread
+     */
+    public static void onServerTick(long tickNanos)
+    {
+        if (MainMod.lightTraceDumpMillis <= 0 || tickNanos < MainMod.lightTraceDumpMillis * 1000000L)
+        {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (lastAutoDump != 0 && now - lastAutoDump < AUTO_DUMP_COOLDOWN_NANOS)
+        {
+            return;
+        }
+        lastAutoDump = now;
+
+        final String cause = "dumped after a " + tickNanos / 1000000L + " ms tick";
+        for (LightTrace trace : TRACES.values())
+        {
+            if (trace.recorded == 0)
+            {
+                continue;
+            }
+
+            final Dump dump = trace.copy(cause);
+            getWriter().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        System.out.println("Light trace " + cause + ": " + dump.write());
+                    }
+                    catch (IOException e)
+                    {
+                        System.out.println("Could not dump the light trace: " + e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Single daemon thread writing automatic dumps, one at a time in order
+     */
+    private static synchronized ExecutorService getWriter()
+    {
+        if (writer == null)
+        {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "MovingLightSource Trace Writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writer;
+    }
+
+    /**
+     * A copy of a ring in order, oldest first, with what its file header needs
+     */
+    private static class Dump
+    {
+        private final long[] ticks;
+        private final int[] owners;
+        private final long[] positions;
+        private final byte[] actions;
+        private final byte[] oldLevels;
+        private final byte[] newLevels;
+        private final byte[] reasons;
+        private File directory;
+        private int dimension;
+        private long worldTime;
+        private long recorded;
+        private String cause;
+
+        private Dump(int count)
+        {
+            ticks = new long[count];
+            owners = new int[count];
+            positions = new long[count];
+            actions = new byte[count];
+            oldLevels = new byte[count];
+            newLevels = new byte[count];
+            reasons = new byte[count];
+        }
+
+        private File write() throws IOException
+        {
+            String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            File path = new File(directory, "trace_" + dimension + "_" + time + ".txt");
+            directory.mkdirs();
+
+            LightFlightRecorder.Action[] actionValues = LightFlightRecorder.Action.values();
+            Reason[] reasonValues = Reason.values();
+
+            try (PrintWriter writer = new PrintWriter(path, "UTF-8"))
+            {
+                writer.println("# Moving light trace of dimension " + dimension + ", " + cause);
+                writer.println("# Last " + ticks.length + " of " + recorded + " writes at world tick " + worldTime);
+                writer.println("# tick owner x y z action old new reason");
+                for (int i = 0; i < ticks.length; i++)
+                {
+                    BlockPos pos = BlockPos.fromLong(positions[i]);
+                    writer.println(ticks[i] + " " + owners[i] + " " + pos.getX() + " " + pos.getY() + " " + pos.getZ()
+                        + " " + actionValues[actions[i]] + " " + oldLevels[i] + " " + newLevels[i]
+                        + " " + reasonValues[reasons[i]] + " (" + reasonValues[reasons[i]].getLabel() + ")");
+                }
+            }
+            return path;
+        }
+    }
+}
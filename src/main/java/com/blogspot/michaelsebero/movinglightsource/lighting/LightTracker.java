@@ -0,0 +1,412 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Light blocks placed for dropped items or burning projectiles in one world.
+ * Each entity has a record of where its light is, which light block it is and
+ * the last tick it was seen, and each light position has an owning entity.
+ *
+ * Records are kept in flat arrays with open addressing and positions are packed
+ * longs, so refreshing a light that didn't move and sweeping for entities that
+ * disappeared don't allocate. A light that moves allocates when its write is
+ * queued. Records are also indexed by the chunk their light
+ * is in, so everything in a chunk that unloads can be dropped at once
+ */
+public class LightTracker
+{
+    public static final int NO_OWNER = Integer.MIN_VALUE;
+
+    private static final Map<Integer, LightTracker> ITEMS = new HashMap<>();
+    private static final Map<Integer, LightTracker> PROJECTILES = new HashMap<>();
+
+    // Kept at most three quarters full
+    private int[] ids;
+    private boolean[] used;
+    private long[] positions;
+    private Block[] blocks;
+    private long[] seenTicks;
+    private int mask;
+    private int size = 0;
+
+    // Entity owning each light block position
+    private final Long2IntOpenHashMap owners = new Long2IntOpenHashMap();
+
+    // Tracked entity IDs by the chunk their light is in
+    private final Long2ObjectOpenHashMap<IntArrayList> byChunk = new Long2ObjectOpenHashMap<>();
+
+    // Emptied chunk lists, reused so lights crossing chunk borders don't allocate. There are
+    // never more of them than chunks that held tracked lights at once
+    private IntArrayList[] spareLists = new IntArrayList[16];
+    private int spareCount = 0;
+
+    // Entity IDs found by the last sweep
+    private int[] stale = new int[16];
+
+    LightTracker()
+    {
+        allocate(16);
+        owners.defaultReturnValue(NO_OWNER);
+    }
+
+    /**
+     * Get the dropped item tracker for a world, creating it if needed
+     */
+    public static LightTracker getItems(World world)
+    {
+        return get(ITEMS, world);
+    }
+
+    /**
+     * Get the burning projectile tracker for a world, creating it if needed
+     */
+    public static LightTracker getProjectiles(World world)
+    {
+        return get(PROJECTILES, world);
+    }
+
+    private static LightTracker get(Map<Integer, LightTracker> trackers, World world)
+    {
+        int dimension = world.provider.getDimension();
+        LightTracker tracker = trackers.get(dimension);
+        if (tracker == null)
+        {
+            tracker = new LightTracker();
+            trackers.put(dimension, tracker);
+        }
+        return tracker;
+    }
+
+    /**
+     * Drop the trackers for a world that is unloading
+     */
+    public static void remove(World world)
+    {
+        ITEMS.remove(world.provider.getDimension());
+        PROJECTILES.remove(world.provider.getDimension());
+    }
+
+    /**
+     * Drop all trackers, e.g. when the config changes
+     */
+    public static void clearAll()
+    {
+        ITEMS.clear();
+        PROJECTILES.clear();
+    }
+
+    public boolean isTracked(int entityId)
+    {
+        return find(entityId) >= 0;
+    }
+
+    /**
+     * Packed position of the entity's light, only meaningful if the entity is tracked
+     */
+    public long getPos(int entityId)
+    {
+        int slot = find(entityId);
+        return slot >= 0 ? positions[slot] : 0L;
+    }
+
+    /**
+     * Light block placed for the entity, null if the entity isn't tracked
+     */
+    public Block getBlock(int entityId)
+    {
+        int slot = find(entityId);
+        return slot >= 0 ? blocks[slot] : null;
+    }
+
+    /**
+     * Record where the entity's light is, the entity counts as seen at the given tick
+     */
+    public void track(int entityId, long pos, Block block, long worldTime)
+    {
+        int slot = find(entityId);
+        if (slot < 0)
+        {
+            if ((size + 1) * 4 > ids.length * 3)
+            {
+                rehash(ids.length * 2);
+            }
+            slot = mix(entityId) & mask;
+            while (used[slot])
+            {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            ids[slot] = entityId;
+            size++;
+            index(entityId, pos);
+        }
+        else if (chunkKey(positions[slot]) != chunkKey(pos))
+        {
+            unindex(entityId, positions[slot]);
+            index(entityId, pos);
+        }
+
+        positions[slot] = pos;
+        blocks[slot] = block;
+        seenTicks[slot] = worldTime;
+    }
+
+    /**
+     * Forget the entity's record, its light position keeps its owner
+     * @return whether the entity was tracked
+     */
+    public boolean untrack(int entityId)
+    {
+        int slot = find(entityId);
+        if (slot < 0)
+        {
+            return false;
+        }
+        unindex(entityId, positions[slot]);
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Forget every entity whose light is in the chunk, along with the ownership of those lights
+     * @return number of records dropped
+     */
+    public int dropChunk(int chunkX, int chunkZ)
+    {
+        IntArrayList entityIds = byChunk.remove(ChunkPos.asLong(chunkX, chunkZ));
+        if (entityIds == null)
+        {
+            return 0;
+        }
+
+        for (int i = 0; i < entityIds.size(); i++)
+        {
+            int entityId = entityIds.getInt(i);
+            int slot = find(entityId);
+            if (slot >= 0)
+            {
+                if (owners.get(positions[slot]) == entityId)
+                {
+                    owners.remove(positions[slot]);
+                }
+                removeSlot(slot);
+            }
+        }
+
+        int dropped = entityIds.size();
+        recycle(entityIds);
+        return dropped;
+    }
+
+    /**
+     * Note that the entity still exists, does nothing for entities without a light
+     */
+    public void markSeen(int entityId, long worldTime)
+    {
+        int slot = find(entityId);
+        if (slot >= 0)
+        {
+            seenTicks[slot] = worldTime;
+        }
+    }
+
+    /**
+     * Find the tracked entities in the tick's phase slot that weren't seen this tick
+     * @return number of entities found, read them with {@link #getStale(int)}
+     */
+    public int sweep(long worldTime, int interval)
+    {
+        int count = 0;
+        for (int slot = 0; slot < ids.length; slot++)
+        {
+            if (used[slot] && seenTicks[slot] != worldTime && LightLoadController.isInPhase(worldTime, ids[slot], interval))
+            {
+                if (count == stale.length)
+                {
+                    stale = Arrays.copyOf(stale, count * 2);
+                }
+                stale[count++] = ids[slot];
+            }
+        }
+        return count;
+    }
+
+    public int getStale(int i)
+    {
+        return stale[i];
+    }
+
+    /**
+     * Entity owning the light at a position, {@link #NO_OWNER} if none
+     */
+    public int getOwner(long pos)
+    {
+        return owners.get(pos);
+    }
+
+    public void setOwner(long pos, int entityId)
+    {
+        owners.put(pos, entityId);
+    }
+
+    public void removeOwner(long pos)
+    {
+        owners.remove(pos);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Copy every record out, the arrays need room for {@link #size()} records from the offset on
+     * @return number of records copied
+     */
+    public int copyRecords(int[] entityIds, long[] recordPositions, Block[] recordBlocks, int offset)
+    {
+        int count = offset;
+        for (int slot = 0; slot < ids.length; slot++)
+        {
+            if (used[slot])
+            {
+                entityIds[count] = ids[slot];
+                recordPositions[count] = positions[slot];
+                recordBlocks[count] = blocks[slot];
+                count++;
+            }
+        }
+        return count - offset;
+    }
+
+    private void index(int entityId, long pos)
+    {
+        long key = chunkKey(pos);
+        IntArrayList entityIds = byChunk.get(key);
+        if (entityIds == null)
+        {
+            entityIds = spareCount > 0 ? spareLists[--spareCount] : new IntArrayList(4);
+            byChunk.put(key, entityIds);
+        }
+        entityIds.add(entityId);
+    }
+
+    private void unindex(int entityId, long pos)
+    {
+        long key = chunkKey(pos);
+        IntArrayList entityIds = byChunk.get(key);
+        if (entityIds != null && entityIds.rem(entityId) && entityIds.isEmpty())
+        {
+            byChunk.remove(key);
+            recycle(entityIds);
+        }
+    }
+
+    private void recycle(IntArrayList entityIds)
+    {
+        entityIds.clear();
+        if (spareCount == spareLists.length)
+        {
+            spareLists = Arrays.copyOf(spareLists, spareCount * 2);
+        }
+        spareLists[spareCount++] = entityIds;
+    }
+
+    private static long chunkKey(long pos)
+    {
+        return ChunkPos.asLong(LightPos.getX(pos) >> 4, LightPos.getZ(pos) >> 4);
+    }
+
+    private int find(int entityId)
+    {
+        int slot = mix(entityId) & mask;
+        while (used[slot])
+        {
+            if (ids[slot] == entityId)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Linear probing removal, later entries of the run are shifted back so lookups never need tombstones
+     */
+    private void removeSlot(int slot)
+    {
+        size--;
+        int last = slot;
+        int current = (slot + 1) & mask;
+        while (used[current])
+        {
+            int home = mix(ids[current]) & mask;
+            boolean stays = last <= current ? last < home && home <= current : last < home || home <= current;
+            if (!stays)
+            {
+                ids[last] = ids[current];
+                positions[last] = positions[current];
+                blocks[last] = blocks[current];
+                seenTicks[last] = seenTicks[current];
+                last = current;
+            }
+            current = (current + 1) & mask;
+        }
+        used[last] = false;
+        blocks[last] = null;
+    }
+
+    private void rehash(int capacity)
+    {
+        int[] oldIds = ids;
+        boolean[] oldUsed = used;
+        long[] oldPositions = positions;
+        Block[] oldBlocks = blocks;
+        long[] oldSeenTicks = seenTicks;
+
+        allocate(capacity);
+        for (int i = 0; i < oldIds.length; i++)
+        {
+            if (oldUsed[i])
+            {
+                int slot = mix(oldIds[i]) & mask;
+                while (used[slot])
+                {
+                    slot = (slot + 1) & mask;
+                }
+                used[slot] = true;
+                ids[slot] = oldIds[i];
+                positions[slot] = oldPositions[i];
+                blocks[slot] = oldBlocks[i];
+                seenTicks[slot] = oldSeenTicks[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        ids = new int[capacity];
+        used = new boolean[capacity];
+        positions = new long[capacity];
+        blocks = new Block[capacity];
+        seenTicks = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    // Entity IDs are sequential, spread them over the table
+    private static int mix(int entityId)
+    {
+        int hash = entityId * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,209 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Light engine settings that can be changed on a running server, e.g. through
+ * JMX. Changes are staged from any thread and applied together on the server
+ * thread at the end of the next tick, so a tick never sees half of a change.
+ * They only last until the config is loaded again, movinglightsource.cfg is
+ * left alone.
+ *
+ * Other threads read the values from a copy the server thread publishes at the
+ * end of each tick, since the config fields themselves aren't volatile
+ */
+public final class LightTunables
+{
+    public enum Tunable
+    {
+        ITEM_INTERVAL,
+        PROJECTILE_INTERVAL,
+        LIVING_INTERVAL,
+        WORK_BUDGET_MICROS,
+        MIN_WORK_BUDGET_MICROS,
+        QUEUE_CAPACITY,
+        PARALLEL_TARGET_THRESHOLD
+    }
+
+    private static final Tunable[] TUNABLES = Tunable.values();
+
+    private static final Map<Tunable, Integer> STAGED = new EnumMap<>(Tunable.class);
+
+    // Values as of the end of the last server tick, by ordinal, null before the first
+    private static volatile int[] published;
+
+    private LightTunables()
+    {
+    }
+
+    /**
+     * Stage a new value, applied at the end of the next server tick
+     * @throws IllegalArgumentException if the value is below 1, or the minimum work
+     * budget would end up above the work budget with the other staged values
+     */
+    public static void stage(Tunable tunable, int value)
+    {
+        if (value < 1)
+        {
+            throw new IllegalArgumentException(tunable + " must be at least 1, got " + value);
+        }
+
+        synchronized (STAGED)
+        {
+            Map<Tunable, Integer> changes = new EnumMap<>(STAGED);
+            changes.put(tunable, value);
+            String error = checkPairs(changes);
+            if (error != null)
+            {
+                throw new IllegalArgumentException(error);
+            }
+            STAGED.put(tunable, value);
+        }
+    }
+
+    /**
+     * Check the values that must stay in order against each other, with the changes applied
+     * @return why the changes can't be applied, null if they can
+     */
+    private static String checkPairs(Map<Tunable, Integer> changes)
+    {
+        int minBudget = changes.containsKey(Tunable.MIN_WORK_BUDGET_MICROS) ? changes.get(Tunable.MIN_WORK_BUDGET_MICROS) : get(Tunable.MIN_WORK_BUDGET_MICROS);
+        int budget = changes.containsKey(Tunable.WORK_BUDGET_MICROS) ? changes.get(Tunable.WORK_BUDGET_MICROS) : get(Tunable.WORK_BUDGET_MICROS);
+        if (minBudget > budget)
+        {
+            return Tunable.MIN_WORK_BUDGET_MICROS + " " + minBudget + " can't be above " + Tunable.WORK_BUDGET_MICROS + " " + budget;
+        }
+        return null;
+    }
+
+    /**
+     * Apply every staged value at once and publish the values for other threads, server thread only
+     * The work budget pair is checked again, the config may have been reloaded since it was staged
+     */
+    public static void applyStaged()
+    {
+        Map<Tunable, Integer> changes = null;
+        synchronized (STAGED)
+        {
+            if (!STAGED.isEmpty())
+            {
+                changes = new EnumMap<>(STAGED);
+                STAGED.clear();
+            }
+        }
+
+        if (changes != null)
+        {
+            // Checked against the fields as they are now
+            publish();
+            String error = checkPairs(changes);
+            if (error != null)
+            {
+                changes.remove(Tunable.MIN_WORK_BUDGET_MICROS);
+                changes.remove(Tunable.WORK_BUDGET_MICROS);
+                System.out.println("Light engine work budget change not applied: " + error);
+            }
+
+            for (Map.Entry<Tunable, Integer> change : changes.entrySet())
+            {
+                set(change.getKey(), change.getValue());
+                System.out.println("Light engine " + change.getKey() + " = " + change.getValue());
+            }
+        }
+
+        publish();
+    }
+
+    /**
+     * Copy the current values for other threads, only when one changed
+     */
+    private static void publish()
+    {
+        int[] values = published;
+        if (values != null)
+        {
+            boolean changed = false;
+            for (Tunable tunable : TUNABLES)
+            {
+                changed |= values[tunable.ordinal()] != read(tunable);
+            }
+            if (!changed)
+            {
+                return;
+            }
+        }
+
+        values = new int[TUNABLES.length];
+        for (Tunable tunable : TUNABLES)
+        {
+            values[tunable.ordinal()] = read(tunable);
+        }
+        published = values;
+    }
+
+    /**
+     * Current value as of the end of the last server tick, safe from any thread
+     * Staged changes aren't included until they are applied
+     */
+    public static int get(Tunable tunable)
+    {
+        int[] values = published;
+        return values == null ? read(tunable) : values[tunable.ordinal()];
+    }
+
+    private static int read(Tunable tunable)
+    {
+        switch (tunable)
+        {
+            case ITEM_INTERVAL:
+                return MainMod.itemLightUpdateInterval;
+            case PROJECTILE_INTERVAL:
+                return MainMod.projectileLightUpdateInterval;
+            case LIVING_INTERVAL:
+                return MainMod.livingLightUpdateInterval;
+            case WORK_BUDGET_MICROS:
+                return MainMod.lightWorkBudgetMicros;
+            case MIN_WORK_BUDGET_MICROS:
+                return MainMod.adaptiveMinBudgetMicros;
+            case QUEUE_CAPACITY:
+                return MainMod.lightWorkQueueCapacity;
+            case PARALLEL_TARGET_THRESHOLD:
+                return MainMod.parallelLightTargetThreshold;
+            default:
+                throw new IllegalArgumentException("Unknown tunable " + tunable);
+        }
+    }
+
+    private static void set(Tunable tunable, int value)
+    {
+        switch (tunable)
+        {
+            case ITEM_INTERVAL:
+                MainMod.itemLightUpdateInterval = value;
+                break;
+            case PROJECTILE_INTERVAL:
+                MainMod.projectileLightUpdateInterval = value;
+                break;
+            case LIVING_INTERVAL:
+                MainMod.livingLightUpdateInterval = value;
+                break;
+            case WORK_BUDGET_MICROS:
+                MainMod.lightWorkBudgetMicros = value;
+                break;
+            case MIN_WORK_BUDGET_MICROS:
+                MainMod.adaptiveMinBudgetMicros = value;
+                break;
+            case QUEUE_CAPACITY:
+                MainMod.lightWorkQueueCapacity = value;
+                break;
+            case PARALLEL_TARGET_THRESHOLD:
+                MainMod.parallelLightTargetThreshold = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tunable " + tunable);
+        }
+    }
+}
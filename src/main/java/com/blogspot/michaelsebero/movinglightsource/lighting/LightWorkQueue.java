@@ -0,0 +1,755 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+import com.blogspot.michaelsebero.movinglightsource.blocks.BlockMovingLightSource;
+import com.blogspot.michaelsebero.movinglightsource.tileentities.TileEntityMovingLightSource;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.item.EntityItem;
+import net.minecraft.init.Blocks;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.EnumSkyBlock;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-world queue of pending light block placements, removals and level changes
+ * Work is drained at the end of the world tick under a time budget, leftovers
+ * carry over to the next tick and only the newest request per position is kept
+ * 
+ * This is the only place light blocks are written. A request that would put a
+ * position back to the state it had when it was first queued cancels out, and
+ * writes skip neighbor and observer notifications since the light blocks have
+ * no neighbor behaviour of their own
+ * 
+ * Writes are applied a chunk at a time so that the vanilla player chunk map
+ * sends each chunk's light changes for the tick as one multi-block change
+ * packet, and a chunk never gets enough changes in one tick to make vanilla
+ * fall back to resending whole chunk sections
+ * 
+ * The queue never loads or generates a chunk. Placements for chunks that are
+ * not loaded are dropped, and removals are held per chunk until it loads again
+ * 
+ * Lights taken out of a chunk's save data leave their block light behind, and
+ * vanilla doesn't relight a removal whose neighbours aren't loaded. The chunk's
+ * light index keeps those positions, and they are relit once the area around
+ * them is loaded so no glow is left without a source
+ * 
+ * Pending ops are pooled in a {@link LightOpQueue} keyed by packed position, so
+ * queuing and coalescing the same lights tick after tick doesn't allocate.
+ * Held removals and relights are rare and keep plain objects
+ */
+public class LightWorkQueue
+{
+    // Lower value is applied first
+    public static final int PRIORITY_REMOVE = 0; // Stale lights first so moving lights don't leave trails
+    public static final int PRIORITY_PLAYER = 1;
+    public static final int PRIORITY_ENTITY = 2;
+
+    // Send to clients, but don't notify neighbors (1) or observers (16 suppresses)
+    public static final int LIGHT_UPDATE_FLAGS = 2 | 16;
+
+    // Vanilla resends the chunk sections at 64 changes per tick, leave room for other mods and players
+    private static final int MAX_WRITES_PER_CHUNK = 48;
+
+    // Vanilla only relights when everything within this radius is loaded
+    private static final int RELIGHT_RADIUS = 17;
+
+    // Ticks between retries of relights still waiting for their neighbours
+    private static final int RELIGHT_RETRY_TICKS = 20;
+
+    // Held removals older than this are dropped, five minutes
+    private static final long HELD_EXPIRY_TICKS = 6000L;
+
+    private static final Map<Integer, LightWorkQueue> QUEUES = new HashMap<>();
+
+    // Newest op per position, grouped by chunk so a chunk's writes go out together
+    private final LightOpQueue ops = new LightOpQueue(MainMod.lightWorkQueueCapacity);
+
+    // Writes per chunk during the current drain
+    private final Long2IntOpenHashMap chunkWrites = new Long2IntOpenHashMap();
+
+    // Removals for chunks that weren't loaded, replayed when the chunk loads. Capped like
+    // the queue and aged out, the chunk's light index still has a dropped light's position
+    private final Map<Long, List<HeldRemoval>> heldForLoad = new HashMap<>();
+    private int heldCount = 0;
+
+    // Former light positions whose block light still has to be relit, per chunk
+    private final Map<Long, List<BlockPos>> relights = new HashMap<>();
+
+    private final World world;
+
+    // Only used for reads, writes get their own position since vanilla may keep it
+    private final BlockPos.MutableBlockPos cursor = new BlockPos.MutableBlockPos();
+
+    private LightWorkQueue(World world)
+    {
+        this.world = world;
+    }
+
+    /**
+     * Get the queue for a world, creating it if needed
+     */
+    public static LightWorkQueue get(World world)
+    {
+        int dimension = world.provider.getDimension();
+        LightWorkQueue queue = QUEUES.get(dimension);
+        if (queue == null)
+        {
+            queue = new LightWorkQueue(world);
+            QUEUES.put(dimension, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Drop the queue for a world that is unloading
+     */
+    public static void remove(World world)
+    {
+        QUEUES.remove(world.provider.getDimension());
+    }
+
+    /**
+     * Drop all queues, e.g. when the config changes
+     */
+    public static void clearAll()
+    {
+        QUEUES.clear();
+    }
+
+    /**
+     * Queue a light block placement or level change
+     * @return false if the queue is full or the chunk or section is missing and the placement was refused
+     */
+    public boolean enqueuePlace(BlockPos pos, Block lightBlock, Entity owner, int priority)
+    {
+        return enqueuePlace(pos.toLong(), lightBlock, owner, priority);
+    }
+
+    /**
+     * Queue a light block placement or level change at a packed position
+     * @return false if the queue is full or the chunk or section is missing and the placement was refused
+     */
+    public boolean enqueuePlace(long pos, Block lightBlock, Entity owner, int priority)
+    {
+        // Backpressure: refuse new placements rather than growing without bound
+        if (ops.size() >= MainMod.lightWorkQueueCapacity && ops.find(pos) == LightOpQueue.NONE)
+        {
+            return false;
+        }
+
+        // Never load a chunk just to light it
+        if (!world.isBlockLoaded(cursor.setPos(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos))))
+        {
+            return false;
+        }
+
+        // Open sky: leave the section unallocated rather than light it. Lights in an empty section
+        // right above the ground are still placed, vanilla relighting may also spread into and
+        // allocate empty neighbours. Refusing every light that reaches one would drop most lights
+        // near the surface
+        if (MainMod.skipEmptySectionLights && ChunkSections.isOpenSky(world, LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos)))
+        {
+            return false;
+        }
+
+        add(pos, lightBlock.getDefaultState(), owner, false, priority, LightTrace.Reason.OWNER);
+        return true;
+    }
+
+    /**
+     * Queue a light block removal, removals are always accepted
+     * @param itemLight whether the tile entity should be marked as an item light first
+     * @param reason why the light is removed, for the trace
+     */
+    public void enqueueRemove(BlockPos pos, boolean itemLight, LightTrace.Reason reason)
+    {
+        enqueueRemove(pos.toLong(), itemLight, reason);
+    }
+
+    /**
+     * Queue a light block removal at a packed position, removals are always accepted
+     */
+    public void enqueueRemove(long pos, boolean itemLight, LightTrace.Reason reason)
+    {
+        add(pos, Blocks.AIR.getDefaultState(), null, itemLight, PRIORITY_REMOVE, reason);
+    }
+
+    private void add(long pos, IBlockState state, Entity owner, boolean itemLight, int priority, LightTrace.Reason reason)
+    {
+        cursor.setPos(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos));
+        if (!world.isBlockLoaded(cursor))
+        {
+            holdForLoad(pos, state, itemLight, reason);
+            return;
+        }
+
+        int slot = ops.find(pos);
+        if (slot != LightOpQueue.NONE)
+        {
+            // Opposing writes cancel out, e.g. a removal followed by the same light again
+            if (ops.getOriginal(slot) == state)
+            {
+                ops.release(slot);
+                return;
+            }
+        }
+        else
+        {
+            slot = ops.add(pos, world.getBlockState(cursor));
+            if (slot == LightOpQueue.NONE)
+            {
+                return;
+            }
+        }
+
+        ops.set(slot, state, owner, itemLight, priority, reason, System.nanoTime());
+    }
+
+    /**
+     * Keep a removal until its chunk loads, a placement has no use by then and is dropped
+     * Once as many removals are held as the queue holds ops, further ones are dropped and
+     * left to the chunk's light index
+     */
+    private void holdForLoad(long pos, IBlockState state, boolean itemLight, LightTrace.Reason reason)
+    {
+        if (state.getBlock() != Blocks.AIR || heldCount >= MainMod.lightWorkQueueCapacity)
+        {
+            return;
+        }
+
+        long chunkKey = ChunkPos.asLong(LightPos.getX(pos) >> 4, LightPos.getZ(pos) >> 4);
+        List<HeldRemoval> held = heldForLoad.get(chunkKey);
+        if (held == null)
+        {
+            held = new ArrayList<>();
+            heldForLoad.put(chunkKey, held);
+        }
+        for (HeldRemoval other : held)
+        {
+            if (other.pos.toLong() == pos)
+            {
+                return;
+            }
+        }
+        held.add(new HeldRemoval(BlockPos.fromLong(pos), itemLight, reason, world.getTotalWorldTime()));
+        heldCount++;
+    }
+
+    /**
+     * Drop the held removals of a chunk
+     * @return the removals, null if there were none
+     */
+    private List<HeldRemoval> takeHeld(long chunkKey)
+    {
+        List<HeldRemoval> held = heldForLoad.remove(chunkKey);
+        if (held != null)
+        {
+            heldCount -= held.size();
+        }
+        return held;
+    }
+
+    /**
+     * Drop held removals whose chunk stayed unloaded too long, every second
+     */
+    private void expireHeld()
+    {
+        long now = world.getTotalWorldTime();
+        if (heldCount == 0 || now % RELIGHT_RETRY_TICKS != 0)
+        {
+            return;
+        }
+
+        Iterator<List<HeldRemoval>> chunks = heldForLoad.values().iterator();
+        while (chunks.hasNext())
+        {
+            List<HeldRemoval> held = chunks.next();
+            Iterator<HeldRemoval> iterator = held.iterator();
+            while (iterator.hasNext())
+            {
+                if (now - iterator.next().heldSince > HELD_EXPIRY_TICKS)
+                {
+                    iterator.remove();
+                    heldCount--;
+                }
+            }
+            if (held.isEmpty())
+            {
+                chunks.remove();
+            }
+        }
+    }
+
+    /**
+     * Queue the removals held for a chunk that just loaded, and the removal of
+     * every light its index says was saved with it
+     * Positions whose light block is already gone are relit instead
+     */
+    public void onChunkLoad(Chunk chunk)
+    {
+        List<HeldRemoval> held = takeHeld(ChunkPos.asLong(chunk.x, chunk.z));
+        if (held != null)
+        {
+            for (HeldRemoval op : held)
+            {
+                if (chunk.getBlockState(op.pos).getBlock() instanceof BlockMovingLightSource)
+                {
+                    enqueueRemove(op.pos, op.itemLight, op.reason);
+                }
+                else
+                {
+                    // Stripped from the save, its block light may still be there
+                    forget(op.pos);
+                    queueRelight(op.pos);
+                }
+            }
+        }
+
+        ChunkLightIndex index = ChunkLightIndex.get(chunk);
+        if (index != null && !index.isEmpty())
+        {
+            List<BlockPos> saved = new ArrayList<>();
+            index.drainTo(chunk, saved);
+            for (BlockPos pos : saved)
+            {
+                if (chunk.getBlockState(pos).getBlock() instanceof BlockMovingLightSource)
+                {
+                    enqueueRemove(pos, false, LightTrace.Reason.CHUNK_LOAD);
+                }
+                else
+                {
+                    queueRelight(pos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leave a light in place because its entity came back and took it over
+     * Drops the removal held for it and its entry in the chunk's light index
+     */
+    public void keep(BlockPos pos)
+    {
+        long chunkKey = ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+        List<HeldRemoval> held = heldForLoad.get(chunkKey);
+        if (held != null)
+        {
+            Iterator<HeldRemoval> iterator = held.iterator();
+            while (iterator.hasNext())
+            {
+                if (iterator.next().pos.equals(pos))
+                {
+                    iterator.remove();
+                    heldCount--;
+                }
+            }
+            if (held.isEmpty())
+            {
+                heldForLoad.remove(chunkKey);
+            }
+        }
+
+        Chunk chunk = world.getChunkProvider().getLoadedChunk(pos.getX() >> 4, pos.getZ() >> 4);
+        ChunkLightIndex index = chunk == null ? null : ChunkLightIndex.get(chunk);
+        if (index != null)
+        {
+            index.remove(pos);
+        }
+    }
+
+    /**
+     * Remove the light blocks of a chunk that is unloading and drop the work waiting for it
+     * Forge fires the unload before the chunk is saved, so the lights never reach the region file
+     */
+    public void onChunkUnload(Chunk chunk)
+    {
+        long chunkKey = ChunkPos.asLong(chunk.x, chunk.z);
+        takeHeld(chunkKey);
+
+        // Relights that never got their neighbours are saved with the chunk and retried when it loads
+        List<BlockPos> waiting = relights.remove(chunkKey);
+        ChunkLightIndex index = ChunkLightIndex.get(chunk);
+        if (waiting != null && index != null)
+        {
+            for (BlockPos pos : waiting)
+            {
+                index.add(pos);
+            }
+        }
+
+        ops.releaseChunk(chunkKey);
+
+        // Every light block has a tile entity, collect them first since removing changes the map
+        List<BlockPos> lights = new ArrayList<>();
+        for (TileEntity te : chunk.getTileEntityMap().values())
+        {
+            if (te instanceof TileEntityMovingLightSource)
+            {
+                lights.add(te.getPos());
+            }
+        }
+
+        for (BlockPos pos : lights)
+        {
+            IBlockState current = chunk.getBlockState(pos);
+            if (current.getBlock() instanceof BlockMovingLightSource)
+            {
+                write(pos, current, Blocks.AIR.getDefaultState(), null, 0L, LightTrace.Reason.CHUNK_UNLOAD);
+            }
+        }
+    }
+
+    /**
+     * Whether any work is still waiting for this position
+     */
+    public boolean isPending(BlockPos pos)
+    {
+        return isPending(pos.toLong());
+    }
+
+    public boolean isPending(long pos)
+    {
+        return ops.find(pos) != LightOpQueue.NONE;
+    }
+
+    /**
+     * Number of positions with work still waiting
+     */
+    public int size()
+    {
+        return ops.size();
+    }
+
+    /**
+     * Apply queued work until the queue is empty or the budget is spent
+     * At least one op is always applied so the queue can't stall
+     * @return number of ops applied
+     */
+    public int drain(long budgetMicros)
+    {
+        long deadline = System.nanoTime() + budgetMicros * 1000L;
+        int applied = 0;
+
+        retryRelights();
+        expireHeld();
+
+        int slot;
+        while ((slot = ops.poll()) != LightOpQueue.NONE)
+        {
+            // Chunk already got its share this tick
+            long chunkKey = ops.getChunkKey(slot);
+            int written = chunkWrites.get(chunkKey);
+            if (written >= MAX_WRITES_PER_CHUNK)
+            {
+                ops.defer(slot);
+                continue;
+            }
+
+            applied += drainChunk(slot, written);
+
+            if (System.nanoTime() >= deadline)
+            {
+                break;
+            }
+        }
+
+        ops.restoreDeferred();
+        chunkWrites.clear();
+
+        return applied;
+    }
+
+    /**
+     * Apply an op along with the rest of the pending work in its chunk
+     * @return number of ops applied
+     */
+    private int drainChunk(int first, int alreadyWritten)
+    {
+        long chunkKey = ops.getChunkKey(first);
+        int written = alreadyWritten;
+
+        applyPending(first);
+        written++;
+
+        int slot;
+        while (written < MAX_WRITES_PER_CHUNK && (slot = ops.firstInChunk(chunkKey)) != LightOpQueue.NONE)
+        {
+            applyPending(slot);
+            written++;
+        }
+
+        chunkWrites.put(chunkKey, written);
+        return written - alreadyWritten;
+    }
+
+    /**
+     * Take an op out of the queue and apply it, the slot is released first so the write may queue more work
+     */
+    private void applyPending(int slot)
+    {
+        long pos = ops.getPos(slot);
+        IBlockState state = ops.getState(slot);
+        Entity owner = ops.getOwner(slot);
+        boolean itemLight = ops.isItemLight(slot);
+        LightTrace.Reason reason = ops.getReason(slot);
+        long queuedNanos = ops.getQueuedNanos(slot);
+        ops.release(slot);
+        apply(pos, state, owner, itemLight, reason, queuedNanos);
+    }
+
+    private void apply(long packed, IBlockState state, Entity owner, boolean itemLight, LightTrace.Reason reason, long queuedNanos)
+    {
+        // The chunk unloaded while the op was waiting
+        cursor.setPos(LightPos.getX(packed), LightPos.getY(packed), LightPos.getZ(packed));
+        if (!world.isBlockLoaded(cursor))
+        {
+            holdForLoad(packed, state, itemLight, reason);
+            return;
+        }
+
+        IBlockState current = world.getBlockState(cursor);
+        Block currentBlock = current.getBlock();
+
+        if (state.getBlock() == Blocks.AIR)
+        {
+            if (currentBlock instanceof BlockMovingLightSource)
+            {
+                BlockPos pos = cursor.toImmutable();
+                if (itemLight)
+                {
+                    TileEntity te = world.getTileEntity(pos);
+                    if (te instanceof TileEntityMovingLightSource)
+                    {
+                        ((TileEntityMovingLightSource) te).markAsItemLight();
+                    }
+                }
+                write(pos, current, state, owner, queuedNanos, reason);
+            }
+            else
+            {
+                forget(cursor);
+            }
+            return;
+        }
+
+        // Only place into empty space or over another moving light
+        BlockPos pos = cursor.toImmutable();
+        if (currentBlock == Blocks.AIR || (currentBlock instanceof BlockMovingLightSource && current != state))
+        {
+            write(pos, current, state, owner, queuedNanos, reason);
+        }
+        else if (currentBlock != state.getBlock())
+        {
+            return;
+        }
+
+        if (owner instanceof EntityItem && !owner.isDead)
+        {
+            TileEntity te = world.getTileEntity(pos);
+            if (te instanceof TileEntityMovingLightSource)
+            {
+                ((TileEntityMovingLightSource) te).setTrackedItem((EntityItem) owner);
+            }
+        }
+    }
+
+    /**
+     * Write a light block or clear one, keeping the chunk's light index, the journal and the metrics up to date
+     * @param previous state of the position before the write, air or a light block
+     * @param owner entity the light follows, null for removals
+     * @param queuedNanos when the write was queued, 0 if it wasn't
+     * @param reason why the write happened, for the trace
+     */
+    private void write(BlockPos pos, IBlockState previous, IBlockState state, Entity owner, long queuedNanos, LightTrace.Reason reason)
+    {
+        Chunk chunk = world.getChunkProvider().getLoadedChunk(pos.getX() >> 4, pos.getZ() >> 4);
+
+        // Removals aren't queued with an owner, the tile entity still knows who the light followed
+        if (owner == null && chunk != null)
+        {
+            owner = getLightOwner(chunk, pos);
+        }
+
+        LightFlightRecorder.Action action;
+        LightMetrics.Counter counter;
+        if (state.getBlock() == Blocks.AIR)
+        {
+            action = LightFlightRecorder.Action.REMOVE;
+            counter = LightMetrics.Counter.REMOVED;
+        }
+        else if (previous.getBlock() == Blocks.AIR)
+        {
+            action = LightFlightRecorder.Action.PLACE;
+            counter = LightMetrics.Counter.PLACED;
+        }
+        else
+        {
+            action = LightFlightRecorder.Action.LEVEL_CHANGE;
+            counter = LightMetrics.Counter.LEVEL_CHANGED;
+        }
+
+        int oldLevel = previous.getLightValue();
+        int newLevel = state.getLightValue();
+
+        // The event times the write itself, which includes vanilla's relight around it
+        Object event = LightFlightRecorder.beginWrite(action);
+        world.setBlockState(pos, state, LIGHT_UPDATE_FLAGS);
+        if (event != null)
+        {
+            long latency = queuedNanos == 0L ? 0L : System.nanoTime() - queuedNanos;
+            LightFlightRecorder.commitWrite(event, world, pos, oldLevel, newLevel, owner, latency);
+        }
+
+        LightMetrics metrics = LightMetrics.get(world);
+        metrics.increment(counter);
+        LightChurnTracker.get(world).record(owner, pos);
+
+        LightTrace trace = LightTrace.get(world);
+        if (trace != null)
+        {
+            trace.record(owner == null ? -1 : owner.getEntityId(), pos, action, oldLevel, newLevel, reason);
+        }
+
+        LightJournal journal = LightJournal.get(world);
+        if (journal != null)
+        {
+            journal.record(pos, state.getBlock() != Blocks.AIR);
+        }
+
+        ChunkLightIndex index = chunk == null ? null : ChunkLightIndex.get(chunk);
+        if (index != null)
+        {
+            // Vanilla skipped the relight if the neighbours aren't loaded, keep the position to relight later
+            if (state.getBlock() != Blocks.AIR || !world.isAreaLoaded(pos, RELIGHT_RADIUS, false))
+            {
+                index.add(pos);
+            }
+            else
+            {
+                index.remove(pos);
+            }
+        }
+    }
+
+    /**
+     * Relight a position whose light block is gone, now if its neighbours are loaded or once they are
+     */
+    private void queueRelight(BlockPos pos)
+    {
+        if (relight(pos))
+        {
+            return;
+        }
+
+        long chunkKey = ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+        List<BlockPos> waiting = relights.get(chunkKey);
+        if (waiting == null)
+        {
+            waiting = new ArrayList<>();
+            relights.put(chunkKey, waiting);
+        }
+        waiting.add(pos);
+    }
+
+    /**
+     * Recompute the block light around a position
+     * @return false if the neighbours aren't loaded yet
+     */
+    private boolean relight(BlockPos pos)
+    {
+        if (!world.isAreaLoaded(pos, RELIGHT_RADIUS, false))
+        {
+            return false;
+        }
+        world.checkLightFor(EnumSkyBlock.BLOCK, pos);
+        LightMetrics.get(world).increment(LightMetrics.Counter.RELIGHTS);
+        return true;
+    }
+
+    /**
+     * Retry the relights still waiting for their neighbours, every second
+     */
+    private void retryRelights()
+    {
+        if (relights.isEmpty() || world.getTotalWorldTime() % RELIGHT_RETRY_TICKS != 0)
+        {
+            return;
+        }
+
+        Iterator<List<BlockPos>> chunks = relights.values().iterator();
+        while (chunks.hasNext())
+        {
+            List<BlockPos> waiting = chunks.next();
+            Iterator<BlockPos> iterator = waiting.iterator();
+            while (iterator.hasNext())
+            {
+                if (relight(iterator.next()))
+                {
+                    iterator.remove();
+                }
+            }
+            if (waiting.isEmpty())
+            {
+                chunks.remove();
+            }
+        }
+    }
+
+    /**
+     * Entity the light block's tile entity follows, null if it has none
+     */
+    private static Entity getLightOwner(Chunk chunk, BlockPos pos)
+    {
+        TileEntity te = chunk.getTileEntity(pos, Chunk.EnumCreateEntityType.CHECK);
+        if (te instanceof TileEntityMovingLightSource)
+        {
+            TileEntityMovingLightSource light = (TileEntityMovingLightSource) te;
+            return light.getEntityLiving() != null ? light.getEntityLiving() : light.getTrackedItem();
+        }
+        return null;
+    }
+
+    /**
+     * Drop a light from the journal when its removal finds it already gone
+     */
+    private void forget(BlockPos pos)
+    {
+        LightJournal journal = LightJournal.get(world);
+        if (journal != null)
+        {
+            journal.record(pos, false);
+        }
+    }
+
+    /**
+     * A removal waiting for its chunk to load
+     */
+    private static class HeldRemoval
+    {
+        private final BlockPos pos;
+        private final boolean itemLight;
+        private final LightTrace.Reason reason;
+        private final long heldSince; // world time it was held for its chunk to load
+
+        private HeldRemoval(BlockPos pos, boolean itemLight, LightTrace.Reason reason, long heldSince)
+        {
+            this.pos = pos;
+            this.itemLight = itemLight;
+            this.reason = reason;
+            this.heldSince = heldSince;
+        }
+    }
+}
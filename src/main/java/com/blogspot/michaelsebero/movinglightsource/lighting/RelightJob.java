@@ -0,0 +1,393 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.EnumSkyBlock;
+import net.minecraft.world.World;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of virtual light additions and removals in one region of the world,
+ * computed against a {@link LightSnapshot} on a worker thread and committed on
+ * the server thread. The commit is discarded if any section of the region
+ * changed since the snapshot, or any cell it would write no longer holds the
+ * value the computation started from
+ *
+ * Each op carries the emitter it belongs to and that emitter's stamp, so the
+ * ops of an emitter removed while the job was waiting or running can be taken
+ * out before its light is written
+ */
+public class RelightJob implements Callable<RelightJob>
+{
+    // Light from a level 15 source reaches 14 blocks
+    private static final int RADIUS = 15;
+
+    // Largest region a job grows to by taking in more ops, about four single op regions
+    private static final long MAX_VOLUME = 131072L;
+
+    private static ExecutorService executor;
+
+    private static final ThreadLocal<LightPropagator> PROPAGATORS = new ThreadLocal<LightPropagator>()
+    {
+        @Override
+        protected LightPropagator initialValue()
+        {
+            return new LightPropagator();
+        }
+    };
+
+    private int minX;
+    private int minY;
+    private int minZ;
+    private int maxX;
+    private int maxY;
+    private int maxZ;
+
+    private int opCount = 0;
+    private long[] opPositions = new long[4];
+    private int[] opLevels = new int[4];
+    private boolean[] opAdds = new boolean[4];
+    private int[] opEmitters = new int[4];
+    private long[] opStamps = new long[4];
+
+    private LightSnapshot snapshot;
+    private Future<RelightJob> future;
+    private int attempts = 0;
+
+    private long[] changedPositions;
+    private byte[] changedLevels;
+    private byte[] changedOriginals;
+    private boolean verified = false;
+
+    /**
+     * Shared pool of daemon worker threads, one less than the cores available
+     */
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "MovingLightSource Relight #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Whether an op at the position would touch this job's region
+     */
+    public boolean overlaps(long pos)
+    {
+        int x = LightPos.getX(pos);
+        int y = LightPos.getY(pos);
+        int z = LightPos.getZ(pos);
+        return x + RADIUS >= minX && x - RADIUS <= maxX &&
+               y + RADIUS >= minY && y - RADIUS <= maxY &&
+               z + RADIUS >= minZ && z - RADIUS <= maxZ;
+    }
+
+    /**
+     * Whether this job's region touches another job's, so the two can't be computed at the same time
+     */
+    public boolean overlaps(RelightJob other)
+    {
+        return other.maxX >= minX && other.minX <= maxX &&
+               other.maxY >= minY && other.minY <= maxY &&
+               other.maxZ >= minZ && other.minZ <= maxZ;
+    }
+
+    /**
+     * Whether an op at the position fits without growing the region past the volume limit
+     */
+    public boolean canTake(long pos)
+    {
+        int x = LightPos.getX(pos);
+        int y = LightPos.getY(pos);
+        int z = LightPos.getZ(pos);
+        long sizeX = Math.max(maxX, x + RADIUS) - Math.min(minX, x - RADIUS) + 1;
+        long sizeY = Math.max(maxY, y + RADIUS) - Math.min(minY, y - RADIUS) + 1;
+        long sizeZ = Math.max(maxZ, z + RADIUS) - Math.min(minZ, z - RADIUS) + 1;
+        return opCount == 0 || sizeX * sizeY * sizeZ <= MAX_VOLUME;
+    }
+
+    /**
+     * Queue a light addition or removal, growing the region to cover its reach
+     * @param emitterId entity ID of the emitter the op belongs to
+     * @param stamp stamp of that emitter, see {@link #dropOps(LongSet)}
+     */
+    public void addOp(long pos, int level, boolean add, int emitterId, long stamp)
+    {
+        int x = LightPos.getX(pos);
+        int y = LightPos.getY(pos);
+        int z = LightPos.getZ(pos);
+
+        if (opCount == 0)
+        {
+            minX = x - RADIUS;
+            minY = y - RADIUS;
+            minZ = z - RADIUS;
+            maxX = x + RADIUS;
+            maxY = y + RADIUS;
+            maxZ = z + RADIUS;
+        }
+        else
+        {
+            minX = Math.min(minX, x - RADIUS);
+            minY = Math.min(minY, y - RADIUS);
+            minZ = Math.min(minZ, z - RADIUS);
+            maxX = Math.max(maxX, x + RADIUS);
+            maxY = Math.max(maxY, y + RADIUS);
+            maxZ = Math.max(maxZ, z + RADIUS);
+        }
+
+        if (opCount == opPositions.length)
+        {
+            long[] positions = new long[opCount * 2];
+            int[] levels = new int[opCount * 2];
+            boolean[] adds = new boolean[opCount * 2];
+            int[] emitters = new int[opCount * 2];
+            long[] stamps = new long[opCount * 2];
+            System.arraycopy(opPositions, 0, positions, 0, opCount);
+            System.arraycopy(opLevels, 0, levels, 0, opCount);
+            System.arraycopy(opAdds, 0, adds, 0, opCount);
+            System.arraycopy(opEmitters, 0, emitters, 0, opCount);
+            System.arraycopy(opStamps, 0, stamps, 0, opCount);
+            opPositions = positions;
+            opLevels = levels;
+            opAdds = adds;
+            opEmitters = emitters;
+            opStamps = stamps;
+        }
+        opPositions[opCount] = pos;
+        opLevels[opCount] = level;
+        opAdds[opCount] = add;
+        opEmitters[opCount] = emitterId;
+        opStamps[opCount] = stamp;
+        opCount++;
+    }
+
+    /**
+     * Take out the ops of emitters that no longer exist, keeping the rest in order
+     * The region isn't shrunk, it still covers every op left
+     * @param stamps stamps of the removed emitters
+     * @return whether any op was taken out
+     */
+    public boolean dropOps(LongSet stamps)
+    {
+        if (stamps.isEmpty())
+        {
+            return false;
+        }
+
+        int kept = 0;
+        for (int i = 0; i < opCount; i++)
+        {
+            if (!stamps.contains(opStamps[i]))
+            {
+                opPositions[kept] = opPositions[i];
+                opLevels[kept] = opLevels[i];
+                opAdds[kept] = opAdds[i];
+                opEmitters[kept] = opEmitters[i];
+                opStamps[kept] = opStamps[i];
+                kept++;
+            }
+        }
+
+        boolean dropped = kept < opCount;
+        opCount = kept;
+        return dropped;
+    }
+
+    public boolean isEmpty()
+    {
+        return opCount == 0;
+    }
+
+    public int getOpCount()
+    {
+        return opCount;
+    }
+
+    public long getOpPos(int i)
+    {
+        return opPositions[i];
+    }
+
+    public int getOpLevel(int i)
+    {
+        return opLevels[i];
+    }
+
+    public boolean isOpAdd(int i)
+    {
+        return opAdds[i];
+    }
+
+    public int getOpEmitter(int i)
+    {
+        return opEmitters[i];
+    }
+
+    public long getOpStamp(int i)
+    {
+        return opStamps[i];
+    }
+
+    /**
+     * Snapshot the region on the server thread and hand the job to a worker
+     * @param sourcePositions packed positions of the virtual emitters, with their levels in sourceLevels
+     */
+    public void submit(World world, long[] sourcePositions, int[] sourceLevels, int sourceCount)
+    {
+        snapshot = LightSnapshot.capture(world, minX, minY, minZ, maxX, maxY, maxZ);
+        for (int i = 0; i < sourceCount; i++)
+        {
+            snapshot.addSource(sourcePositions[i], sourceLevels[i]);
+        }
+
+        attempts++;
+        future = getExecutor().submit(this);
+    }
+
+    /**
+     * Worker side: replay the ops on the snapshot and collect the changed cells
+     */
+    @Override
+    public RelightJob call()
+    {
+        snapshot.decode();
+        runOn(snapshot, PROPAGATORS.get());
+
+        int changes = snapshot.countChanges();
+        changedPositions = new long[changes];
+        changedLevels = new byte[changes];
+        changedOriginals = new byte[changes];
+        snapshot.collectChanges(changedPositions, changedLevels, changedOriginals);
+        return this;
+    }
+
+    /**
+     * Replay the ops directly, used when the job has to fall back to the server thread
+     */
+    public void runOn(ILightAccess access, LightPropagator propagator)
+    {
+        for (int i = 0; i < opCount; i++)
+        {
+            if (opAdds[i])
+            {
+                propagator.addLight(access, opPositions[i], opLevels[i]);
+            }
+            else
+            {
+                propagator.removeLight(access, opPositions[i], opLevels[i]);
+            }
+        }
+    }
+
+    public boolean isDone()
+    {
+        return future != null && future.isDone();
+    }
+
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    public void cancel()
+    {
+        if (future != null)
+        {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Throw away a finished computation without writing it, so the job can be submitted again
+     * Doesn't count as an attempt, the world didn't change under it
+     */
+    public void discard()
+    {
+        cancel();
+        snapshot = null;
+        future = null;
+        verified = false;
+        changedPositions = null;
+        changedLevels = null;
+        changedOriginals = null;
+        attempts--;
+    }
+
+    /**
+     * Server side: take the finished result and check whether blocks or light anywhere
+     * in the region changed since the snapshot, not just in the cells the job writes.
+     * Every job of a generation is verified before any is committed, neighbouring
+     * jobs may share a section
+     */
+    public void verify(World world)
+    {
+        try
+        {
+            future.get();
+            verified = snapshot.isUnchanged(world);
+        }
+        catch (Exception e)
+        {
+            verified = false;
+        }
+        finally
+        {
+            snapshot = null;
+            future = null;
+        }
+    }
+
+    /**
+     * Server side: write the verified light into the world
+     * @return false if the world changed since the snapshot and nothing was written
+     */
+    public boolean commit(World world)
+    {
+        if (!verified)
+        {
+            return false;
+        }
+        verified = false;
+
+        BlockPos.MutableBlockPos cursor = new BlockPos.MutableBlockPos();
+
+        for (int i = 0; i < changedPositions.length; i++)
+        {
+            long pos = changedPositions[i];
+            cursor.setPos(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos));
+            if (!world.isBlockLoaded(cursor) || world.getLightFor(EnumSkyBlock.BLOCK, cursor) != changedOriginals[i])
+            {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < changedPositions.length; i++)
+        {
+            long pos = changedPositions[i];
+            cursor.setPos(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos));
+            world.setLightFor(EnumSkyBlock.BLOCK, cursor, changedLevels[i]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,155 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import net.minecraft.block.Block;
+import net.minecraft.entity.Entity;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.world.World;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The lights a world's trackers owned when it was saved: the owning entity's
+ * UUID, the packed light position and the light level, in parallel primitive
+ * arrays. Entity IDs don't survive a restart, so owners are stored by UUID.
+ *
+ * Positions are stored as int pairs, 1.12 has no getter for long array tags
+ */
+public class TrackedLightSnapshot
+{
+    private final int count;
+
+    // Four ints per owner, most significant first
+    private final int[] owners;
+    private final long[] positions;
+    private final byte[] levels;
+
+    private TrackedLightSnapshot(int count, int[] owners, long[] positions, byte[] levels)
+    {
+        this.count = count;
+        this.owners = owners;
+        this.positions = positions;
+        this.levels = levels;
+    }
+
+    /**
+     * Snapshot the item and projectile trackers of a world
+     * Records whose entity is gone are left out, their lights are cleaned up like any other stray light
+     */
+    public static TrackedLightSnapshot capture(World world)
+    {
+        LightTracker items = LightTracker.getItems(world);
+        LightTracker projectiles = LightTracker.getProjectiles(world);
+        int capacity = items.size() + projectiles.size();
+
+        int[] entityIds = new int[capacity];
+        long[] recordPositions = new long[capacity];
+        Block[] recordBlocks = new Block[capacity];
+        int records = items.copyRecords(entityIds, recordPositions, recordBlocks, 0);
+        records += projectiles.copyRecords(entityIds, recordPositions, recordBlocks, records);
+
+        int[] owners = new int[records * 4];
+        long[] positions = new long[records];
+        byte[] levels = new byte[records];
+        int count = 0;
+
+        for (int i = 0; i < records; i++)
+        {
+            Entity entity = world.getEntityByID(entityIds[i]);
+            if (entity == null || entity.isDead)
+            {
+                continue;
+            }
+
+            UUID uuid = entity.getUniqueID();
+            owners[count * 4] = (int) (uuid.getMostSignificantBits() >> 32);
+            owners[count * 4 + 1] = (int) uuid.getMostSignificantBits();
+            owners[count * 4 + 2] = (int) (uuid.getLeastSignificantBits() >> 32);
+            owners[count * 4 + 3] = (int) uuid.getLeastSignificantBits();
+            positions[count] = recordPositions[i];
+            levels[count] = (byte) recordBlocks[i].getLightValue(recordBlocks[i].getDefaultState());
+            count++;
+        }
+
+        return new TrackedLightSnapshot(count, owners, positions, levels);
+    }
+
+    public static TrackedLightSnapshot readFromNBT(NBTTagCompound nbt)
+    {
+        int[] owners = nbt.getIntArray("Owners");
+        int[] packedPositions = nbt.getIntArray("Positions");
+        byte[] levels = nbt.getByteArray("Levels");
+
+        // Anything short is treated as truncated at the shortest array
+        int count = Math.min(Math.min(owners.length / 4, packedPositions.length / 2), levels.length);
+        long[] positions = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            positions[i] = (long) packedPositions[i * 2] << 32 | (packedPositions[i * 2 + 1] & 0xFFFFFFFFL);
+        }
+        return new TrackedLightSnapshot(count, owners, positions, levels);
+    }
+
+    public NBTTagCompound writeToNBT(NBTTagCompound nbt)
+    {
+        int[] packedPositions = new int[count * 2];
+        for (int i = 0; i < count; i++)
+        {
+            packedPositions[i * 2] = (int) (positions[i] >> 32);
+            packedPositions[i * 2 + 1] = (int) positions[i];
+        }
+
+        nbt.setIntArray("Owners", Arrays.copyOf(owners, count * 4));
+        nbt.setIntArray("Positions", packedPositions);
+        nbt.setByteArray("Levels", Arrays.copyOf(levels, count));
+        return nbt;
+    }
+
+    /**
+     * Whether both snapshots hold the same lights in the same order
+     */
+    public boolean sameAs(TrackedLightSnapshot other)
+    {
+        if (other == null || other.count != count)
+        {
+            return false;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            if (positions[i] != other.positions[i] || levels[i] != other.levels[i])
+            {
+                return false;
+            }
+        }
+        for (int i = 0; i < count * 4; i++)
+        {
+            if (owners[i] != other.owners[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public UUID getOwner(int i)
+    {
+        long most = (long) owners[i * 4] << 32 | (owners[i * 4 + 1] & 0xFFFFFFFFL);
+        long least = (long) owners[i * 4 + 2] << 32 | (owners[i * 4 + 3] & 0xFFFFFFFFL);
+        return new UUID(most, least);
+    }
+
+    public long getPos(int i)
+    {
+        return positions[i];
+    }
+
+    public int getLevel(int i)
+    {
+        return levels[i];
+    }
+}
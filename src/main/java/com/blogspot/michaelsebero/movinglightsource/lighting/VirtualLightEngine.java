@@ -0,0 +1,840 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+import com.blogspot.michaelsebero.movinglightsource.networking.MessageVirtualLightUpdate;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.EnumSkyBlock;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.common.util.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moving lights that write their contribution straight into the chunks' block
+ * light arrays instead of placing light blocks. Each emitter is keyed by its
+ * entity ID and holds a lease that has to be refreshed by the tracker, so
+ * emitters whose entity disappeared expire on their own.
+ *
+ * The server engine batches emitter changes each tick and sends them to the
+ * players watching the affected chunks, where the client engine replays them
+ * against the client world's light arrays
+ * 
+ * With asynchronous relighting on, the server engine doesn't touch the light
+ * arrays while emitters change. The light work is grouped into region jobs
+ * that are computed on worker threads and committed at the start of the next
+ * tick, one generation of jobs at a time
+ *
+ * Each emitter remembers where its light was last written. Emitters reaching a
+ * chunk that unloads have that light removed right away, and their ops still
+ * waiting in or running on relight jobs are dropped so they can't write it back
+ *
+ * Vanilla relights around every block change from the real light sources
+ * only, so virtual light next to a placed or broken block is erased there
+ * and comes back once its emitter moves
+ *
+ * Virtual light lives in the chunks' block light arrays, which are saved.
+ * Emitters reaching a chunk that unloads are removed while it is still
+ * loaded. A chunk saved while it is lit, e.g. by an autosave, lists the
+ * emitters reaching it in its save data. When it loads again their light is
+ * removed once everything it reaches is loaded
+ */
+public class VirtualLightEngine
+{
+    // One map per side, in singleplayer the client and integrated server threads each only touch their own
+    private static final Map<World, VirtualLightEngine> CLIENT_ENGINES = new HashMap<>();
+    private static final Map<World, VirtualLightEngine> SERVER_ENGINES = new HashMap<>();
+
+    // Lease for emitters on the client, which are only removed by the server
+    private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    // A job discarded this many times is computed on the server thread instead
+    private static final int MAX_RELIGHT_ATTEMPTS = 3;
+
+    // Chunk save data tag listing the emitters whose light was saved with it, x, y, z and level per emitter
+    private static final String SAVED_LIGHTS_TAG = MainMod.MODID + ":virtual_lights";
+
+    // Ticks between tries of saved light removals still waiting for their neighbours
+    private static final int SAVED_LIGHT_RETRY_TICKS = 20;
+
+    private final World world;
+    private final LightPropagator propagator = new LightPropagator();
+    private final ILightAccess access;
+
+    // Keyed by entity ID without boxing, emitters are looked up every time they are refreshed
+    private final Int2ObjectOpenHashMap<Emitter> emitters = new Int2ObjectOpenHashMap<>();
+    // First emitter at each position, the rest are chained through the emitters so moving one doesn't allocate
+    private final Long2ObjectOpenHashMap<Emitter> emittersByPos = new Long2ObjectOpenHashMap<>();
+
+    // Changes since the last client sync, in parallel arrays reused every tick
+    private int changeCount = 0;
+    private int[] changeIds = new int[16];
+    private long[] changeOldPositions = new long[16];
+    private int[] changeOldLevels = new int[16];
+    private long[] changeNewPositions = new long[16];
+    private int[] changeNewLevels = new int[16];
+
+    // Light saved with chunks by an earlier session, waiting for its area to load, per chunk
+    private final Map<Long, List<SavedLight>> savedLights = new HashMap<>();
+
+    // Relight work waiting for the next generation, and the generation on the workers
+    private final List<RelightJob> pendingJobs = new ArrayList<>();
+    private final List<RelightJob> runningJobs = new ArrayList<>();
+
+    // Stamps of emitters removed with their chunk while jobs were running, and the next stamp handed out
+    private final LongOpenHashSet removedStamps = new LongOpenHashSet();
+    private long nextStamp = 0;
+
+    private VirtualLightEngine(World world)
+    {
+        this.world = world;
+        this.access = new WorldLightAccess();
+    }
+
+    /**
+     * Get the engine for a world, creating it if needed
+     */
+    public static VirtualLightEngine get(World world)
+    {
+        Map<World, VirtualLightEngine> engines = getEngines(world);
+        VirtualLightEngine engine = engines.get(world);
+        if (engine == null)
+        {
+            engine = new VirtualLightEngine(world);
+            engines.put(world, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Drop the engine for a world that is unloading, called on the thread of the world's side
+     */
+    public static void remove(World world)
+    {
+        VirtualLightEngine engine = getEngines(world).remove(world);
+        if (engine != null)
+        {
+            for (RelightJob job : engine.runningJobs)
+            {
+                job.cancel();
+            }
+        }
+    }
+
+    /**
+     * Engines of the world's side, each map is only used by that side's thread
+     */
+    private static Map<World, VirtualLightEngine> getEngines(World world)
+    {
+        return world.isRemote ? CLIENT_ENGINES : SERVER_ENGINES;
+    }
+
+    /**
+     * Set or move an emitter, refreshing its lease
+     * @param leaseTicks ticks the emitter lives without being refreshed
+     */
+    public void setEmitter(int emitterId, BlockPos pos, int level, int leaseTicks)
+    {
+        setEmitter(emitterId, LightPos.pack(pos.getX(), pos.getY(), pos.getZ()), level, leaseTicks);
+    }
+
+    /**
+     * Set or move an emitter at a packed position, refreshing its lease
+     */
+    public void setEmitter(int emitterId, long packed, int level, int leaseTicks)
+    {
+        if (level <= 0)
+        {
+            removeEmitter(emitterId);
+            return;
+        }
+
+        long expiresAt = world.getTotalWorldTime() + leaseTicks;
+
+        Emitter emitter = emitters.get(emitterId);
+        if (emitter != null && emitter.pos == packed && emitter.level == level)
+        {
+            emitter.expiresAt = expiresAt;
+            return;
+        }
+
+        long oldPos = 0L;
+        int oldLevel = 0;
+        if (emitter != null)
+        {
+            oldPos = emitter.pos;
+            oldLevel = emitter.level;
+            unindex(emitter);
+            relight(emitter, oldPos, oldLevel, false);
+        }
+        else
+        {
+            emitter = new Emitter(emitterId, nextStamp++);
+            emitters.put(emitterId, emitter);
+        }
+
+        emitter.pos = packed;
+        emitter.level = level;
+        emitter.expiresAt = expiresAt;
+        index(emitter);
+        relight(emitter, packed, level, true);
+
+        recordChange(emitterId, oldPos, oldLevel, packed, level);
+    }
+
+    /**
+     * Remove an emitter and the light it contributed
+     */
+    public void removeEmitter(int emitterId)
+    {
+        Emitter emitter = emitters.remove(emitterId);
+        if (emitter == null)
+        {
+            return;
+        }
+
+        unindex(emitter);
+        relight(emitter, emitter.pos, emitter.level, false);
+        recordChange(emitterId, emitter.pos, emitter.level, 0L, 0);
+    }
+
+    /**
+     * Apply an emitter change sent by the server
+     * The old position is used when this client never saw the emitter being added
+     */
+    public void applyRemoteChange(int emitterId, long oldPos, int oldLevel, long newPos, int newLevel)
+    {
+        Emitter emitter = emitters.remove(emitterId);
+        if (emitter != null)
+        {
+            unindex(emitter);
+            propagator.removeLight(access, emitter.pos, emitter.level);
+        }
+        else if (oldLevel > 0)
+        {
+            propagator.removeLight(access, oldPos, oldLevel);
+        }
+
+        if (newLevel > 0)
+        {
+            emitter = new Emitter(emitterId, nextStamp++);
+            emitter.pos = newPos;
+            emitter.level = newLevel;
+            emitter.expiresAt = NO_EXPIRY;
+            emitters.put(emitterId, emitter);
+            index(emitter);
+            propagator.addLight(access, newPos, newLevel);
+        }
+    }
+
+    /**
+     * Expire emitters whose lease ran out and send this tick's changes to clients
+     */
+    public void tick()
+    {
+        long worldTime = world.getTotalWorldTime();
+
+        Iterator<Emitter> iterator = emitters.values().iterator();
+        while (iterator.hasNext())
+        {
+            Emitter emitter = iterator.next();
+            if (emitter.expiresAt < worldTime)
+            {
+                iterator.remove();
+                unindex(emitter);
+                relight(emitter, emitter.pos, emitter.level, false);
+                recordChange(emitter.id, emitter.pos, emitter.level, 0L, 0);
+            }
+        }
+
+        if (worldTime % SAVED_LIGHT_RETRY_TICKS == 0)
+        {
+            removeSavedLights();
+        }
+
+        submitRelightJobs();
+        sendChanges();
+    }
+
+    /**
+     * Remove every emitter whose light reaches a chunk that is unloading, while
+     * the chunk is still loaded so its saved block light is clean. Entities
+     * still around set their emitters again on their next refresh
+     *
+     * The light is removed from where it was last written, and the emitter's
+     * ops are taken out of the waiting jobs. Jobs already on the workers drop
+     * theirs when they come back, see {@link #commitRelightJobs()}
+     */
+    public void onChunkUnload(Chunk chunk)
+    {
+        boolean removed = false;
+        Iterator<Emitter> iterator = emitters.values().iterator();
+        while (iterator.hasNext())
+        {
+            Emitter emitter = iterator.next();
+            if (reaches(emitter.pos, emitter.level, chunk.x, chunk.z) ||
+                (emitter.litLevel > 0 && reaches(emitter.litPos, emitter.litLevel, chunk.x, chunk.z)))
+            {
+                iterator.remove();
+                unindex(emitter);
+                // Right away rather than through the workers, the chunk is saved next
+                if (emitter.litLevel > 0)
+                {
+                    propagator.removeLight(access, emitter.litPos, emitter.litLevel);
+                    LightMetrics.get(world).increment(LightMetrics.Counter.RELIGHTS);
+                }
+                recordChange(emitter.id, emitter.pos, emitter.level, 0L, 0);
+                removedStamps.add(emitter.stamp);
+                removed = true;
+            }
+        }
+
+        if (!removed)
+        {
+            return;
+        }
+
+        Iterator<RelightJob> jobs = pendingJobs.iterator();
+        while (jobs.hasNext())
+        {
+            RelightJob job = jobs.next();
+            if (job.dropOps(removedStamps) && job.isEmpty())
+            {
+                jobs.remove();
+            }
+        }
+
+        // Only running jobs can still hold the stamps
+        if (runningJobs.isEmpty())
+        {
+            removedStamps.clear();
+        }
+    }
+
+    /**
+     * List the emitters whose light is in a chunk that is being saved, and any saved light
+     * still waiting to be removed from it, in the chunk's save data
+     */
+    public void onChunkSave(Chunk chunk, NBTTagCompound level)
+    {
+        IntArrayList data = new IntArrayList();
+        for (Emitter emitter : emitters.values())
+        {
+            if (reaches(emitter.pos, emitter.level, chunk.x, chunk.z))
+            {
+                addSavedLight(data, emitter.pos, emitter.level);
+            }
+        }
+
+        long chunkKey = ChunkPos.asLong(chunk.x, chunk.z);
+        List<SavedLight> waiting = savedLights.get(chunkKey);
+        if (waiting != null)
+        {
+            for (SavedLight light : waiting)
+            {
+                addSavedLight(data, light.pos, light.level);
+            }
+            // The chunk is unloading and leaves with the list
+            if (!chunk.isLoaded())
+            {
+                savedLights.remove(chunkKey);
+            }
+        }
+
+        if (!data.isEmpty())
+        {
+            level.setIntArray(SAVED_LIGHTS_TAG, data.toIntArray());
+        }
+    }
+
+    private static void addSavedLight(IntArrayList data, long pos, int level)
+    {
+        data.add(LightPos.getX(pos));
+        data.add(LightPos.getY(pos));
+        data.add(LightPos.getZ(pos));
+        data.add(level);
+    }
+
+    /**
+     * Read the saved light list of a chunk's save data, may be called on the chunk IO thread
+     * @return x, y, z and level per emitter, null if there is none
+     */
+    public static int[] readSavedLights(NBTTagCompound level)
+    {
+        return level.hasKey(SAVED_LIGHTS_TAG, Constants.NBT.TAG_INT_ARRAY) ? level.getIntArray(SAVED_LIGHTS_TAG) : null;
+    }
+
+    /**
+     * Queue the removal of the light a chunk was saved with, and try it right away
+     */
+    public void onChunkLoad(Chunk chunk, int[] data)
+    {
+        long chunkKey = ChunkPos.asLong(chunk.x, chunk.z);
+        List<SavedLight> waiting = savedLights.get(chunkKey);
+        if (waiting == null)
+        {
+            waiting = new ArrayList<>();
+            savedLights.put(chunkKey, waiting);
+        }
+        for (int i = 0; i + 3 < data.length; i += 4)
+        {
+            waiting.add(new SavedLight(LightPos.pack(data[i], data[i + 1], data[i + 2]), data[i + 3]));
+        }
+
+        removeSavedLights();
+    }
+
+    /**
+     * Remove saved light whose whole reach is loaded, so the removal clears all of it
+     */
+    private void removeSavedLights()
+    {
+        Iterator<List<SavedLight>> chunks = savedLights.values().iterator();
+        while (chunks.hasNext())
+        {
+            List<SavedLight> waiting = chunks.next();
+            Iterator<SavedLight> iterator = waiting.iterator();
+            while (iterator.hasNext())
+            {
+                SavedLight light = iterator.next();
+                BlockPos pos = new BlockPos(LightPos.getX(light.pos), LightPos.getY(light.pos), LightPos.getZ(light.pos));
+                if (world.isAreaLoaded(pos, light.level, false))
+                {
+                    // A live emitter at the same place is spread back in by the removal
+                    propagator.removeLight(access, light.pos, light.level);
+                    LightMetrics.get(world).increment(LightMetrics.Counter.RELIGHTS);
+                    iterator.remove();
+                }
+            }
+            if (waiting.isEmpty())
+            {
+                chunks.remove();
+            }
+        }
+    }
+
+    /**
+     * Whether light from the position reaches into the chunk, it falls off by one per block
+     */
+    private static boolean reaches(long pos, int level, int chunkX, int chunkZ)
+    {
+        int x = LightPos.getX(pos);
+        int z = LightPos.getZ(pos);
+        int minX = chunkX << 4;
+        int minZ = chunkZ << 4;
+        int dx = Math.max(0, Math.max(minX - x, x - (minX + 15)));
+        int dz = Math.max(0, Math.max(minZ - z, z - (minZ + 15)));
+        return dx + dz < level;
+    }
+
+    /**
+     * Add or remove an emitter's light contribution, now or through the relight workers
+     */
+    private void relight(Emitter emitter, long pos, int level, boolean add)
+    {
+        if (!world.isRemote)
+        {
+            LightMetrics.get(world).increment(LightMetrics.Counter.RELIGHTS);
+        }
+
+        if (!MainMod.asyncVirtualRelight || world.isRemote)
+        {
+            if (add)
+            {
+                propagator.addLight(access, pos, level);
+            }
+            else
+            {
+                propagator.removeLight(access, pos, level);
+            }
+            emitter.setLit(pos, level, add);
+            return;
+        }
+
+        // The newest job the op touches keeps the ops in order, a full one is followed
+        // by a new job that waits for the next generation
+        RelightJob job = null;
+        for (RelightJob pendingJob : pendingJobs)
+        {
+            if (pendingJob.overlaps(pos))
+            {
+                job = pendingJob;
+            }
+        }
+        if (job == null || !job.canTake(pos))
+        {
+            job = new RelightJob();
+            pendingJobs.add(job);
+        }
+        job.addOp(pos, level, add, emitter.id, emitter.stamp);
+    }
+
+    /**
+     * Note where the ops of a job that was written left each emitter's light
+     */
+    private void markLit(RelightJob job)
+    {
+        for (int i = 0; i < job.getOpCount(); i++)
+        {
+            Emitter emitter = emitters.get(job.getOpEmitter(i));
+            if (emitter != null && emitter.stamp == job.getOpStamp(i))
+            {
+                emitter.setLit(job.getOpPos(i), job.getOpLevel(i), job.isOpAdd(i));
+            }
+        }
+    }
+
+    /**
+     * Commit phase, called at the start of the world tick
+     * Jobs whose region changed since their snapshot, checked by section, go back in line to be redone.
+     * Jobs holding ops of an emitter that was removed with its chunk are never
+     * written, the rest of their ops go back in line
+     */
+    public void commitRelightJobs()
+    {
+        // A generation is committed as a whole once all of it is done
+        for (RelightJob job : runningJobs)
+        {
+            if (!job.isDone())
+            {
+                return;
+            }
+        }
+
+        // Checked before any is written, neighbouring jobs may share a section
+        for (RelightJob job : runningJobs)
+        {
+            job.verify(world);
+        }
+
+        // Backwards so the jobs going back in line keep their order, ahead of newer work
+        for (int i = runningJobs.size() - 1; i >= 0; i--)
+        {
+            RelightJob job = runningJobs.get(i);
+            if (job.dropOps(removedStamps))
+            {
+                job.discard();
+                if (!job.isEmpty())
+                {
+                    pendingJobs.add(0, job);
+                }
+            }
+            else if (job.commit(world))
+            {
+                markLit(job);
+            }
+            else if (job.getAttempts() >= MAX_RELIGHT_ATTEMPTS)
+            {
+                job.runOn(access, propagator);
+                markLit(job);
+            }
+            else
+            {
+                pendingJobs.add(0, job);
+            }
+        }
+
+        runningJobs.clear();
+        removedStamps.clear();
+    }
+
+    /**
+     * Send the pending jobs to the workers once the previous generation is committed,
+     * so a job never starts from light that an earlier job is still computing
+     */
+    private void submitRelightJobs()
+    {
+        if (pendingJobs.isEmpty() || !runningJobs.isEmpty())
+        {
+            return;
+        }
+
+        // Turned off while work was pending
+        if (!MainMod.asyncVirtualRelight)
+        {
+            for (RelightJob job : pendingJobs)
+            {
+                job.runOn(access, propagator);
+                markLit(job);
+            }
+            pendingJobs.clear();
+            return;
+        }
+
+        int sourceCount = emitters.size();
+        long[] sourcePositions = new long[sourceCount];
+        int[] sourceLevels = new int[sourceCount];
+        int i = 0;
+        for (Emitter emitter : emitters.values())
+        {
+            sourcePositions[i] = emitter.pos;
+            sourceLevels[i] = emitter.level;
+            i++;
+        }
+
+        // Jobs touching one already submitted wait for the next generation, in order
+        List<RelightJob> waiting = new ArrayList<>();
+        for (RelightJob job : pendingJobs)
+        {
+            boolean blocked = false;
+            for (RelightJob other : runningJobs)
+            {
+                blocked |= job.overlaps(other);
+            }
+            for (RelightJob other : waiting)
+            {
+                blocked |= job.overlaps(other);
+            }
+
+            if (blocked)
+            {
+                waiting.add(job);
+            }
+            else
+            {
+                job.submit(world, sourcePositions, sourceLevels, sourceCount);
+                runningJobs.add(job);
+            }
+        }
+        pendingJobs.clear();
+        pendingJobs.addAll(waiting);
+    }
+
+    public int getEmitterCount()
+    {
+        return emitters.size();
+    }
+
+    private void recordChange(int emitterId, long oldPos, int oldLevel, long newPos, int newLevel)
+    {
+        if (world.isRemote)
+        {
+            return;
+        }
+
+        if (changeCount == changeIds.length)
+        {
+            int size = changeCount * 2;
+            changeIds = Arrays.copyOf(changeIds, size);
+            changeOldPositions = Arrays.copyOf(changeOldPositions, size);
+            changeOldLevels = Arrays.copyOf(changeOldLevels, size);
+            changeNewPositions = Arrays.copyOf(changeNewPositions, size);
+            changeNewLevels = Arrays.copyOf(changeNewLevels, size);
+        }
+        changeIds[changeCount] = emitterId;
+        changeOldPositions[changeCount] = oldPos;
+        changeOldLevels[changeCount] = oldLevel;
+        changeNewPositions[changeCount] = newPos;
+        changeNewLevels[changeCount] = newLevel;
+        changeCount++;
+    }
+
+    /**
+     * Send each player the changes in chunks they are watching
+     * A message is only created for players watching at least one change
+     */
+    private void sendChanges()
+    {
+        if (changeCount == 0 || !(world instanceof WorldServer))
+        {
+            changeCount = 0;
+            return;
+        }
+
+        WorldServer worldServer = (WorldServer) world;
+        for (EntityPlayer player : world.playerEntities)
+        {
+            if (!(player instanceof EntityPlayerMP))
+            {
+                continue;
+            }
+            EntityPlayerMP playerMP = (EntityPlayerMP) player;
+
+            MessageVirtualLightUpdate message = null;
+            for (int i = 0; i < changeCount; i++)
+            {
+                if ((changeOldLevels[i] > 0 && isWatching(worldServer, playerMP, changeOldPositions[i])) ||
+                    (changeNewLevels[i] > 0 && isWatching(worldServer, playerMP, changeNewPositions[i])))
+                {
+                    if (message == null)
+                    {
+                        message = new MessageVirtualLightUpdate();
+                    }
+                    message.add(changeIds[i], changeOldPositions[i], changeOldLevels[i], changeNewPositions[i], changeNewLevels[i]);
+                }
+            }
+
+            if (message != null)
+            {
+                MainMod.network.sendTo(message, playerMP);
+            }
+        }
+
+        changeCount = 0;
+    }
+
+    private static boolean isWatching(WorldServer world, EntityPlayerMP player, long pos)
+    {
+        return world.getPlayerChunkMap().isPlayerWatchingChunk(player, LightPos.getX(pos) >> 4, LightPos.getZ(pos) >> 4);
+    }
+
+    /**
+     * Highest level of the emitters at a position
+     */
+    private int getEmitterLevelAt(long pos)
+    {
+        int level = 0;
+        for (Emitter emitter = emittersByPos.get(pos); emitter != null; emitter = emitter.nextAtPos)
+        {
+            level = Math.max(level, emitter.level);
+        }
+        return level;
+    }
+
+    private void index(Emitter emitter)
+    {
+        emitter.nextAtPos = emittersByPos.put(emitter.pos, emitter);
+    }
+
+    private void unindex(Emitter emitter)
+    {
+        Emitter head = emittersByPos.get(emitter.pos);
+        if (head == emitter)
+        {
+            if (emitter.nextAtPos == null)
+            {
+                emittersByPos.remove(emitter.pos);
+            }
+            else
+            {
+                emittersByPos.put(emitter.pos, emitter.nextAtPos);
+            }
+        }
+        else
+        {
+            for (Emitter other = head; other != null; other = other.nextAtPos)
+            {
+                if (other.nextAtPos == emitter)
+                {
+                    other.nextAtPos = emitter.nextAtPos;
+                    break;
+                }
+            }
+        }
+        emitter.nextAtPos = null;
+    }
+
+    /**
+     * Reads and writes the world's block light directly
+     */
+    private class WorldLightAccess implements ILightAccess
+    {
+        private final BlockPos.MutableBlockPos cursor = new BlockPos.MutableBlockPos();
+
+        private BlockPos.MutableBlockPos at(long pos)
+        {
+            return cursor.setPos(LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos));
+        }
+
+        @Override
+        public boolean contains(long pos)
+        {
+            int y = LightPos.getY(pos);
+            if (y < 0 || y >= 256 || !world.isBlockLoaded(at(pos)))
+            {
+                return false;
+            }
+
+            // Setting block light in a missing section would allocate it
+            return !MainMod.skipEmptySectionLights || !ChunkSections.isMissing(world, LightPos.getX(pos), y, LightPos.getZ(pos));
+        }
+
+        @Override
+        public int getLight(long pos)
+        {
+            return world.getLightFor(EnumSkyBlock.BLOCK, at(pos));
+        }
+
+        @Override
+        public void setLight(long pos, int level)
+        {
+            world.setLightFor(EnumSkyBlock.BLOCK, at(pos), level);
+        }
+
+        @Override
+        public int getOpacity(long pos)
+        {
+            BlockPos blockPos = at(pos);
+            return world.getBlockState(blockPos).getLightOpacity(world, blockPos);
+        }
+
+        @Override
+        public int getSourceLevel(long pos)
+        {
+            BlockPos blockPos = at(pos);
+            IBlockState state = world.getBlockState(blockPos);
+            return Math.max(state.getLightValue(world, blockPos), getEmitterLevelAt(pos));
+        }
+    }
+
+    private static class Emitter
+    {
+        private final int id;
+        private long pos;
+        private int level;
+        private long expiresAt;
+        private Emitter nextAtPos; // next emitter at the same position
+        private final long stamp; // tells this emitter's relight ops apart from those of an earlier one with the same ID
+
+        // Where the emitter's light was last written to the world, nowhere while the level is 0
+        private long litPos;
+        private int litLevel;
+
+        private Emitter(int id, long stamp)
+        {
+            this.id = id;
+            this.stamp = stamp;
+        }
+
+        private void setLit(long pos, int level, boolean add)
+        {
+            if (add)
+            {
+                litPos = pos;
+                litLevel = level;
+            }
+            else if (litPos == pos)
+            {
+                litLevel = 0;
+            }
+        }
+    }
+
+    private static class SavedLight
+    {
+        private final long pos;
+        private final int level;
+
+        private SavedLight(long pos, int level)
+        {
+            this.pos = pos;
+            this.level = level;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.blogspot.michaelsebero.movinglightsource.networking;
+
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
+import com.blogspot.michaelsebero.movinglightsource.lighting.VirtualLightEngine;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+/**
+ * One tick's worth of virtual light emitter changes for a client
+ */
+public class MessageVirtualLightUpdate implements IMessage
+{
+    private int count = 0;
+    private int[] emitterIds = new int[8];
+    private long[] oldPositions = new long[8];
+    private byte[] oldLevels = new byte[8];
+    private long[] newPositions = new long[8];
+    private byte[] newLevels = new byte[8];
+
+    public MessageVirtualLightUpdate()
+    {
+    	// need this constructor
+    }
+
+    public void add(int emitterId, long oldPos, int oldLevel, long newPos, int newLevel)
+    {
+        if (count == emitterIds.length)
+        {
+            grow(count * 2);
+        }
+        emitterIds[count] = emitterId;
+        oldPositions[count] = oldPos;
+        oldLevels[count] = (byte) oldLevel;
+        newPositions[count] = newPos;
+        newLevels[count] = (byte) newLevel;
+        count++;
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    private void grow(int size)
+    {
+        int[] ids = new int[size];
+        long[] oldPos = new long[size];
+        byte[] oldLevel = new byte[size];
+        long[] newPos = new long[size];
+        byte[] newLevel = new byte[size];
+        System.arraycopy(emitterIds, 0, ids, 0, count);
+        System.arraycopy(oldPositions, 0, oldPos, 0, count);
+        System.arraycopy(oldLevels, 0, oldLevel, 0, count);
+        System.arraycopy(newPositions, 0, newPos, 0, count);
+        System.arraycopy(newLevels, 0, newLevel, 0, count);
+        emitterIds = ids;
+        oldPositions = oldPos;
+        oldLevels = oldLevel;
+        newPositions = newPos;
+        newLevels = newLevel;
+    }
+
+    /**
+     * Replay the changes on a client engine
+     */
+    public void applyTo(VirtualLightEngine engine)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            engine.applyRemoteChange(emitterIds[i], oldPositions[i], oldLevels[i], newPositions[i], newLevels[i]);
+        }
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf)
+    {
+        int size = ByteBufUtils.readVarInt(buf, 5);
+        count = 0;
+        grow(Math.max(size, 1));
+        for (int i = 0; i < size; i++)
+        {
+            int emitterId = buf.readInt();
+            int oldLevel = buf.readByte();
+            long oldPos = oldLevel > 0 ? buf.readLong() : 0L;
+            int newLevel = buf.readByte();
+            long newPos = newLevel > 0 ? buf.readLong() : 0L;
+            add(emitterId, oldPos, oldLevel, newPos, newLevel);
+        }
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf)
+    {
+        ByteBufUtils.writeVarInt(buf, count, 5);
+        for (int i = 0; i < count; i++)
+        {
+            // Positions are only sent for the sides of the change that have light
+            buf.writeInt(emitterIds[i]);
+            buf.writeByte(oldLevels[i]);
+            if (oldLevels[i] > 0)
+            {
+                buf.writeLong(oldPositions[i]);
+            }
+            buf.writeByte(newLevels[i]);
+            if (newLevels[i] > 0)
+            {
+                buf.writeLong(newPositions[i]);
+            }
+        }
+    }
+
+    public static class Handler implements IMessageHandler<MessageVirtualLightUpdate, IMessage>
+    {
+        @Override
+        public IMessage onMessage(final MessageVirtualLightUpdate message, final MessageContext ctx)
+        {
+            // Light arrays may only be touched on the client thread
+            FMLCommonHandler.instance().getWorldThread(ctx.netHandler).addScheduledTask(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    EntityPlayer player = MainMod.proxy.getPlayerEntityFromContext(ctx);
+                    if (player != null)
+                    {
+                        message.applyTo(VirtualLightEngine.get(player.world));
+                    }
+                }
+            });
+            return null; // no response in this case
+        }
+    }
+}
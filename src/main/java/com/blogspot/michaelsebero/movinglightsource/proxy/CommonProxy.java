@@ -27,13 +27,16 @@ import com.blogspot.michaelsebero.movinglightsource.EventHandler;
 import com.blogspot.michaelsebero.movinglightsource.MainMod;
 import com.blogspot.michaelsebero.movinglightsource.OreGenEventHandler;
 import com.blogspot.michaelsebero.movinglightsource.TerrainGenEventHandler;
+import com.blogspot.michaelsebero.movinglightsource.commands.CommandMovingLight;
 import com.blogspot.michaelsebero.movinglightsource.gui.GuiHandler;
+import com.blogspot.michaelsebero.movinglightsource.lighting.ChunkLightIndex;
 import com.blogspot.michaelsebero.movinglightsource.networking.MessageExtendedReachAttack;
 import com.blogspot.michaelsebero.movinglightsource.networking.MessageRequestItemStackRegistryFromClient;
 import com.blogspot.michaelsebero.movinglightsource.networking.MessageSendItemStackRegistryToServer;
 import com.blogspot.michaelsebero.movinglightsource.networking.MessageSyncEntityToClient;
 import com.blogspot.michaelsebero.movinglightsource.networking.MessageToClient;
 import com.blogspot.michaelsebero.movinglightsource.networking.MessageToServer;
+import com.blogspot.michaelsebero.movinglightsource.networking.MessageVirtualLightUpdate;
 import com.blogspot.michaelsebero.movinglightsource.tileentities.TileEntityMovingLightSource;
 
 import io.netty.buffer.ByteBuf;
@@ -83,6 +86,7 @@ public class CommonProxy
 
         // Register mod components
         registerTileEntities();
+        registerCapabilities();
         registerModEntities();
         registerEntitySpawns();
         registerFuelHandlers();
@@ -139,6 +143,7 @@ public class CommonProxy
     {
         // Register server commands
         // event.registerServerCommand(new CommandStructureCapture());
+        event.registerServerCommand(new CommandMovingLight());
     }
         
     /**
@@ -159,6 +164,7 @@ public class CommonProxy
         MainMod.network.registerMessage(MessageExtendedReachAttack.Handler.class, MessageExtendedReachAttack.class, packetId++, Side.SERVER);
         MainMod.network.registerMessage(MessageSendItemStackRegistryToServer.Handler.class, MessageSendItemStackRegistryToServer.class, packetId++, Side.SERVER);
         MainMod.network.registerMessage(MessageRequestItemStackRegistryFromClient.Handler.class, MessageRequestItemStackRegistryFromClient.class, packetId++, Side.CLIENT);
+        MainMod.network.registerMessage(MessageVirtualLightUpdate.Handler.class, MessageVirtualLightUpdate.class, packetId++, Side.CLIENT);
     }
     
     /**
@@ -216,6 +222,186 @@ public class CommonProxy
         ).getBoolean(true);
         System.out.println("Burning entities give off light = " + MainMod.allowBurningEntitiesToGiveOffLight);
         
+        MainMod.itemLightUpdateInterval = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Dropped item light update interval", 
+            2, 
+            "Ticks between light updates for each dropped item. Items are spread across these ticks by entity ID.", 
+            1, 
+            20
+        ).getInt(2);
+        System.out.println("Dropped item light update interval = " + MainMod.itemLightUpdateInterval);
+        
+        MainMod.projectileLightUpdateInterval = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Burning projectile light update interval", 
+            1, 
+            "Ticks between light updates for each burning projectile. Projectiles are spread across these ticks by entity ID.", 
+            1, 
+            20
+        ).getInt(1);
+        System.out.println("Burning projectile light update interval = " + MainMod.projectileLightUpdateInterval);
+        
+        MainMod.livingLightUpdateInterval = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Living entity light update interval", 
+            1, 
+            "Ticks between light updates for each burning or light-holding mob. Mobs are spread across these ticks by entity ID.", 
+            1, 
+            20
+        ).getInt(1);
+        System.out.println("Living entity light update interval = " + MainMod.livingLightUpdateInterval);
+        
+        MainMod.useVirtualLightEngine = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Virtual light engine", 
+            false, 
+            "Light moving entities by writing block light values directly instead of placing light blocks. Leaves no blocks behind. Vanilla relights around every placed or broken block from real light sources only, so virtual light next to a block change goes dark until its entity moves."
+        ).getBoolean(false);
+        System.out.println("Virtual light engine = " + MainMod.useVirtualLightEngine);
+        
+        MainMod.asyncVirtualRelight = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Asynchronous virtual relight", 
+            false, 
+            "Compute virtual light changes on worker threads and apply them at the start of the next tick. Only used with the virtual light engine."
+        ).getBoolean(false);
+        System.out.println("Asynchronous virtual relight = " + MainMod.asyncVirtualRelight);
+        
+        MainMod.parallelLightTargetThreshold = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Parallel light target threshold", 
+            256, 
+            "Dropped items or burning projectiles updated in one tick from which their light positions are worked out on several cores.", 
+            1, 
+            Integer.MAX_VALUE
+        ).getInt(256);
+        System.out.println("Parallel light target threshold = " + MainMod.parallelLightTargetThreshold);
+        
+        MainMod.skipEmptySectionLights = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Skip lights in empty chunk sections", 
+            true, 
+            "Don't light 16x16x16 chunk sections that hold no blocks at all, e.g. open sky. Lighting them makes the game allocate and save the section for good. Light blocks are only refused when their own section is empty and they are too far above the ground to light it, lights just above the ground are still placed and can allocate their section. Light can also spread into empty sections next to it and allocate them. The virtual light engine never lights empty sections."
+        ).getBoolean(true);
+        System.out.println("Skip lights in empty chunk sections = " + MainMod.skipEmptySectionLights);
+        
+        MainMod.stripLightsFromSaves = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Strip lights from chunk saves", 
+            true, 
+            "Leave moving light blocks and their tile entities out of saved chunks. They are placed again by the entities giving off light."
+        ).getBoolean(true);
+        System.out.println("Strip lights from chunk saves = " + MainMod.stripLightsFromSaves);
+        
+        MainMod.useLightJournal = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Light placement journal", 
+            true, 
+            "Journal light block placements and removals to a memory-mapped file in the world's data folder, so lights left behind by a crash are removed on the next start."
+        ).getBoolean(true);
+        System.out.println("Light placement journal = " + MainMod.useLightJournal);
+        
+        MainMod.flightRecorderEvents = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Flight recorder events", 
+            true, 
+            "Emit Java Flight Recorder events for light writes and per-tick handler times. They cost nothing unless a recording has them enabled, and are skipped on Java versions without JFR."
+        ).getBoolean(true);
+        System.out.println("Flight recorder events = " + MainMod.flightRecorderEvents);
+        
+        MainMod.lightTraceSize = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Light trace size", 
+            4096, 
+            "Number of recent light block writes kept per world for /movinglight trace. 0 turns the trace off."
+        ).getInt(4096);
+        System.out.println("Light trace size = " + MainMod.lightTraceSize);
+        
+        MainMod.lightTraceDumpMillis = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Light trace dump threshold", 
+            0, 
+            "Dump every world's light trace to a file when a server tick takes at least this many milliseconds, at most once a minute. 0 turns it off."
+        ).getInt(0);
+        System.out.println("Light trace dump threshold = " + MainMod.lightTraceDumpMillis);
+        
+        MainMod.lightWorkBudgetMicros = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Light work budget (microseconds)", 
+            2000, 
+            "Time each world may spend per tick applying queued light placements and removals. Leftover work carries over to the next tick.", 
+            50, 
+            50000
+        ).getInt(2000);
+        System.out.println("Light work budget (microseconds) = " + MainMod.lightWorkBudgetMicros);
+        
+        MainMod.lightWorkQueueCapacity = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Light work queue capacity", 
+            4096, 
+            "Maximum queued light positions per world. New placements are refused while the queue is full, removals are always accepted.", 
+            64, 
+            65536
+        ).getInt(4096);
+        System.out.println("Light work queue capacity = " + MainMod.lightWorkQueueCapacity);
+        
+        MainMod.adaptiveLightThrottling = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Adaptive light throttling", 
+            true, 
+            "Widen light update intervals and shrink the light work budget while the server is lagging."
+        ).getBoolean(true);
+        System.out.println("Adaptive light throttling = " + MainMod.adaptiveLightThrottling);
+        
+        MainMod.adaptiveHighMspt = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Adaptive throttling high MSPT", 
+            40, 
+            "Average milliseconds per tick at or above which light work is backed off.", 
+            1, 
+            1000
+        ).getInt(40);
+        System.out.println("Adaptive throttling high MSPT = " + MainMod.adaptiveHighMspt);
+        
+        MainMod.adaptiveLowMspt = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Adaptive throttling low MSPT", 
+            30, 
+            "Average milliseconds per tick at or below which light work recovers toward the configured values. Must be below the high MSPT, otherwise it is set to one less.", 
+            1, 
+            1000
+        ).getInt(30);
+        System.out.println("Adaptive throttling low MSPT = " + MainMod.adaptiveLowMspt);
+        
+        // With the low mark at or above the high one the throttle would back off and recover every tick
+        if (MainMod.adaptiveLowMspt >= MainMod.adaptiveHighMspt)
+        {
+            MainMod.adaptiveHighMspt = Math.max(2, MainMod.adaptiveHighMspt);
+            MainMod.adaptiveLowMspt = MainMod.adaptiveHighMspt - 1;
+            System.out.println("Adaptive throttling low MSPT must be below the high MSPT, using low " + MainMod.adaptiveLowMspt + " and high " + MainMod.adaptiveHighMspt);
+        }
+        
+        MainMod.adaptiveMaxIntervalMultiplier = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Adaptive throttling max interval multiplier", 
+            4, 
+            "Largest factor by which light update intervals may be widened under load.", 
+            1, 
+            20
+        ).getInt(4);
+        System.out.println("Adaptive throttling max interval multiplier = " + MainMod.adaptiveMaxIntervalMultiplier);
+        
+        MainMod.adaptiveMinBudgetMicros = MainMod.config.get(
+            Configuration.CATEGORY_GENERAL, 
+            "Adaptive throttling minimum budget (microseconds)", 
+            250, 
+            "Smallest light work budget per world tick under load.", 
+            10, 
+            50000
+        ).getInt(250);
+        System.out.println("Adaptive throttling minimum budget (microseconds) = " + MainMod.adaptiveMinBudgetMicros);
+        
         MainMod.config.save();
     }
 
@@ -228,6 +414,14 @@ public class CommonProxy
         // FluidRegistry.registerFluid(testFluid);
     }
     
+    /**
+     * Registers capabilities
+     */
+    public void registerCapabilities()
+    {
+        ChunkLightIndex.register();
+    }
+    
     /**
      * Registers tile entities
      */
@@ -1,6 +1,11 @@
 package com.blogspot.michaelsebero.movinglightsource.tileentities;
 
+import com.blogspot.michaelsebero.movinglightsource.MainMod;
 import com.blogspot.michaelsebero.movinglightsource.blocks.BlockMovingLightSource;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightLoadController;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightMetrics;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightTrace;
+import com.blogspot.michaelsebero.movinglightsource.lighting.LightWorkQueue;
 import com.blogspot.michaelsebero.movinglightsource.utilities.Utilities;
 
 import net.minecraft.block.Block;
@@ -26,7 +31,7 @@ public class TileEntityMovingLightSource extends TileEntity implements ITickable
     private boolean shouldDie = false;
     private int deathTimer = 1; // REDUCED from 2 to 1 for faster cleanup
     private int tickCounter = 0;
-    private static final int UPDATE_FREQUENCY = 3; // REDUCED from 5 to 3 for more responsive updates
+    private static final int UPDATE_FREQUENCY = 3; // REDUCED from 5 to 3 for more responsive updates, widened under load
     private static final double MAX_DISTANCE_SQ = 5.0D;
     private static final double ITEM_MAX_DISTANCE_SQ = 3.0D;
     
@@ -37,10 +42,35 @@ public class TileEntityMovingLightSource extends TileEntity implements ITickable
  
     @Override
     public void update()
+    {
+        // Early return if world is null
+        if (world == null)
+        {
+            return;
+        }
+        
+        world.profiler.startSection(MainMod.MODID);
+        if (world.isRemote)
+        {
+            tickLight();
+        }
+        else
+        {
+            long start = System.nanoTime();
+            tickLight();
+            LightMetrics.get(world).addHandlerTime(LightMetrics.Handler.TILE_ENTITY_UPDATE, System.nanoTime() - start);
+        }
+        world.profiler.endSection();
+    }
+    
+    /**
+     * Check whether the light's entity is still here, the light dies once it isn't
+     */
+    private void tickLight()
     {
         // Performance: Only check every N ticks (unless dying)
         tickCounter++;
-        if (tickCounter < UPDATE_FREQUENCY && !shouldDie)
+        if (tickCounter < LightLoadController.scaleInterval(UPDATE_FREQUENCY) && !shouldDie)
         {
             return;
         }
@@ -56,20 +86,20 @@ public class TileEntityMovingLightSource extends TileEntity implements ITickable
             }
             else
             {
-                if (world != null && !world.isRemote)
+                // Queued once, requeuing every tick would send it to the back of the queue each time.
+                // Queued again if other work at this position took its place and the light is still here
+                if (!world.isRemote)
                 {
-                    world.setBlockToAir(getPos());
+                    LightWorkQueue queue = LightWorkQueue.get(world);
+                    if (!queue.isPending(getPos()))
+                    {
+                        queue.enqueueRemove(getPos(), false, LightTrace.Reason.TILE_ENTITY);
+                    }
                 }
                 return;
             }
         }
         
-        // Early return if world is null
-        if (world == null)
-        {
-            return;
-        }
-        
         // Handle item lights separately
         if (isItemLight || trackedItem != null)
         {
@@ -290,6 +320,11 @@ public class TileEntityMovingLightSource extends TileEntity implements ITickable
         theEntityLiving = null;
     }
     
+    public EntityItem getTrackedItem()
+    {
+        return trackedItem;
+    }
+    
     /**
      * Mark this as an item light
      */
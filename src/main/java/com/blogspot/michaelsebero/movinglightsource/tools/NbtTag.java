@@ -0,0 +1,298 @@
+package com.blogspot.michaelsebero.movinglightsource.tools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal NBT reader and writer for the offline tools, which run without
+ * Minecraft on the classpath and so can't use its tag classes. A tag is its
+ * type and a plain Java value: boxed numbers, byte, int and long arrays,
+ * strings, a list of tags or an ordered map of named tags
+ */
+public final class NbtTag
+{
+    public static final byte END = 0;
+    public static final byte BYTE = 1;
+    public static final byte SHORT = 2;
+    public static final byte INT = 3;
+    public static final byte LONG = 4;
+    public static final byte FLOAT = 5;
+    public static final byte DOUBLE = 6;
+    public static final byte BYTE_ARRAY = 7;
+    public static final byte STRING = 8;
+    public static final byte LIST = 9;
+    public static final byte COMPOUND = 10;
+    public static final byte INT_ARRAY = 11;
+    public static final byte LONG_ARRAY = 12;
+
+    // Vanilla refuses deeper nesting as well
+    private static final int MAX_DEPTH = 512;
+
+    private final byte type;
+    private final Object value;
+
+    // Element type of a list, kept so empty lists are written back unchanged
+    private final byte listType;
+
+    private NbtTag(byte type, Object value, byte listType)
+    {
+        this.type = type;
+        this.value = value;
+        this.listType = listType;
+    }
+
+    /**
+     * Read a named root tag, which for chunks and level.dat is an unnamed compound
+     */
+    public static NbtTag readRoot(DataInput input) throws IOException
+    {
+        byte type = input.readByte();
+        if (type == END)
+        {
+            return new NbtTag(END, null, END);
+        }
+        input.readUTF();
+        return readPayload(input, type, 0);
+    }
+
+    /**
+     * Write a tag as an unnamed root tag
+     */
+    public static void writeRoot(DataOutput output, NbtTag tag) throws IOException
+    {
+        output.writeByte(tag.type);
+        if (tag.type != END)
+        {
+            output.writeUTF("");
+            tag.writePayload(output);
+        }
+    }
+
+    public byte getType()
+    {
+        return type;
+    }
+
+    /**
+     * Child of a compound, null if it is missing or this isn't a compound
+     */
+    public NbtTag get(String name)
+    {
+        return type == COMPOUND ? getCompound().get(name) : null;
+    }
+
+    /**
+     * Child of a compound if it has the given type, otherwise null
+     */
+    public NbtTag get(String name, byte childType)
+    {
+        NbtTag child = get(name);
+        return child != null && child.type == childType ? child : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, NbtTag> getCompound()
+    {
+        return (Map<String, NbtTag>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<NbtTag> getList()
+    {
+        return (List<NbtTag>) value;
+    }
+
+    public byte getListType()
+    {
+        return listType;
+    }
+
+    /**
+     * The tag's own array, changing it changes what is written
+     */
+    public byte[] getByteArray()
+    {
+        return (byte[]) value;
+    }
+
+    public String getString()
+    {
+        return (String) value;
+    }
+
+    /**
+     * Value of any of the number tags as an int
+     */
+    public int getInt()
+    {
+        return ((Number) value).intValue();
+    }
+
+    private static NbtTag readPayload(DataInput input, byte type, int depth) throws IOException
+    {
+        if (depth > MAX_DEPTH)
+        {
+            throw new IOException("NBT nested too deeply");
+        }
+
+        switch (type)
+        {
+            case BYTE:
+                return new NbtTag(type, input.readByte(), END);
+            case SHORT:
+                return new NbtTag(type, input.readShort(), END);
+            case INT:
+                return new NbtTag(type, input.readInt(), END);
+            case LONG:
+                return new NbtTag(type, input.readLong(), END);
+            case FLOAT:
+                return new NbtTag(type, input.readFloat(), END);
+            case DOUBLE:
+                return new NbtTag(type, input.readDouble(), END);
+            case BYTE_ARRAY:
+            {
+                byte[] bytes = new byte[readLength(input)];
+                input.readFully(bytes);
+                return new NbtTag(type, bytes, END);
+            }
+            case STRING:
+                return new NbtTag(type, input.readUTF(), END);
+            case LIST:
+            {
+                byte elementType = input.readByte();
+                int length = readLength(input);
+                List<NbtTag> elements = new ArrayList<>(Math.min(length, 1024));
+                for (int i = 0; i < length; i++)
+                {
+                    elements.add(readPayload(input, elementType, depth + 1));
+                }
+                return new NbtTag(type, elements, elementType);
+            }
+            case COMPOUND:
+            {
+                Map<String, NbtTag> children = new LinkedHashMap<>();
+                byte childType;
+                while ((childType = input.readByte()) != END)
+                {
+                    String name = input.readUTF();
+                    children.put(name, readPayload(input, childType, depth + 1));
+                }
+                return new NbtTag(type, children, END);
+            }
+            case INT_ARRAY:
+            {
+                int[] ints = new int[readLength(input)];
+                for (int i = 0; i < ints.length; i++)
+                {
+                    ints[i] = input.readInt();
+                }
+                return new NbtTag(type, ints, END);
+            }
+            case LONG_ARRAY:
+            {
+                long[] longs = new long[readLength(input)];
+                for (int i = 0; i < longs.length; i++)
+                {
+                    longs[i] = input.readLong();
+                }
+                return new NbtTag(type, longs, END);
+            }
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+
+    private static int readLength(DataInput input) throws IOException
+    {
+        int length = input.readInt();
+        if (length < 0)
+        {
+            throw new IOException("Negative NBT length " + length);
+        }
+        return length;
+    }
+
+    private void writePayload(DataOutput output) throws IOException
+    {
+        switch (type)
+        {
+            case BYTE:
+                output.writeByte((Byte) value);
+                break;
+            case SHORT:
+                output.writeShort((Short) value);
+                break;
+            case INT:
+                output.writeInt((Integer) value);
+                break;
+            case LONG:
+                output.writeLong((Long) value);
+                break;
+            case FLOAT:
+                output.writeFloat((Float) value);
+                break;
+            case DOUBLE:
+                output.writeDouble((Double) value);
+                break;
+            case BYTE_ARRAY:
+            {
+                byte[] bytes = (byte[]) value;
+                output.writeInt(bytes.length);
+                output.write(bytes);
+                break;
+            }
+            case STRING:
+                output.writeUTF((String) value);
+                break;
+            case LIST:
+            {
+                List<NbtTag> elements = getList();
+                output.writeByte(listType);
+                output.writeInt(elements.size());
+                for (NbtTag element : elements)
+                {
+                    element.writePayload(output);
+                }
+                break;
+            }
+            case COMPOUND:
+            {
+                for (Map.Entry<String, NbtTag> child : getCompound().entrySet())
+                {
+                    output.writeByte(child.getValue().type);
+                    output.writeUTF(child.getKey());
+                    child.getValue().writePayload(output);
+                }
+                output.writeByte(END);
+                break;
+            }
+            case INT_ARRAY:
+            {
+                int[] ints = (int[]) value;
+                output.writeInt(ints.length);
+                for (int i : ints)
+                {
+                    output.writeInt(i);
+                }
+                break;
+            }
+            case LONG_ARRAY:
+            {
+                long[] longs = (long[]) value;
+                output.writeInt(longs.length);
+                for (long l : longs)
+                {
+                    output.writeLong(l);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+}
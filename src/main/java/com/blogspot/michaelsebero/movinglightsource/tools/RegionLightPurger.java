@@ -0,0 +1,597 @@
+package com.blogspot.michaelsebero.movinglightsource.tools;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Command line tool that removes moving light blocks and their tile entities
+ * from a world's region files, for saves that collected stray lights from
+ * crashes or older versions of the mod. It doesn't need Minecraft: region
+ * files are memory-mapped, their chunks decompressed and cleaned on a pool of
+ * worker threads, and only the chunks that changed are written back.
+ *
+ * Only the blocks and tile entities are taken out, the block light arrays are
+ * left alone. Offline there is no telling which light came from a moving light
+ * and which from torches, lava or modded blocks, and the game doesn't rebuild
+ * block light when a chunk loads, so clearing it would leave dark patches for
+ * good. The glow a removed light leaves fades as soon as a block update near
+ * it makes the game relight there.
+ *
+ * Changed regions are written to a copy next to the region file, which then
+ * replaces it, so a crash mid-write leaves the original untouched
+ *
+ * Run it on a world that no server or client has open:
+ * java -cp movinglightsource.jar com.blogspot.michaelsebero.movinglightsource.tools.RegionLightPurger [--dry-run] [--threads N] world
+ */
+public final class RegionLightPurger
+{
+    private static final String MOD_BLOCK_PREFIX = "movinglightsource:movinglightsource";
+    private static final String TILE_ENTITY_PATH = "tileentitymovinglightsource";
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNKS_PER_REGION = 1024;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+
+    private static final byte GZIP = 1;
+    private static final byte ZLIB = 2;
+
+    // Chunk section block arrays are indexed y << 8 | z << 4 | x
+    private static final int SECTION_VOLUME = 4096;
+
+    private final boolean[] lightIds;
+    private final boolean dryRun;
+    private final ExecutorService executor;
+
+    private int regions = 0;
+    private long chunks = 0;
+    private long chunksChanged = 0;
+    private long blocksRemoved = 0;
+    private long tileEntitiesRemoved = 0;
+    private long bytesRead = 0;
+    private int failures = 0;
+
+    private RegionLightPurger(boolean[] lightIds, boolean dryRun, int threads)
+    {
+        this.lightIds = lightIds;
+        this.dryRun = dryRun;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    public static void main(String[] args)
+    {
+        boolean dryRun = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File worldDir = null;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--dry-run".equals(args[i]))
+            {
+                dryRun = true;
+            }
+            else if ("--threads".equals(args[i]) && i + 1 < args.length)
+            {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            }
+            else
+            {
+                worldDir = new File(args[i]);
+            }
+        }
+
+        if (worldDir == null || !worldDir.isDirectory())
+        {
+            System.out.println("Usage: RegionLightPurger [--dry-run] [--threads N] <world folder>");
+            System.out.println("The world must not be open in a server or client while this runs");
+            System.exit(1);
+        }
+
+        boolean[] lightIds;
+        try
+        {
+            lightIds = readLightBlockIds(new File(worldDir, "level.dat"));
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read the block IDs from level.dat: " + e);
+            System.exit(1);
+            return;
+        }
+
+        RegionLightPurger purger = new RegionLightPurger(lightIds, dryRun, threads);
+        long start = System.nanoTime();
+        try
+        {
+            for (File regionDir : findRegionDirs(worldDir))
+            {
+                File[] files = regionDir.listFiles();
+                if (files == null)
+                {
+                    continue;
+                }
+                for (File file : files)
+                {
+                    if (file.getName().endsWith(".mca"))
+                    {
+                        purger.purgeRegion(file);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            purger.executor.shutdown();
+        }
+
+        purger.report(System.nanoTime() - start);
+        System.exit(purger.failures == 0 ? 0 : 2);
+    }
+
+    /**
+     * Numeric IDs of the light blocks in this world, from Forge's block registry snapshot in level.dat
+     * 1.12 chunks store raw block IDs rather than per-section palettes, and the IDs differ between worlds
+     */
+    private static boolean[] readLightBlockIds(File levelDat) throws IOException
+    {
+        NbtTag root;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(levelDat)))))
+        {
+            root = NbtTag.readRoot(input);
+        }
+
+        NbtTag registries = root.get("FML", NbtTag.COMPOUND);
+        registries = registries == null ? null : registries.get("Registries", NbtTag.COMPOUND);
+        NbtTag blocks = registries == null ? null : registries.get("minecraft:blocks", NbtTag.COMPOUND);
+        NbtTag ids = blocks == null ? null : blocks.get("ids", NbtTag.LIST);
+        if (ids == null)
+        {
+            throw new IOException("no Forge block registry, was the world saved by Forge 1.12?");
+        }
+
+        boolean[] lightIds = new boolean[4096];
+        int found = 0;
+        for (NbtTag entry : ids.getList())
+        {
+            NbtTag key = entry.get("K", NbtTag.STRING);
+            NbtTag value = entry.get("V");
+            if (key != null && value != null && key.getString().startsWith(MOD_BLOCK_PREFIX))
+            {
+                lightIds[value.getInt() & 4095] = true;
+                found++;
+            }
+        }
+        System.out.println("Found " + found + " moving light block IDs");
+        return lightIds;
+    }
+
+    /**
+     * The overworld's region folder and those of the other dimensions
+     */
+    private static List<File> findRegionDirs(File worldDir)
+    {
+        List<File> dirs = new ArrayList<>();
+        dirs.add(new File(worldDir, "region"));
+
+        File[] children = worldDir.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                if (child.isDirectory() && child.getName().startsWith("DIM"))
+                {
+                    dirs.add(new File(child, "region"));
+                }
+            }
+        }
+
+        Iterator<File> iterator = dirs.iterator();
+        while (iterator.hasNext())
+        {
+            if (!iterator.next().isDirectory())
+            {
+                iterator.remove();
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * Clean every chunk of a region file in parallel, then write back the ones that changed
+     */
+    private void purgeRegion(File file)
+    {
+        List<ChunkResult> changed = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel())
+        {
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+            {
+                return;
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            List<Future<ChunkResult>> futures = new ArrayList<>();
+            for (int i = 0; i < CHUNKS_PER_REGION; i++)
+            {
+                int location = mapped.getInt(i * 4);
+                if (location != 0)
+                {
+                    futures.add(executor.submit(new ChunkTask(mapped, i, location)));
+                }
+            }
+
+            for (Future<ChunkResult> future : futures)
+            {
+                ChunkResult result = future.get();
+                chunks++;
+                bytesRead += result.bytesRead;
+                if (result.error != null)
+                {
+                    failures++;
+                    System.out.println(file.getName() + " chunk " + result.index + ": " + result.error);
+                }
+                else if (result.data != null)
+                {
+                    changed.add(result);
+                    blocksRemoved += result.blocksRemoved;
+                    tileEntitiesRemoved += result.tileEntitiesRemoved;
+                }
+            }
+            regions++;
+        }
+        catch (IOException | InterruptedException | ExecutionException e)
+        {
+            failures++;
+            System.out.println("Could not purge " + file + ": " + e);
+            return;
+        }
+
+        if (!dryRun && !changed.isEmpty())
+        {
+            try
+            {
+                replaceRegion(file, changed);
+            }
+            catch (IOException e)
+            {
+                failures++;
+                System.out.println("Could not write " + file + ", left unchanged: " + e);
+                return;
+            }
+        }
+        chunksChanged += changed.size();
+    }
+
+    /**
+     * Write the changed chunks into a copy of the region file, then move the copy over it
+     * The original is only replaced once the copy is complete and flushed to disk
+     */
+    private void replaceRegion(File file, List<ChunkResult> changed) throws IOException
+    {
+        Path target = file.toPath();
+        Path copy = target.resolveSibling(file.getName() + ".purging");
+        Files.copy(target, copy, StandardCopyOption.REPLACE_EXISTING);
+        try
+        {
+            try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                writeChunks(channel, changed);
+                channel.force(true);
+            }
+
+            try
+            {
+                Files.move(copy, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(copy, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    /**
+     * Write changed chunks over their old sectors when they still fit, otherwise at the end of the file
+     */
+    private void writeChunks(FileChannel channel, List<ChunkResult> changed) throws IOException
+    {
+        long end = (channel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE;
+        int timestamp = (int) (System.currentTimeMillis() / 1000L);
+
+        for (ChunkResult result : changed)
+        {
+            int sectorOffset = result.location >>> 8;
+            int sectorCount = result.location & 255;
+
+            int length = result.data.length + 1;
+            int sectorsNeeded = (length + 4 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            if (sectorsNeeded > 255)
+            {
+                failures++;
+                System.out.println("Chunk " + result.index + " is too large to write back, left unchanged");
+                continue;
+            }
+
+            long position;
+            if (sectorsNeeded <= sectorCount)
+            {
+                position = (long) sectorOffset * SECTOR_SIZE;
+            }
+            else
+            {
+                position = end;
+                sectorOffset = (int) (end / SECTOR_SIZE);
+                end += (long) sectorsNeeded * SECTOR_SIZE;
+            }
+
+            ByteBuffer sectors = ByteBuffer.allocate(sectorsNeeded * SECTOR_SIZE);
+            sectors.putInt(length);
+            sectors.put(ZLIB);
+            sectors.put(result.data);
+            sectors.rewind();
+            writeFully(channel, sectors, position);
+
+            ByteBuffer entry = ByteBuffer.allocate(4);
+            entry.putInt(0, sectorOffset << 8 | sectorsNeeded);
+            writeFully(channel, entry, result.index * 4L);
+            entry.putInt(0, timestamp);
+            entry.rewind();
+            writeFully(channel, entry, SECTOR_SIZE + result.index * 4L);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Take the light tile entities and light blocks out of a chunk's NBT
+     * Unlike the save filter, every section is checked, since stray blocks may have lost their tile entity
+     */
+    private int[] purgeChunk(NbtTag root)
+    {
+        NbtTag level = root.get("Level", NbtTag.COMPOUND);
+        if (level == null)
+        {
+            return new int[2];
+        }
+
+        int tileEntities = 0;
+        NbtTag tileEntityList = level.get("TileEntities", NbtTag.LIST);
+        if (tileEntityList != null)
+        {
+            Iterator<NbtTag> iterator = tileEntityList.getList().iterator();
+            while (iterator.hasNext())
+            {
+                NbtTag id = iterator.next().get("id", NbtTag.STRING);
+                if (id != null && TILE_ENTITY_PATH.equals(getPath(id.getString())))
+                {
+                    iterator.remove();
+                    tileEntities++;
+                }
+            }
+        }
+
+        int blocks = 0;
+        NbtTag sections = level.get("Sections", NbtTag.LIST);
+        if (sections != null)
+        {
+            for (NbtTag section : sections.getList())
+            {
+                blocks += purgeSection(section);
+            }
+        }
+
+        return new int[] { blocks, tileEntities };
+    }
+
+    private int purgeSection(NbtTag section)
+    {
+        NbtTag blocksTag = section.get("Blocks", NbtTag.BYTE_ARRAY);
+        NbtTag dataTag = section.get("Data", NbtTag.BYTE_ARRAY);
+        NbtTag addTag = section.get("Add", NbtTag.BYTE_ARRAY);
+        if (blocksTag == null || dataTag == null)
+        {
+            return 0;
+        }
+
+        byte[] blocks = blocksTag.getByteArray();
+        byte[] data = dataTag.getByteArray();
+        byte[] add = addTag == null ? null : addTag.getByteArray();
+        if (blocks.length < SECTION_VOLUME || data.length < SECTION_VOLUME / 2 || (add != null && add.length < SECTION_VOLUME / 2))
+        {
+            return 0;
+        }
+
+        int removed = 0;
+        for (int index = 0; index < SECTION_VOLUME; index++)
+        {
+            int blockId = blocks[index] & 255;
+            if (add != null)
+            {
+                blockId |= getNibble(add, index) << 8;
+            }
+
+            if (lightIds[blockId])
+            {
+                blocks[index] = 0;
+                if (add != null)
+                {
+                    clearNibble(add, index);
+                }
+                clearNibble(data, index);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static String getPath(String resourceLocation)
+    {
+        int colon = resourceLocation.indexOf(':');
+        return (colon < 0 ? resourceLocation : resourceLocation.substring(colon + 1)).toLowerCase();
+    }
+
+    // Even indexes are the low nibble, like vanilla's NibbleArray
+    private static int getNibble(byte[] nibbles, int index)
+    {
+        return (nibbles[index >> 1] >> ((index & 1) << 2)) & 15;
+    }
+
+    private static void clearNibble(byte[] nibbles, int index)
+    {
+        nibbles[index >> 1] &= (byte) ~(15 << ((index & 1) << 2));
+    }
+
+    private void report(long elapsedNanos)
+    {
+        double seconds = Math.max(elapsedNanos / 1.0E9D, 1.0E-3D);
+        System.out.println((dryRun ? "Dry run, nothing written. " : "") + "Scanned " + chunks + " chunks in " + regions + " region files");
+        System.out.println("Removed " + blocksRemoved + " light blocks and " + tileEntitiesRemoved + " light tile entities from " + chunksChanged + " chunks");
+        System.out.println(String.format("%.1f s, %.0f chunks/s, %.1f MB/s compressed", seconds, chunks / seconds, bytesRead / seconds / (1024.0D * 1024.0D)));
+        if (failures > 0)
+        {
+            System.out.println(failures + " chunks or region files could not be processed");
+        }
+    }
+
+    /**
+     * Decompress, clean and recompress one chunk on a worker thread
+     */
+    private class ChunkTask implements Callable<ChunkResult>
+    {
+        private final ByteBuffer region;
+        private final int index;
+        private final int location;
+
+        private ChunkTask(ByteBuffer region, int index, int location)
+        {
+            // Each task gets its own position and limit
+            this.region = region.duplicate();
+            this.index = index;
+            this.location = location;
+        }
+
+        @Override
+        public ChunkResult call()
+        {
+            ChunkResult result = new ChunkResult(index, location);
+            try
+            {
+                long offset = (long) (location >>> 8) * SECTOR_SIZE;
+                if (offset < HEADER_SIZE || offset + 5 > region.capacity())
+                {
+                    throw new IOException("sector outside the file");
+                }
+
+                int length = region.getInt((int) offset);
+                if (length < 1 || offset + 4 + length > region.capacity())
+                {
+                    throw new IOException("bad length " + length);
+                }
+
+                byte compression = region.get((int) offset + 4);
+                byte[] compressed = new byte[length - 1];
+                region.position((int) offset + 5);
+                region.get(compressed);
+                result.bytesRead = compressed.length;
+
+                InputStream stream = new ByteArrayInputStream(compressed);
+                if (compression == GZIP)
+                {
+                    stream = new GZIPInputStream(stream);
+                }
+                else if (compression == ZLIB)
+                {
+                    stream = new InflaterInputStream(stream);
+                }
+                else
+                {
+                    throw new IOException("unknown compression " + compression);
+                }
+
+                NbtTag root;
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(stream)))
+                {
+                    root = NbtTag.readRoot(input);
+                }
+
+                int[] removed = purgeChunk(root);
+                if (removed[0] == 0 && removed[1] == 0)
+                {
+                    return result;
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.length + 256);
+                try (DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes)))
+                {
+                    NbtTag.writeRoot(output, root);
+                }
+                result.data = bytes.toByteArray();
+                result.blocksRemoved = removed[0];
+                result.tileEntitiesRemoved = removed[1];
+            }
+            catch (IOException | RuntimeException e)
+            {
+                result.error = e.toString();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * What a worker did to a chunk, data is the recompressed chunk or null if it didn't change
+     */
+    private static class ChunkResult
+    {
+        private final int index;
+        private final int location;
+        private byte[] data;
+        private int blocksRemoved;
+        private int tileEntitiesRemoved;
+        private long bytesRead;
+        private String error;
+
+        private ChunkResult(int index, int location)
+        {
+            this.index = index;
+            this.location = location;
+        }
+    }
+}
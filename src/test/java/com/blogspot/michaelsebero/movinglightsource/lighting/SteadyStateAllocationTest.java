@@ -0,0 +1,206 @@
+package com.blogspot.michaelsebero.movinglightsource.lighting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Per tick bookkeeping of moving lights must not allocate once it has warmed up
+ * Runs the tracker, the target batch and the work queue's op storage through
+ * simulated ticks of lights moving across chunk borders, then counts the bytes
+ * the test thread allocated over more of the same ticks
+ *
+ * The work queue itself needs a world, its pooled storage is what queues,
+ * coalesces and drains the ops and is tested here directly
+ */
+public class SteadyStateAllocationTest
+{
+    private static final int LIGHTS = 512;
+    private static final int WARMUP_TICKS = 20000;
+    private static final int MEASURED_TICKS = 2000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private long threadId;
+
+    @Before
+    public void setUp()
+    {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        threadId = Thread.currentThread().getId();
+    }
+
+    @Test
+    public void trackerDoesNotAllocate()
+    {
+        LightTracker tracker = new LightTracker();
+        for (int tick = 0; tick < WARMUP_TICKS; tick++)
+        {
+            tick(tracker, tick);
+        }
+        long bytes = measure(tracker, null, null);
+        assertEquals("bytes allocated by the tracker", 0L, bytes);
+    }
+
+    @Test
+    public void targetBatchDoesNotAllocate()
+    {
+        LightTargetBatch batch = new LightTargetBatch();
+        for (int tick = 0; tick < WARMUP_TICKS; tick++)
+        {
+            tick(batch, tick);
+        }
+        long bytes = measure(null, batch, null);
+        assertEquals("bytes allocated by the target batch", 0L, bytes);
+    }
+
+    @Test
+    public void workQueueDoesNotAllocate()
+    {
+        LightOpQueue ops = new LightOpQueue(4096);
+        for (int tick = 0; tick < WARMUP_TICKS; tick++)
+        {
+            tick(ops, tick);
+        }
+        long bytes = measure(null, null, ops);
+        assertEquals("bytes allocated by the work queue", 0L, bytes);
+    }
+
+    /**
+     * Bytes allocated over the measured ticks, less what reading the counter allocates
+     */
+    private long measure(LightTracker tracker, LightTargetBatch batch, LightOpQueue ops)
+    {
+        long first = threads.getThreadAllocatedBytes(threadId);
+        long second = threads.getThreadAllocatedBytes(threadId);
+        long overhead = second - first;
+
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int tick = WARMUP_TICKS; tick < WARMUP_TICKS + MEASURED_TICKS; tick++)
+        {
+            if (tracker != null)
+            {
+                tick(tracker, tick);
+            }
+            if (batch != null)
+            {
+                tick(batch, tick);
+            }
+            if (ops != null)
+            {
+                tick(ops, tick);
+            }
+        }
+        long end = threads.getThreadAllocatedBytes(threadId);
+        return end - start - overhead;
+    }
+
+    /**
+     * Lights walk one block east per tick, so they keep crossing into new chunks
+     */
+    private static long lightPos(int light, int tick)
+    {
+        return LightPos.pack(light * 3 + tick % 64, 64 + light % 8, light * 5);
+    }
+
+    private static void tick(LightTracker tracker, int tick)
+    {
+        for (int light = 0; light < LIGHTS; light++)
+        {
+            // A tenth of the lights go missing for a tick and are swept
+            if ((light + tick) % 10 == 0)
+            {
+                continue;
+            }
+
+            long pos = lightPos(light, tick);
+            if (tracker.isTracked(light))
+            {
+                long previous = tracker.getPos(light);
+                if (tracker.getOwner(previous) == light)
+                {
+                    tracker.removeOwner(previous);
+                }
+            }
+            tracker.track(light, pos, null, tick);
+            tracker.setOwner(pos, light);
+        }
+
+        int stale = tracker.sweep(tick, 1);
+        for (int i = 0; i < stale; i++)
+        {
+            int light = tracker.getStale(i);
+            tracker.removeOwner(tracker.getPos(light));
+            tracker.untrack(light);
+        }
+    }
+
+    private static void tick(LightTargetBatch batch, int tick)
+    {
+        for (int light = 0; light < LIGHTS; light++)
+        {
+            long pos = lightPos(light, tick);
+            batch.add(null, LightPos.getX(pos), LightPos.getY(pos), LightPos.getZ(pos), 14, null);
+        }
+
+        // Parallel batches fork tasks, the steady state is the serial one
+        batch.computeTargets(Integer.MAX_VALUE);
+        for (int i = 0; i < batch.size(); i++)
+        {
+            if (batch.hasTarget(i))
+            {
+                batch.getTargetPos(i);
+            }
+            batch.getEntityPos(i);
+        }
+        batch.clear();
+    }
+
+    private static void tick(LightOpQueue ops, int tick)
+    {
+        for (int light = 0; light < LIGHTS; light++)
+        {
+            queue(ops, lightPos(light, tick - 1), 0, LightTrace.Reason.OWNER_LEFT);
+            queue(ops, lightPos(light, tick), 2, LightTrace.Reason.OWNER);
+        }
+
+        // Drain a chunk at a time like the work queue, deferring every fourth op to the next drain
+        int slot;
+        int polled = 0;
+        while ((slot = ops.poll()) != LightOpQueue.NONE)
+        {
+            if (++polled % 4 == 0)
+            {
+                ops.defer(slot);
+                continue;
+            }
+
+            long chunkKey = ops.getChunkKey(slot);
+            ops.release(slot);
+            while ((slot = ops.firstInChunk(chunkKey)) != LightOpQueue.NONE)
+            {
+                ops.release(slot);
+            }
+        }
+        ops.restoreDeferred();
+    }
+
+    /**
+     * Queue an op the way the work queue does, a position already queued keeps its slot
+     */
+    private static void queue(LightOpQueue ops, long pos, int priority, LightTrace.Reason reason)
+    {
+        int slot = ops.find(pos);
+        if (slot == LightOpQueue.NONE)
+        {
+            slot = ops.add(pos, null);
+        }
+        ops.set(slot, null, null, false, priority, reason, 0L);
+    }
+}